@@ -54,18 +54,19 @@ public class XpkIconPreprocessor implements Preprocessor {
             return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
         }
 
-        ReentrantLock diskCacheEditLock = diskCache.getEditLock(diskCacheKey);
+        // 生成图片比较慢，要用独占锁，以免挡住其它图片的缓存操作
+        ReentrantLock diskCacheEditLock = diskCache.getExclusiveEditLock(diskCacheKey);
         diskCacheEditLock.lock();
+        try {
+            cacheEntry = diskCache.get(diskCacheKey);
+            if (cacheEntry != null) {
+                return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
+            }
 
-        cacheEntry = diskCache.get(diskCacheKey);
-        if (cacheEntry != null) {
-            return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
+            return readXpkIcon(uriInfo, diskCache);
+        } finally {
+            diskCacheEditLock.unlock();
         }
-
-        PreProcessResult result = readXpkIcon(uriInfo, diskCache);
-
-        diskCacheEditLock.unlock();
-        return result;
     }
 
     private PreProcessResult readXpkIcon(UriInfo uriInfo, DiskCache diskCache) {
@@ -36,7 +36,9 @@ import me.xiaopan.sketch.decode.ImageOrientationCorrector;
 import me.xiaopan.sketch.preprocess.ImagePreprocessor;
 import me.xiaopan.sketch.decode.ImageSizeCalculator;
 import me.xiaopan.sketch.request.MobileNetworkGlobalPauseDownloadController;
+import me.xiaopan.sketch.decode.ImageAttrsIndex;
 import me.xiaopan.sketch.decode.ProcessedImageCache;
+import me.xiaopan.sketch.decode.RegionDecoderCache;
 import me.xiaopan.sketch.decode.ResizeCalculator;
 import me.xiaopan.sketch.http.HttpStack;
 import me.xiaopan.sketch.http.HurlStack;
@@ -59,6 +61,8 @@ public final class Configuration {
     private BitmapPool bitmapPool;
     private MemoryCache memoryCache;
     private ProcessedImageCache processedImageCache;
+    private ImageAttrsIndex imageAttrsIndex;
+    private RegionDecoderCache regionDecoderCache;
 
     private HttpStack httpStack;
     private ImageDecoder imageDecoder;
@@ -104,6 +108,8 @@ public final class Configuration {
         this.imagePreprocessor = new ImagePreprocessor();
         this.imageSizeCalculator = new ImageSizeCalculator();
         this.processedImageCache = new ProcessedImageCache();
+        this.imageAttrsIndex = new ImageAttrsIndex(context, 1000);
+        this.regionDecoderCache = new RegionDecoderCache(10 * 1024 * 1024);
         this.resizeImageProcessor = new ResizeImageProcessor();
         this.defaultImageDisplayer = new DefaultImageDisplayer();
         this.imageOrientationCorrector = new ImageOrientationCorrector();
@@ -240,6 +246,62 @@ public final class Configuration {
         return this;
     }
 
+    /**
+     * 获取图片属性索引
+     *
+     * @return ImageAttrsIndex
+     */
+    @SuppressWarnings("unused")
+    public ImageAttrsIndex getImageAttrsIndex() {
+        return imageAttrsIndex;
+    }
+
+    /**
+     * 设置图片属性索引
+     *
+     * @return Configuration. Convenient chain calls
+     */
+    @SuppressWarnings("unused")
+    public Configuration setImageAttrsIndex(ImageAttrsIndex imageAttrsIndex) {
+        if (imageAttrsIndex != null) {
+            this.imageAttrsIndex = imageAttrsIndex;
+            if (SLogType.BASE.isEnabled()) {
+                SLog.fd(SLogType.BASE, LOG_NAME, "setImageAttrsIndex. %s", imageAttrsIndex.getKey());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 获取BitmapRegionDecoder缓存
+     *
+     * @return RegionDecoderCache
+     */
+    @SuppressWarnings("unused")
+    public RegionDecoderCache getRegionDecoderCache() {
+        return regionDecoderCache;
+    }
+
+    /**
+     * 设置BitmapRegionDecoder缓存
+     *
+     * @return Configuration. Convenient chain calls
+     */
+    @SuppressWarnings("unused")
+    public Configuration setRegionDecoderCache(RegionDecoderCache regionDecoderCache) {
+        if (regionDecoderCache != null) {
+            RegionDecoderCache oldRegionDecoderCache = this.regionDecoderCache;
+            this.regionDecoderCache = regionDecoderCache;
+            if (oldRegionDecoderCache != null) {
+                oldRegionDecoderCache.clear();
+            }
+            if (SLogType.BASE.isEnabled()) {
+                SLog.fd(SLogType.BASE, LOG_NAME, "setRegionDecoderCache. %s", regionDecoderCache.getKey());
+            }
+        }
+        return this;
+    }
+
 
     /**
      * 获取图片下载器
@@ -732,6 +794,8 @@ public final class Configuration {
                 "\n" + "bitmapPool：" + bitmapPool.getKey() +
                 "\n" + "memoryCache：" + memoryCache.getKey() +
                 "\n" + "processedImageCache：" + processedImageCache.getKey() +
+                "\n" + "imageAttrsIndex：" + imageAttrsIndex.getKey() +
+                "\n" + "regionDecoderCache：" + regionDecoderCache.getKey() +
 
                 "\n" + "httpStack：" + httpStack.getKey() +
                 "\n" + "imageDecoder：" + imageDecoder.getKey() +
@@ -21,9 +21,15 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Build;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
+import me.xiaopan.sketch.decode.DataSource;
+import me.xiaopan.sketch.decode.DataSourceFactory;
+import me.xiaopan.sketch.decode.DecodeException;
+import me.xiaopan.sketch.decode.FileDescriptorDataSource;
+import me.xiaopan.sketch.drawable.ImageAttrs;
 import me.xiaopan.sketch.preprocess.InstalledAppIconPreprocessor;
 import me.xiaopan.sketch.request.CancelCause;
 import me.xiaopan.sketch.request.DisplayHelper;
@@ -36,6 +42,7 @@ import me.xiaopan.sketch.request.ImageViewInterface;
 import me.xiaopan.sketch.request.LoadHelper;
 import me.xiaopan.sketch.request.LoadListener;
 import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.UriInfo;
 import me.xiaopan.sketch.request.UriScheme;
 import me.xiaopan.sketch.util.SketchUtils;
 
@@ -359,6 +366,51 @@ public class Sketch {
         return configuration.getHelperFactory().getDisplayHelper(this, createInstalledAppIconUri(packageName, versionCode), imageViewInterface);
     }
 
+    /**
+     * 探测图片的宽、高、类型和方向，不解码图片，可以在显示之前用来预留宽高比。本地文件和磁盘缓存中的图片探测过一次后会记录到
+     * {@link me.xiaopan.sketch.decode.ImageAttrsIndex}，再次探测就不用读取文件了。网络图片没有磁盘缓存时直接返回null，不会去下载。
+     * 要在子线程中执行
+     *
+     * @param uri 图片Uri，支持的类型同{@link #load(String, LoadListener)}
+     * @return null：探测失败；宽高是图片的原始尺寸，方向是90或270度时要交换宽高
+     */
+    @SuppressWarnings("unused")
+    public ImageAttrs probe(String uri) {
+        UriInfo uriInfo = UriInfo.make(uri);
+        if (uriInfo == null || uriInfo.getScheme() == null) {
+            return null;
+        }
+
+        DataSource dataSource;
+        try {
+            dataSource = DataSourceFactory.makeDataSource(configuration.getContext(), uriInfo, null);
+        } catch (DecodeException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (dataSource == null) {
+            return null;
+        }
+
+        FileDescriptorDataSource fileDescriptorDataSource = dataSource instanceof FileDescriptorDataSource ?
+                (FileDescriptorDataSource) dataSource : null;
+        if (fileDescriptorDataSource != null) {
+            fileDescriptorDataSource.open();
+        }
+        try {
+            ImageAttrs imageAttrs = configuration.getImageAttrsIndex().readImageAttrs(dataSource,
+                    configuration.getImageOrientationCorrector(), false);
+            return imageAttrs.getMimeType() != null && imageAttrs.getWidth() > 1 && imageAttrs.getHeight() > 1 ? imageAttrs : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (fileDescriptorDataSource != null) {
+                fileDescriptorDataSource.close();
+            }
+        }
+    }
+
     /**
      * 修整内存缓存，4.0以下你需要重写Application的onTrimMemory(int)方法，然后调用这个方法
      *
@@ -380,6 +432,7 @@ public class Sketch {
 
         configuration.getMemoryCache().trimMemory(level);
         configuration.getBitmapPool().trimMemory(level);
+        configuration.getRegionDecoderCache().trimMemory(level);
     }
 
     /**
@@ -400,5 +453,6 @@ public class Sketch {
 
         configuration.getMemoryCache().clear();
         configuration.getBitmapPool().clear();
+        configuration.getRegionDecoderCache().clear();
     }
 }
\ No newline at end of file
@@ -81,6 +81,13 @@ public class BitmapPoolUtils {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             int finalWidth = SketchUtils.ceil(outWidth, inSampleSize);
             int finalHeight = SketchUtils.ceil(outHeight, inSampleSize);
+            // 通过inDensity和inTargetDensity缩放时解码出来的图片会更小
+            if (options.inScaled && options.inDensity > 0 && options.inTargetDensity > 0
+                    && options.inDensity != options.inTargetDensity) {
+                float scale = (float) options.inTargetDensity / options.inDensity;
+                finalWidth = (int) (finalWidth * scale + 0.5f);
+                finalHeight = (int) (finalHeight * scale + 0.5f);
+            }
             inBitmap = bitmapPool.get(finalWidth, finalHeight, options.inPreferredConfig);
         } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && inSampleSize == 1
                 && (imageType == ImageType.JPEG || imageType == ImageType.PNG)) {
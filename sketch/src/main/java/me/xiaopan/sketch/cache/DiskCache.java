@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Identifier;
@@ -93,18 +94,69 @@ public interface DiskCache extends Identifier {
     @SuppressWarnings("unused")
     boolean isClosed();
 
+    /**
+     * 是否正在后台安装，安装好之前{@link #exist(String)}无法判断，一律返回false
+     */
+    boolean isInstalling();
+
     /**
      * 关闭
      */
     void close();
 
     /**
-     * 获取编辑锁
+     * 将uri规范化，例如去掉追踪参数、统一CDN域名，规范化后相同的uri共用一个缓存
+     */
+    interface UriNormalizer {
+        /**
+         * @param uri 原始uri
+         * @return 规范化后的uri，用来生成缓存key
+         */
+        String normalize(String uri);
+    }
+
+    /**
+     * 获取编辑锁，不同的key可能会共用同一个锁，因此只适合很快就能释放的场景，例如只是检查一下缓存在不在。
+     * 它和{@link #getExclusiveEditLock(String)}不是同一个锁，互相不排斥，所以只能用来保护只读的检查，
+     * 缓存在提交之前是读不到的，检查时不需要等待写入完成。写入缓存都要用{@link #getExclusiveEditLock(String)}
+     *
+     * @param key 磁盘缓存key
+     * @return ReentrantLock
+     */
+    ReentrantLock getEditLock(String key);
+
+    /**
+     * 获取独占的编辑锁，每个key都有自己的锁，适合要长时间持有锁的场景，例如下载、生成图标、压缩图片。同一个key的写入都要用这个锁
      *
-     * @param uri 下载uri
+     * @param key 磁盘缓存key
      * @return ReentrantLock
      */
-    ReentrantLock getEditLock(String uri);
+    ReentrantLock getExclusiveEditLock(String key);
+
+    /**
+     * 磁盘缓存分类，每个分类都可以单独设置容量，统计用量和淘汰次数
+     */
+    enum Category {
+        /**
+         * 下载的原图
+         */
+        ORIGINAL,
+
+        /**
+         * 再处理过的图片
+         */
+        PROCESSED,
+
+        /**
+         * Base64图片
+         */
+        BASE64,
+
+        /**
+         * APK文件或已安装APP的图标
+         */
+        APP_ICON,
+    }
 
     /**
      * 磁盘缓存实体
@@ -121,10 +173,17 @@ public interface DiskCache extends Identifier {
         /**
          * 获取实体文件
          *
-         * @return File
+         * @return File，实体被打包存储在段文件中时返回null，这时只能通过newInputStream()读取
          */
         File getFile();
 
+        /**
+         * 获取实体的长度
+         *
+         * @return 字节数
+         */
+        long getLength();
+
         /**
          * 获取实体对应的uri
          *
@@ -152,6 +211,40 @@ public interface DiskCache extends Identifier {
          */
         OutputStream newOutputStream() throws IOException;
 
+        /**
+         * 创建一个文件通道，用于直接从其它通道写入文件，和{@link #newOutputStream()}只能二选一。写入出错时会直接抛出异常，需要调用者中断编辑
+         *
+         * @return FileChannel
+         * @throws IOException
+         */
+        FileChannel newFileChannel() throws IOException;
+
+        /**
+         * 设置分类，默认为{@link Category#ORIGINAL}，提交后生效
+         *
+         * @param category 分类
+         */
+        void setCategory(Category category);
+
+        /**
+         * 设置重新生成这个缓存的代价，例如下载耗时或解码加处理耗时。空间不足时会在最久未使用的一批缓存中优先淘汰代价小占用空间大的，提交后生效
+         *
+         * @param costMillis 重新生成的耗时，单位毫秒
+         */
+        void setCost(long costMillis);
+
+        /**
+         * 是否需要内容摘要，开启内容去重后才需要，不需要时就不用计算了
+         */
+        boolean isContentDigestRequired();
+
+        /**
+         * 设置内容的MD5摘要（32位小写16进制），开启内容去重后摘要相同的缓存会共用一个文件，都被删除后文件才会被删除，提交后生效
+         *
+         * @param digest 内容的MD5摘要
+         */
+        void setContentDigest(String digest);
+
         /**
          * 写完提交
          *
@@ -23,8 +23,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Configuration;
@@ -39,16 +44,33 @@ import me.xiaopan.sketch.util.UnableCreateFileException;
 
 public class LruDiskCache implements DiskCache {
     private static final String LOG_NAME = "LruDiskCache";
+    private static final String SHARD_DIR_NAME_PREFIX = "shard-";
+    private static final int EDIT_LOCK_STRIPE_COUNT = 64;   // 必须是2的幂
+    private static final int REBALANCE_INTERVAL_COMMIT_COUNT = 32;
 
     private int maxSize;
     private int appVersionCode;
     private File cacheDir;
     private Context context;
-    private DiskLruCache cache;
+    private volatile DiskLruCache[] caches;
     private Configuration configuration;
     private boolean closed;
     private boolean disabled;
-    private Map<String, ReentrantLock> editLockMap;
+    private boolean binaryJournal;
+    private int shardCount = 1;
+    private long packedMaxLength;
+    private boolean asyncInstall;
+    private boolean multiProcess;
+    private boolean contentDedup;
+    private UriNormalizer uriNormalizer;
+    private volatile boolean installing;
+    private long installTime = -1;
+    private final long[] categoryMaxSizes = new long[Category.values().length];
+    private final AtomicInteger commitCountSinceRebalance = new AtomicInteger();
+    private final Object rebalanceLock = new Object();
+    private final ReentrantLock[] stripedEditLocks = newStripedEditLocks(EDIT_LOCK_STRIPE_COUNT);
+    private final Map<String, EditLockReference> exclusiveEditLockMap = new HashMap<String, EditLockReference>();
+    private final ReferenceQueue<ReentrantLock> exclusiveEditLockQueue = new ReferenceQueue<ReentrantLock>();
 
     public LruDiskCache(Context context, Configuration configuration, int appVersionCode, int maxSize) {
         context = context.getApplicationContext();
@@ -59,11 +81,28 @@ public class LruDiskCache implements DiskCache {
         this.cacheDir = SketchUtils.getDefaultSketchCacheDir(context, DISK_CACHE_DIR_NAME, true);
     }
 
+    private static ReentrantLock[] newStripedEditLocks(int count) {
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int index = 0; index < count; index++) {
+            locks[index] = new ReentrantLock();
+        }
+        return locks;
+    }
+
     /**
      * 检查磁盘缓存器是否可用
      */
     protected boolean checkDiskCache() {
-        return cache != null && !cache.isClosed();
+        DiskLruCache[] caches = this.caches;
+        if (caches == null) {
+            return false;
+        }
+        for (DiskLruCache cache : caches) {
+            if (cache == null || cache.isClosed()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -73,27 +112,86 @@ public class LruDiskCache implements DiskCache {
         return cacheDir != null && cacheDir.exists();
     }
 
+    /**
+     * 确保磁盘缓存可用，不可用时就安装
+     *
+     * @param checkCacheDir 是否检查缓存目录
+     * @return 安装后是否可用
+     */
+    private synchronized boolean ensureDiskCache(boolean checkCacheDir) {
+        if (!checkDiskCache() || (checkCacheDir && !checkCacheDir())) {
+            installDiskCache();
+        }
+        return checkDiskCache();
+    }
+
+    /**
+     * 磁盘缓存出错时重装，如果其它线程已经重装过了就不再重装
+     *
+     * @param failedCaches 出错的磁盘缓存
+     * @return 重装后是否可用
+     */
+    private synchronized boolean reinstallDiskCache(DiskLruCache[] failedCaches) {
+        if (caches == failedCaches) {
+            installDiskCache();
+        }
+        return checkDiskCache();
+    }
+
+    /**
+     * 在后台线程中安装磁盘缓存，正在安装或已经安装好了就不再安装
+     */
+    private void installDiskCacheAsync() {
+        // 安装的时候会一直持有锁，所以要先检查一下，避免调用线程阻塞在锁上
+        if (installing) {
+            return;
+        }
+
+        synchronized (this) {
+            if (installing || closed || checkDiskCache()) {
+                return;
+            }
+
+            // 先标记上，避免安装线程拿到锁之前又有请求进来再启动一个线程
+            installing = true;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                installDiskCache();
+            }
+        }, "DiskCacheInstallThread").start();
+    }
+
     /**
      * 安装磁盘缓存
      */
     protected synchronized void installDiskCache() {
         if (closed) {
+            installing = false;
             return;
         }
 
-        // 旧的要关闭
-        if (cache != null) {
-            try {
-                cache.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            cache = null;
+        installing = true;
+        long startTime = System.currentTimeMillis();
+        try {
+            doInstallDiskCache();
+        } finally {
+            installTime = System.currentTimeMillis() - startTime;
+            installing = false;
+            SLog.fi(SLogType.CACHE, LOG_NAME, "installDiskCache. %s. useTime=%dms",
+                    checkDiskCache() ? "success" : "failed", installTime);
         }
+    }
+
+    private void doInstallDiskCache() {
+        // 旧的要关闭
+        closeDiskCache();
 
         // 创建缓存目录，然后检查空间并创建个文件测试一下
         try {
-            cacheDir = SketchUtils.buildCacheDir(context, DISK_CACHE_DIR_NAME, true, DISK_CACHE_RESERVED_SPACE_SIZE, true, true, 10);
+            cacheDir = SketchUtils.buildCacheDir(context, DISK_CACHE_DIR_NAME, !multiProcess, DISK_CACHE_RESERVED_SPACE_SIZE, true, true, 10);
         } catch (NoSpaceException e) {
             e.printStackTrace();
             configuration.getErrorTracker().onInstallDiskCacheError(e, cacheDir);
@@ -108,13 +206,151 @@ public class LruDiskCache implements DiskCache {
             return;
         }
 
-        SLog.fd(SLogType.CACHE, LOG_NAME, "diskCacheDir: %s", cacheDir.getPath());
+        SLog.fd(SLogType.CACHE, LOG_NAME, "diskCacheDir: %s, shardCount: %d, multiProcess: %s", cacheDir.getPath(), shardCount, multiProcess);
 
-        try {
-            cache = DiskLruCache.open(cacheDir, appVersionCode, 1, maxSize);
-        } catch (IOException e) {
-            e.printStackTrace();
-            configuration.getErrorTracker().onInstallDiskCacheError(e, cacheDir);
+        cleanOtherShardLayout();
+
+        DiskLruCache[] newCaches = new DiskLruCache[shardCount];
+        for (int index = 0; index < shardCount; index++) {
+            File shardDir = shardCount > 1 ? new File(cacheDir, SHARD_DIR_NAME_PREFIX + index) : cacheDir;
+            try {
+                newCaches[index] = DiskLruCache.open(shardDir, appVersionCode, 1, shardCount > 1 ? maxSize / shardCount : maxSize,
+                        binaryJournal, multiProcess);
+                newCaches[index].setPackedMaxLength(packedMaxLength);
+                newCaches[index].setContentDedup(contentDedup);
+                for (Category category : Category.values()) {
+                    newCaches[index].setCategoryMaxSize(category.ordinal(), categoryMaxSizes[category.ordinal()] / shardCount);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                configuration.getErrorTracker().onInstallDiskCacheError(e, shardDir);
+
+                for (DiskLruCache openedCache : newCaches) {
+                    DiskLruCache.closeQuietly(openedCache);
+                }
+                return;
+            }
+        }
+        caches = newCaches;
+
+        rebalanceShards();
+    }
+
+    /**
+     * 分片数变了以后，删除另一种布局留下的缓存文件，避免占用空间。只删除DiskLruCache创建的文件，其它文件不动
+     */
+    private void cleanOtherShardLayout() {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            boolean shardDir = file.isDirectory() && name.startsWith(SHARD_DIR_NAME_PREFIX);
+            boolean currentShardDir = false;
+            if (shardDir && shardCount > 1) {
+                try {
+                    currentShardDir = Integer.parseInt(name.substring(SHARD_DIR_NAME_PREFIX.length())) < shardCount;
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // 分片模式下删除不分片时的缓存文件和多余的分片目录，不分片时删除所有分片目录
+            boolean legacyFile = shardCount > 1 && file.isFile() && DiskLruCache.isCacheFileName(name);
+            if (shardDir ? !currentShardDir : legacyFile) {
+                if (file.isDirectory()) {
+                    SketchUtils.cleanDir(file);
+                }
+                SketchUtils.deleteFile(file);
+            }
+        }
+    }
+
+    private synchronized void closeDiskCache() {
+        DiskLruCache[] oldCaches = caches;
+        caches = null;
+        if (oldCaches != null) {
+            for (DiskLruCache cache : oldCaches) {
+                try {
+                    cache.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 根据key的哈希值选择分片
+     */
+    private static DiskLruCache getShard(DiskLruCache[] caches, String diskCacheKey) {
+        return caches.length == 1 ? caches[0] : caches[(diskCacheKey.hashCode() & Integer.MAX_VALUE) % caches.length];
+    }
+
+    /**
+     * 动态分配各分片的容量。没用满平均份额的分片把没用完的一半借出去，平分给已经用满平均份额的分片，另一半留着自己增长，
+     * 这样既不会出现某个分片用满了其它分片还空着，也不会出现某个分片被其它分片饿死，所有分片的容量加起来始终等于maxSize
+     */
+    private void rebalanceShards() {
+        DiskLruCache[] caches = this.caches;
+        if (caches == null || caches.length <= 1) {
+            return;
+        }
+
+        synchronized (rebalanceLock) {
+            rebalanceShards(caches);
+        }
+    }
+
+    /**
+     * 每提交{@link #REBALANCE_INTERVAL_COMMIT_COUNT}次才重新分配一次，分片的用量不会因为一两次提交就有大的变化
+     */
+    private void onCommit() {
+        if (commitCountSinceRebalance.incrementAndGet() >= REBALANCE_INTERVAL_COMMIT_COUNT) {
+            commitCountSinceRebalance.set(0);
+            rebalanceShards();
+        }
+    }
+
+    private void rebalanceShards(DiskLruCache[] caches) {
+        long fairShareSize = maxSize / caches.length;
+        long[] shardMaxSizes = new long[caches.length];
+        boolean[] borrowers = new boolean[caches.length];
+        long lentSize = 0;
+        int borrowerCount = 0;
+        for (int index = 0; index < caches.length; index++) {
+            long size = caches[index].size();
+            if (size < fairShareSize) {
+                long lendSize = (fairShareSize - size) / 2;
+                shardMaxSizes[index] = fairShareSize - lendSize;
+                lentSize += lendSize;
+            } else {
+                shardMaxSizes[index] = fairShareSize;
+                borrowers[index] = true;
+                borrowerCount++;
+            }
+        }
+
+        // 没有分片用满的话就谁也不用借，都按平均份额来
+        long remainderSize = maxSize - fairShareSize * caches.length;
+        if (borrowerCount == 0) {
+            Arrays.fill(shardMaxSizes, fairShareSize);
+            shardMaxSizes[0] += remainderSize;
+        } else {
+            // 除不尽的零头给第一个借用的分片，保证加起来正好等于maxSize
+            remainderSize += lentSize % borrowerCount;
+            for (int index = 0; index < caches.length; index++) {
+                if (borrowers[index]) {
+                    shardMaxSizes[index] += lentSize / borrowerCount + remainderSize;
+                    remainderSize = 0;
+                }
+            }
+        }
+
+        for (int index = 0; index < caches.length; index++) {
+            caches[index].setMaxSize(Math.max(1, shardMaxSizes[index]));
         }
     }
 
@@ -131,15 +367,23 @@ public class LruDiskCache implements DiskCache {
         }
 
         // 这个方法性能优先，因此不检查缓存目录
+        DiskLruCache[] caches = this.caches;
         if (!checkDiskCache()) {
-            installDiskCache();
-            if (!checkDiskCache()) {
+            // 这个方法经常在主线程调用，而安装磁盘缓存要检查空间、解析日志文件，很慢，因此放到后台线程去安装，安装好之前都当作不存在
+            if (asyncInstall) {
+                installDiskCacheAsync();
+                SLog.fw(SLogType.CACHE, LOG_NAME, "Installing. Unable judge exist, uri=%s", uri);
                 return false;
             }
+            if (!ensureDiskCache(false)) {
+                return false;
+            }
+            caches = this.caches;
         }
 
+        String diskCacheKey = uriToDiskCacheKey(uri);
         try {
-            return cache.exist(uriToDiskCacheKey(uri));
+            return getShard(caches, diskCacheKey).exist(diskCacheKey);
         } catch (DiskLruCache.ClosedException e) {
             e.printStackTrace();
             return false;
@@ -149,8 +393,9 @@ public class LruDiskCache implements DiskCache {
         }
     }
 
+    // 只有安装磁盘缓存的时候才需要全局锁，读写各分片只用分片自己的锁
     @Override
-    public synchronized Entry get(String uri) {
+    public Entry get(String uri) {
         if (closed) {
             return null;
         }
@@ -160,16 +405,18 @@ public class LruDiskCache implements DiskCache {
             return null;
         }
 
+        DiskLruCache[] caches = this.caches;
         if (!checkDiskCache() || !checkCacheDir()) {
-            installDiskCache();
-            if (!checkDiskCache()) {
+            if (!ensureDiskCache(true)) {
                 return null;
             }
+            caches = this.caches;
         }
 
+        String diskCacheKey = uriToDiskCacheKey(uri);
         DiskLruCache.SimpleSnapshot snapshot = null;
         try {
-            snapshot = cache.getSimpleSnapshot(uriToDiskCacheKey(uri));
+            snapshot = getShard(caches, diskCacheKey).getSimpleSnapshot(diskCacheKey);
         } catch (IOException e) {
             e.printStackTrace();
         } catch (DiskLruCache.ClosedException e) {
@@ -179,7 +426,7 @@ public class LruDiskCache implements DiskCache {
     }
 
     @Override
-    public synchronized Editor edit(String uri) {
+    public Editor edit(String uri) {
         if (closed) {
             return null;
         }
@@ -189,27 +436,28 @@ public class LruDiskCache implements DiskCache {
             return null;
         }
 
+        DiskLruCache[] caches = this.caches;
         if (!checkDiskCache() || !checkCacheDir()) {
-            installDiskCache();
-            if (!checkDiskCache()) {
+            if (!ensureDiskCache(true)) {
                 return null;
             }
+            caches = this.caches;
         }
 
+        String diskCacheKey = uriToDiskCacheKey(uri);
         DiskLruCache.Editor diskEditor = null;
         try {
-            diskEditor = cache.edit(uriToDiskCacheKey(uri));
+            diskEditor = getShard(caches, diskCacheKey).edit(diskCacheKey);
         } catch (IOException e) {
             e.printStackTrace();
 
             // 发生异常的时候（比如SD卡被拔出，导致不能使用），尝试重装DiskLruCache，能显著提高遇错恢复能力
-            installDiskCache();
-            if (!checkDiskCache()) {
+            if (!reinstallDiskCache(caches)) {
                 return null;
             }
 
             try {
-                diskEditor = cache.edit(uriToDiskCacheKey(uri));
+                diskEditor = getShard(this.caches, diskCacheKey).edit(diskCacheKey);
             } catch (IOException e1) {
                 e1.printStackTrace();
             } catch (DiskLruCache.ClosedException e1) {
@@ -219,20 +467,19 @@ public class LruDiskCache implements DiskCache {
             e.printStackTrace();
 
             // 旧的关闭了，必须要重装DiskLruCache
-            installDiskCache();
-            if (!checkDiskCache()) {
+            if (!reinstallDiskCache(caches)) {
                 return null;
             }
 
             try {
-                diskEditor = cache.edit(uriToDiskCacheKey(uri));
+                diskEditor = getShard(this.caches, diskCacheKey).edit(diskCacheKey);
             } catch (IOException e1) {
                 e1.printStackTrace();
             } catch (DiskLruCache.ClosedException e1) {
                 e1.printStackTrace();
             }
         }
-        return diskEditor != null ? new LruDiskCacheEditor(diskEditor) : null;
+        return diskEditor != null ? new LruDiskCacheEditor(diskEditor, this) : null;
     }
 
     @Override
@@ -251,20 +498,29 @@ public class LruDiskCache implements DiskCache {
 //        if (SketchUtils.checkSuffix(uri, ".apk")) {
 //            uri += ".icon";
 //        }
+        UriNormalizer uriNormalizer = this.uriNormalizer;
+        if (uriNormalizer != null) {
+            uri = uriNormalizer.normalize(uri);
+        }
         return SketchMD5Utils.md5(uri);
     }
 
     @Override
-    public synchronized long getSize() {
+    public long getSize() {
         if (closed) {
             return 0;
         }
 
-        if (!checkDiskCache()) {
+        DiskLruCache[] caches = this.caches;
+        if (caches == null) {
             return 0;
         }
 
-        return cache.size();
+        long size = 0;
+        for (DiskLruCache cache : caches) {
+            size += cache.size();
+        }
+        return size;
     }
 
     @Override
@@ -282,19 +538,301 @@ public class LruDiskCache implements DiskCache {
         }
     }
 
+    /**
+     * 是否使用二进制格式的日志文件
+     */
+    @SuppressWarnings("unused")
+    public boolean isBinaryJournal() {
+        return binaryJournal;
+    }
+
+    /**
+     * 设置是否使用二进制格式的日志文件，二进制日志体积更小，缓存条目很多时打开速度更快，已有的日志文件会自动转换格式
+     *
+     * @param binaryJournal 使用二进制格式的日志文件
+     */
+    @SuppressWarnings("unused")
+    public synchronized void setBinaryJournal(boolean binaryJournal) {
+        if (this.binaryJournal == binaryJournal) {
+            return;
+        }
+
+        this.binaryJournal = binaryJournal;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setBinaryJournal. %s", binaryJournal);
+
+        // 已经安装了就重装一下，DiskLruCache打开的时候会转换日志格式
+        if (caches != null) {
+            installDiskCache();
+        }
+    }
+
+    /**
+     * 获取分片数量
+     */
+    @SuppressWarnings("unused")
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * 设置分片数量（默认为1，不分片）。分片后每个分片都有自己的目录、日志文件和锁，下载、再处理图片缓存以及预处理就不会再互相等待，
+     * 各分片的容量会根据实际用量动态分配。修改分片数量会丢弃已有的缓存
+     *
+     * @param shardCount 分片数量
+     */
+    @SuppressWarnings("unused")
+    public synchronized void setShardCount(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount < 1");
+        }
+        if (this.shardCount == shardCount) {
+            return;
+        }
+
+        this.shardCount = shardCount;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setShardCount. %d", shardCount);
+
+        // 已经安装了就重装一下，安装的时候会删除旧布局的缓存文件
+        if (caches != null) {
+            installDiskCache();
+        }
+    }
+
+    /**
+     * 是否在后台线程安装磁盘缓存
+     */
+    @SuppressWarnings("unused")
+    public boolean isAsyncInstall() {
+        return asyncInstall;
+    }
+
+    /**
+     * 设置是否在后台线程安装磁盘缓存（默认为false）。开启后exist()发现还没安装时会启动一个后台线程去安装并直接返回false，
+     * 不会阻塞主线程，调用方要用{@link #isInstalling()}区分是真的不存在还是还没安装好；get()和edit()一般在工作线程调用，会等安装完成后再执行
+     *
+     * @param asyncInstall 在后台线程安装磁盘缓存
+     */
+    @SuppressWarnings("unused")
+    public void setAsyncInstall(boolean asyncInstall) {
+        this.asyncInstall = asyncInstall;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setAsyncInstall. %s", asyncInstall);
+    }
+
+    /**
+     * 是否和其它进程共用缓存目录
+     */
+    @SuppressWarnings("unused")
+    public boolean isMultiProcess() {
+        return multiProcess;
+    }
+
+    /**
+     * 设置是否和其它进程共用缓存目录（默认为false，每个进程都有自己的缓存目录）。开启后缓存目录不再加上进程名，
+     * 各进程通过文件锁协调读写日志文件，一个进程下载好的图片在另一个进程里也能直接从磁盘缓存中读取，不用再下载一遍。
+     * 所有进程都要开启，并且分片数量、日志格式也要一致，开启后不再打包存储
+     *
+     * @param multiProcess 和其它进程共用缓存目录
+     */
+    @SuppressWarnings("unused")
+    public synchronized void setMultiProcess(boolean multiProcess) {
+        if (this.multiProcess == multiProcess) {
+            return;
+        }
+
+        this.multiProcess = multiProcess;
+        this.cacheDir = SketchUtils.getDefaultSketchCacheDir(context, DISK_CACHE_DIR_NAME, !multiProcess);
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setMultiProcess. %s", multiProcess);
+
+        // 已经安装了就重装一下，换到共用的缓存目录
+        if (caches != null) {
+            installDiskCache();
+        }
+    }
+
+    /**
+     * 是否开启了内容去重
+     */
+    @SuppressWarnings("unused")
+    public boolean isContentDedup() {
+        return contentDedup;
+    }
+
+    /**
+     * 设置是否开启内容去重（默认为false）。开启后下载的时候会顺便计算内容的MD5摘要，内容相同的图片即使uri不同也只存一份，
+     * 删除或淘汰的时候按引用计数处理。只在同一个分片内去重，已经共用的缓存关闭后依然共用
+     *
+     * @param contentDedup 开启内容去重
+     */
+    @SuppressWarnings("unused")
+    public synchronized void setContentDedup(boolean contentDedup) {
+        if (this.contentDedup == contentDedup) {
+            return;
+        }
+
+        this.contentDedup = contentDedup;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setContentDedup. %s", contentDedup);
+
+        DiskLruCache[] caches = this.caches;
+        if (caches != null) {
+            for (DiskLruCache cache : caches) {
+                cache.setContentDedup(contentDedup);
+            }
+        }
+    }
+
+    /**
+     * 获取uri规范化器
+     */
+    @SuppressWarnings("unused")
+    public UriNormalizer getUriNormalizer() {
+        return uriNormalizer;
+    }
+
+    /**
+     * 设置uri规范化器，生成缓存key之前先规范化uri，例如去掉每次都不一样的追踪参数，这样同一张图片的不同uri就能命中同一个缓存。
+     * 修改后已有的缓存可能就找不到了
+     *
+     * @param uriNormalizer uri规范化器，null表示不规范化
+     */
+    @SuppressWarnings("unused")
+    public void setUriNormalizer(UriNormalizer uriNormalizer) {
+        this.uriNormalizer = uriNormalizer;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setUriNormalizer. %s", uriNormalizer != null ? uriNormalizer.getClass().getSimpleName() : null);
+    }
+
+    @Override
+    public boolean isInstalling() {
+        return installing;
+    }
+
+    /**
+     * 获取最近一次安装磁盘缓存的耗时，包括创建缓存目录、检查空间以及解析日志文件
+     *
+     * @return 单位毫秒，-1表示还没安装过
+     */
+    @SuppressWarnings("unused")
+    public synchronized long getInstallTime() {
+        return installTime;
+    }
+
+    /**
+     * 获取打包存储的最大长度
+     */
+    @SuppressWarnings("unused")
+    public long getPackedMaxLength() {
+        return packedMaxLength;
+    }
+
+    /**
+     * 设置打包存储的最大长度（默认为0，不打包）。不超过这个长度的缓存（例如再处理过的缩略图、APK图标）不再单独存成一个文件，
+     * 而是追加到段文件中，这样就不用为每个小图都占用一个inode、目录项以及单独的打开关闭操作，段文件中的无效数据会在后台压缩掉
+     *
+     * @param packedMaxLength 打包存储的最大长度，单位字节
+     */
+    @SuppressWarnings("unused")
+    public synchronized void setPackedMaxLength(long packedMaxLength) {
+        if (this.packedMaxLength == packedMaxLength) {
+            return;
+        }
+
+        this.packedMaxLength = packedMaxLength;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setPackedMaxLength. %d", packedMaxLength);
+
+        DiskLruCache[] caches = this.caches;
+        if (caches != null) {
+            for (DiskLruCache cache : caches) {
+                cache.setPackedMaxLength(packedMaxLength);
+            }
+        }
+    }
+
+    /**
+     * 获取指定分类的最大容量
+     *
+     * @return 0：不限制
+     */
+    @SuppressWarnings("unused")
+    public long getCategoryMaxSize(Category category) {
+        return categoryMaxSizes[category.ordinal()];
+    }
+
+    /**
+     * 设置指定分类的最大容量（默认为0，不限制）。超出的部分会优先淘汰，这样一大批原图就不会把重新生成代价很高的再处理图片都挤出去了，
+     * 分片后每个分片各分一份
+     *
+     * @param category 分类
+     * @param maxSize  最大容量，单位字节，0表示不限制
+     */
+    @SuppressWarnings("unused")
+    public synchronized void setCategoryMaxSize(Category category, long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        if (categoryMaxSizes[category.ordinal()] == maxSize) {
+            return;
+        }
+
+        categoryMaxSizes[category.ordinal()] = maxSize;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setCategoryMaxSize. %s, %d", category.name(), maxSize);
+
+        DiskLruCache[] caches = this.caches;
+        if (caches != null) {
+            for (DiskLruCache cache : caches) {
+                cache.setCategoryMaxSize(category.ordinal(), maxSize / caches.length);
+            }
+        }
+    }
+
+    /**
+     * 获取指定分类已用容量
+     */
+    @SuppressWarnings("unused")
+    public long getCategorySize(Category category) {
+        DiskLruCache[] caches = this.caches;
+        if (closed || caches == null) {
+            return 0;
+        }
+
+        long size = 0;
+        for (DiskLruCache cache : caches) {
+            size += cache.getCategorySize(category.ordinal());
+        }
+        return size;
+    }
+
+    /**
+     * 获取指定分类自安装以来因空间不足被淘汰的缓存数量
+     */
+    @SuppressWarnings("unused")
+    public long getCategoryEvictionCount(Category category) {
+        DiskLruCache[] caches = this.caches;
+        if (closed || caches == null) {
+            return 0;
+        }
+
+        long count = 0;
+        for (DiskLruCache cache : caches) {
+            count += cache.getCategoryEvictionCount(category.ordinal());
+        }
+        return count;
+    }
+
     @Override
     public synchronized void clear() {
         if (closed) {
             return;
         }
 
-        if (cache != null) {
-            try {
-                cache.delete();
-            } catch (IOException e) {
-                e.printStackTrace();
+        DiskLruCache[] oldCaches = caches;
+        caches = null;
+        if (oldCaches != null) {
+            for (DiskLruCache cache : oldCaches) {
+                try {
+                    cache.delete();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
-            cache = null;
         }
 
         installDiskCache();
@@ -313,38 +851,62 @@ public class LruDiskCache implements DiskCache {
 
         closed = true;
 
-        if (cache != null) {
-            try {
-                cache.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            cache = null;
-        }
+        closeDiskCache();
     }
 
+    // 不加锁也不创建新对象，key不同但哈希到同一个锁上的操作会互相等待，所以只适合很快就能释放的锁
     @Override
-    public synchronized ReentrantLock getEditLock(String uri) {
-        if (editLockMap == null) {
-            synchronized (this) {
-                if (editLockMap == null) {
-                    editLockMap = new WeakHashMap<String, ReentrantLock>();
+    public ReentrantLock getEditLock(String key) {
+        int hash = normalizeLockKey(key).hashCode();
+        hash ^= hash >>> 16;
+        return stripedEditLocks[hash & (stripedEditLocks.length - 1)];
+    }
+
+    /**
+     * 锁的key也要规范化，否则规范化后共用一个缓存的uri会拿到不同的锁
+     */
+    private String normalizeLockKey(String key) {
+        UriNormalizer uriNormalizer = this.uriNormalizer;
+        return uriNormalizer != null ? uriNormalizer.normalize(key) : key;
+    }
+
+    // 只要还有线程持有或等待这个锁，锁就不会被回收，同一个key拿到的就始终是同一个锁，没人用了就回收掉
+    @Override
+    public ReentrantLock getExclusiveEditLock(String key) {
+        key = normalizeLockKey(key);
+        synchronized (exclusiveEditLockMap) {
+            EditLockReference reference;
+            while ((reference = (EditLockReference) exclusiveEditLockQueue.poll()) != null) {
+                if (exclusiveEditLockMap.get(reference.key) == reference) {
+                    exclusiveEditLockMap.remove(reference.key);
                 }
             }
+
+            reference = exclusiveEditLockMap.get(key);
+            ReentrantLock lock = reference != null ? reference.get() : null;
+            if (lock == null) {
+                lock = new ReentrantLock();
+                exclusiveEditLockMap.put(key, new EditLockReference(key, lock, exclusiveEditLockQueue));
+            }
+            return lock;
         }
+    }
 
-        ReentrantLock lock = editLockMap.get(uri);
-        if (lock == null) {
-            lock = new ReentrantLock();
-            editLockMap.put(uri, lock);
+    private static class EditLockReference extends WeakReference<ReentrantLock> {
+        private final String key;
+
+        EditLockReference(String key, ReentrantLock lock, ReferenceQueue<ReentrantLock> queue) {
+            super(lock, queue);
+            this.key = key;
         }
-        return lock;
     }
 
     @Override
     public String getKey() {
-        return String.format("%s(maxSize=%s,appVersionCode=%d,cacheDir=%s)",
-                LOG_NAME, Formatter.formatFileSize(context, maxSize), appVersionCode, cacheDir.getPath());
+        return String.format("%s(maxSize=%s,appVersionCode=%d,binaryJournal=%s,shardCount=%d,packedMaxLength=%d,categoryMaxSizes=%s,asyncInstall=%s,multiProcess=%s,contentDedup=%s,uriNormalizer=%s,cacheDir=%s)",
+                LOG_NAME, Formatter.formatFileSize(context, maxSize), appVersionCode, binaryJournal, shardCount, packedMaxLength,
+                Arrays.toString(categoryMaxSizes), asyncInstall, multiProcess, contentDedup,
+                uriNormalizer != null ? uriNormalizer.getClass().getSimpleName() : null, cacheDir.getPath());
     }
 
     public static class LruDiskCacheEntry implements Entry {
@@ -366,6 +928,11 @@ public class LruDiskCache implements DiskCache {
             return snapshot.getFile(0);
         }
 
+        @Override
+        public long getLength() {
+            return snapshot.getLength(0);
+        }
+
         @Override
         public String getUri() {
             return uri;
@@ -388,9 +955,15 @@ public class LruDiskCache implements DiskCache {
 
     public static class LruDiskCacheEditor implements Editor {
         private DiskLruCache.Editor diskEditor;
+        private LruDiskCache diskCache;
 
         public LruDiskCacheEditor(DiskLruCache.Editor diskEditor) {
+            this(diskEditor, null);
+        }
+
+        public LruDiskCacheEditor(DiskLruCache.Editor diskEditor, LruDiskCache diskCache) {
             this.diskEditor = diskEditor;
+            this.diskCache = diskCache;
         }
 
         @Override
@@ -398,9 +971,39 @@ public class LruDiskCache implements DiskCache {
             return diskEditor.newOutputStream(0);
         }
 
+        @Override
+        public FileChannel newFileChannel() throws IOException {
+            return diskEditor.newFileChannel(0);
+        }
+
+        @Override
+        public void setCategory(Category category) {
+            diskEditor.setCategory(category.ordinal());
+        }
+
+        @Override
+        public void setCost(long costMillis) {
+            diskEditor.setCost(costMillis);
+        }
+
+        @Override
+        public boolean isContentDigestRequired() {
+            return diskCache != null && diskCache.isContentDedup();
+        }
+
+        @Override
+        public void setContentDigest(String digest) {
+            diskEditor.setContentKey(digest);
+        }
+
         @Override
         public void commit() throws IOException, DiskLruCache.EditorChangedException, DiskLruCache.ClosedException, DiskLruCache.FileNotExistException {
             diskEditor.commit();
+
+            // 分片的用量变了，攒够一定次数后重新分配一下各分片的容量
+            if (diskCache != null) {
+                diskCache.onCommit();
+            }
         }
 
         @Override
@@ -30,6 +30,9 @@ public class BitmapDecodeResult implements DecodeResult {
 
     private boolean banProcess;
     private boolean processed;
+    private long decodeUseTime;
+    private long processUseTime;
+    private long sourceLength;
 
     public BitmapDecodeResult(ImageAttrs imageAttrs, Bitmap bitmap) {
         this.imageAttrs = imageAttrs;
@@ -73,6 +76,17 @@ public class BitmapDecodeResult implements DecodeResult {
         return this;
     }
 
+    @Override
+    public long getDecodeUseTime() {
+        return decodeUseTime;
+    }
+
+    @Override
+    public BitmapDecodeResult setDecodeUseTime(long decodeUseTime) {
+        this.decodeUseTime = decodeUseTime;
+        return this;
+    }
+
     @Override
     public void recycle(BitmapPool bitmapPool) {
         if (bitmap != null) {
@@ -87,4 +101,26 @@ public class BitmapDecodeResult implements DecodeResult {
     public void setBitmap(Bitmap bitmap) {
         this.bitmap = bitmap;
     }
+
+    /**
+     * 获取处理耗时，单位毫秒
+     */
+    public long getProcessUseTime() {
+        return processUseTime;
+    }
+
+    public void setProcessUseTime(long processUseTime) {
+        this.processUseTime = processUseTime;
+    }
+
+    /**
+     * 获取原图文件的长度，单位字节，未知时为0
+     */
+    public long getSourceLength() {
+        return sourceLength;
+    }
+
+    public void setSourceLength(long sourceLength) {
+        this.sourceLength = sourceLength;
+    }
 }
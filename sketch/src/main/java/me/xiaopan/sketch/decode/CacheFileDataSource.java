@@ -16,9 +16,15 @@
 
 package me.xiaopan.sketch.decode;
 
+import android.text.TextUtils;
+
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import me.xiaopan.sketch.cache.BitmapPool;
 import me.xiaopan.sketch.cache.DiskCache;
@@ -26,12 +32,14 @@ import me.xiaopan.sketch.drawable.ImageAttrs;
 import me.xiaopan.sketch.drawable.SketchGifDrawable;
 import me.xiaopan.sketch.drawable.SketchGifFactory;
 import me.xiaopan.sketch.request.ImageFrom;
+import me.xiaopan.sketch.util.SketchUtils;
 
-public class CacheFileDataSource implements DataSource {
+public class CacheFileDataSource implements FileDescriptorDataSource {
 
     private DiskCache.Entry diskCacheEntry;
     private ImageFrom imageFrom;
     private long length = -1;
+    private final FileDescriptorHolder fileDescriptorHolder = new FileDescriptorHolder();
 
     public CacheFileDataSource(DiskCache.Entry diskCacheEntry, ImageFrom imageFrom) {
         this.diskCacheEntry = diskCacheEntry;
@@ -40,22 +48,83 @@ public class CacheFileDataSource implements DataSource {
 
     @Override
     public InputStream getInputStream() throws IOException {
+        if (fileDescriptorHolder.isOpened()) {
+            return fileDescriptorHolder.newInputStream();
+        }
         return diskCacheEntry.newInputStream();
     }
 
+    // 打包存储的缓存没有单独的文件，打不开，只能用输入流
+    @Override
+    public boolean open() {
+        return fileDescriptorHolder.open(diskCacheEntry.getFile());
+    }
+
+    @Override
+    public FileDescriptor getFileDescriptor() {
+        return fileDescriptorHolder.getFileDescriptor();
+    }
+
+    @Override
+    public void close() {
+        fileDescriptorHolder.close();
+    }
+
     @Override
     public long getLength() throws IOException {
         if (length >= 0) {
             return length;
         }
 
-        length = diskCacheEntry.getFile().length();
+        length = diskCacheEntry.getLength();
         return length;
     }
 
     @Override
-    public File getFile(File outDir, String outName) {
-        return diskCacheEntry.getFile();
+    public File getFile(File outDir, String outName) throws IOException {
+        File file = diskCacheEntry.getFile();
+        if (file != null) {
+            return file;
+        }
+
+        // 打包存储的缓存没有单独的文件，只能输出到指定文件夹中
+        if (outDir == null) {
+            return null;
+        }
+
+        if (!outDir.exists() && !outDir.getParentFile().mkdirs()) {
+            return null;
+        }
+
+        File outFile;
+        if (!TextUtils.isEmpty(outName)) {
+            outFile = new File(outDir, outName);
+        } else {
+            outFile = new File(outDir, SketchUtils.generatorTempFileName(this, diskCacheEntry.getUri()));
+        }
+
+        InputStream inputStream = getInputStream();
+
+        OutputStream outputStream;
+        try {
+            outputStream = new FileOutputStream(outFile);
+        } catch (IOException e) {
+            SketchUtils.close(inputStream);
+            throw e;
+        }
+
+        byte[] data = new byte[1024];
+        int length;
+        try {
+            while ((length = inputStream.read(data)) != -1) {
+                outputStream.write(data, 0, length);
+            }
+        } finally {
+            SketchUtils.close(outputStream);
+            SketchUtils.close(inputStream);
+        }
+
+        return outFile;
     }
 
     @Override
@@ -70,7 +139,24 @@ public class CacheFileDataSource implements DataSource {
     @Override
     public SketchGifDrawable makeGifDrawable(String key, String uri, ImageAttrs imageAttrs, BitmapPool bitmapPool) {
         try {
-            return SketchGifFactory.createGifDrawable(key, uri, imageAttrs, getImageFrom(), bitmapPool, diskCacheEntry.getFile());
+            File file = diskCacheEntry.getFile();
+            if (file != null) {
+                return SketchGifFactory.createGifDrawable(key, uri, imageAttrs, getImageFrom(), bitmapPool, file);
+            }
+
+            // 打包存储的缓存都很小，直接读到内存里
+            InputStream inputStream = getInputStream();
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) getLength());
+            byte[] data = new byte[1024];
+            int length;
+            try {
+                while ((length = inputStream.read(data)) != -1) {
+                    outputStream.write(data, 0, length);
+                }
+            } finally {
+                SketchUtils.close(inputStream);
+            }
+            return SketchGifFactory.createGifDrawable(key, uri, imageAttrs, getImageFrom(), bitmapPool, outputStream.toByteArray());
         } catch (IOException e) {
             e.printStackTrace();
             return null;
@@ -29,6 +29,13 @@ public abstract class DecodeHelper {
     abstract DecodeResult decode(LoadRequest request, DataSource dataSource, ImageType imageType, BitmapFactory.Options boundOptions,
                                  BitmapFactory.Options decodeOptions, int exifOrientation) throws DecodeException;
 
+    /**
+     * 是否是可选的解码方式，可选的解码方式返回null时不算失败，继续交给后面的DecodeHelper解码
+     */
+    boolean isOptional() {
+        return false;
+    }
+
     protected void correctOrientation(ImageOrientationCorrector orientationCorrector, DecodeResult decodeResult,
                                       int exifOrientation, LoadRequest request) throws DecodeException {
         if (!(decodeResult instanceof BitmapDecodeResult)) {
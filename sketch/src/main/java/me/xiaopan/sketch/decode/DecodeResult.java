@@ -37,4 +37,11 @@ public interface DecodeResult {
     boolean isProcessed();
 
     DecodeResult setProcessed(boolean processed);
+
+    /**
+     * 获取解码耗时，单位毫秒
+     */
+    long getDecodeUseTime();
+
+    DecodeResult setDecodeUseTime(long decodeUseTime);
 }
@@ -24,6 +24,11 @@ import me.xiaopan.sketch.SLogType;
 public class DecodeTimeAnalyze {
     private volatile static long decodeCount;
     private volatile static long useTimeCount;
+    private volatile static long canceledCount;
+    private volatile static long canceledUseTimeCount;
+    private volatile static long fullSizeDecodeCount;
+    private volatile static long fullSizePixelCount;
+    private volatile static long fullSizeUseTimeCount;
     private static DecimalFormat decimalFormat;
 
     public long decodeStart() {
@@ -44,4 +49,65 @@ public class DecodeTimeAnalyze {
         SLog.fd(SLogType.REQUEST, logName, "decode use time %dms, average %sms. %s",
                 useTime, decimalFormat.format((double) useTimeCount / decodeCount), key);
     }
+
+    /**
+     * 记录解码过程中被取消的请求，这部分时间是白白浪费掉的
+     */
+    public synchronized void decodeCanceled(long startTime, String logName, String key) {
+        long useTime = System.currentTimeMillis() - startTime;
+        if ((Long.MAX_VALUE - canceledCount) < 1 || (Long.MAX_VALUE - canceledUseTimeCount) < useTime) {
+            canceledCount = 0;
+            canceledUseTimeCount = 0;
+        }
+        canceledCount++;
+        canceledUseTimeCount += useTime;
+        if (SLogType.TIME.isEnabled()) {
+            SLog.fd(SLogType.REQUEST, logName, "decode canceled, use time %dms, canceled count %d, total %dms. %s",
+                    useTime, canceledCount, canceledUseTimeCount, key);
+        }
+    }
+
+    /**
+     * 记录没有缩小的解码的耗时，用来估算读取已处理图片缓存的代价
+     *
+     * @param pixelCount 解码出来的像素数
+     * @param useTime    解码耗时，单位毫秒
+     */
+    public synchronized void fullSizeDecodeEnd(long pixelCount, long useTime) {
+        if ((Long.MAX_VALUE - fullSizePixelCount) < pixelCount || (Long.MAX_VALUE - fullSizeUseTimeCount) < useTime) {
+            fullSizeDecodeCount = 0;
+            fullSizePixelCount = 0;
+            fullSizeUseTimeCount = 0;
+        }
+        fullSizeDecodeCount++;
+        fullSizePixelCount += pixelCount;
+        fullSizeUseTimeCount += useTime;
+    }
+
+    /**
+     * 获取没有缩小的解码平均每百万像素的耗时，单位毫秒，样本太少时返回-1
+     */
+    public static float getFullSizeDecodeTimePerMegaPixel() {
+        long pixelCount = fullSizePixelCount;
+        if (fullSizeDecodeCount < 5 || pixelCount <= 0) {
+            return -1;
+        }
+        return (float) fullSizeUseTimeCount * 1000000 / pixelCount;
+    }
+
+    /**
+     * 获取解码过程中被取消的次数
+     */
+    @SuppressWarnings("unused")
+    public static long getCanceledCount() {
+        return canceledCount;
+    }
+
+    /**
+     * 获取解码过程中被取消的请求一共用了多少时间，单位毫秒
+     */
+    @SuppressWarnings("unused")
+    public static long getCanceledUseTimeCount() {
+        return canceledUseTimeCount;
+    }
 }
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.decode;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.SLogType;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.request.ImageFrom;
+import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.LoadRequest;
+import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.util.ExifInterface;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 边下载边解码，下载线程读到的数据同时写入磁盘缓存和这里，解码在单独的线程中进行，读不到数据时就等着，
+ * 这样最后一个字节下载完成后很快就能解码完成。只处理长度已知且较大的JPEG图片的普通解码，小图片省下的时间不值得多占一份内存，
+ * 其它情况还是等下载完成后再走正常的解码流程
+ */
+public class DownloadStreamDecoder implements Runnable {
+    private static final String LOG_NAME = "DownloadStreamDecoder";
+
+    // 解码线程在等待下载数据期间什么也不做，因此不占用本地任务线程，而是用单独的线程，同时进行的数量也要限制一下
+    private static final int MAX_RUNNING_COUNT = 2;
+    private static ThreadPoolExecutor executor;
+    // 小于这个长度的图片下载完后再解码也很快，没必要边下载边解码，这样还能通过FileChannel直接写入磁盘缓存
+    private static final int MIN_CONTENT_LENGTH = 256 * 1024;
+    // 数据要在Java堆中完整保存一份，因此长度不能太大
+    private static final int MAX_CONTENT_LENGTH = 8 * 1024 * 1024;
+
+    // 和ExifThumbnailDecodeHelper的判断保持一致，能用EXIF缩略图的就交给正常的解码流程
+    private static final ExifThumbnailDecodeHelper EXIF_THUMBNAIL_DECODE_HELPER = new ExifThumbnailDecodeHelper();
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_ABANDONED = 3;
+
+    private final LoadRequest request;
+    private final int contentLength;
+
+    private byte[] data;
+    private int length;
+    private boolean finished;
+    private boolean readFully;
+    private long finishTime;
+    private long waitTime;
+
+    private int state = STATE_WAITING;
+    private BitmapDecodeResult result;
+
+    private DownloadStreamDecoder(LoadRequest request, int contentLength) {
+        this.request = request;
+        this.contentLength = contentLength;
+        this.data = new byte[contentLength];
+    }
+
+    /**
+     * 这个请求能不能边下载边解码
+     *
+     * @param contentLength 文件总长度，未知时小于等于0
+     */
+    public static boolean canUse(LoadRequest request, long contentLength) {
+        LoadOptions loadOptions = request.getOptions();
+        return !request.isSync() && !loadOptions.isThumbnailMode() && loadOptions.getResize() == null
+                && contentLength >= MIN_CONTENT_LENGTH && contentLength <= getMaxContentLength()
+                && getExecutor().getActiveCount() < MAX_RUNNING_COUNT;
+    }
+
+    /**
+     * 最多同时有MAX_RUNNING_COUNT份数据在堆中，加起来不能超过最大可用内存的1/16，渐进式JPEG也用这个上限
+     */
+    static long getMaxContentLength() {
+        return Math.min(MAX_CONTENT_LENGTH, Runtime.getRuntime().maxMemory() / 32);
+    }
+
+    /**
+     * 创建并开始解码，长度不符合要求或同时进行的太多了就返回null
+     */
+    public static DownloadStreamDecoder start(LoadRequest request, int contentLength) {
+        if (contentLength < MIN_CONTENT_LENGTH || contentLength > getMaxContentLength()) {
+            return null;
+        }
+
+        DownloadStreamDecoder decoder = new DownloadStreamDecoder(request, contentLength);
+        try {
+            getExecutor().execute(decoder);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return decoder;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(0, MAX_RUNNING_COUNT, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "StreamDecodeThread");
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * 写入新下载的数据，在下载线程中执行，不会阻塞
+     */
+    public synchronized void write(byte[] buffer, int count) {
+        if (finished || data == null) {
+            return;
+        }
+
+        // 不是JPEG或者实际长度比声明的长，就放弃边下载边解码，交给正常的解码流程
+        boolean notJpeg = length == 0 && (count < 3 || (buffer[0] & 0xFF) != 0xFF || (buffer[1] & 0xFF) != 0xD8 || (buffer[2] & 0xFF) != 0xFF);
+        if (notJpeg || length + count > data.length) {
+            data = null;
+            notifyAll();
+            return;
+        }
+        System.arraycopy(buffer, 0, data, length, count);
+        length += count;
+        notifyAll();
+    }
+
+    /**
+     * 下载结束了，不论成功与否都要调用，否则解码线程会一直等待
+     *
+     * @param readFully 数据是否完整
+     */
+    public synchronized void finish(boolean readFully) {
+        if (finished) {
+            return;
+        }
+
+        this.finished = true;
+        this.readFully = readFully && data != null && length == contentLength;
+        this.finishTime = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * 数据是否已经完整收到了，收到了的话即使提交磁盘缓存失败了也能拿解码结果显示
+     */
+    public synchronized boolean isReadFully() {
+        return finished && readFully;
+    }
+
+    /**
+     * 等待并获取解码结果，还没开始解码的话就放弃，交给正常的解码流程
+     *
+     * @return 解码失败或已放弃时返回null
+     */
+    public synchronized BitmapDecodeResult awaitResult() {
+        if (state == STATE_WAITING) {
+            state = STATE_ABANDONED;
+            data = null;
+            return null;
+        }
+
+        while (state == STATE_RUNNING) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        BitmapDecodeResult decodeResult = result;
+        result = null;
+        return decodeResult;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (state != STATE_WAITING) {
+                return;
+            }
+            state = STATE_RUNNING;
+        }
+
+        // 等待下载数据的时间不算解码耗时，否则会把网络耗时也当成再处理缓存的代价
+        long startTime = System.currentTimeMillis();
+        BitmapDecodeResult decodeResult = null;
+        try {
+            decodeResult = decode();
+        } catch (Throwable e) {
+            if (!request.isCanceled()) {
+                e.printStackTrace();
+            }
+        }
+        long decodeUseTime;
+        synchronized (this) {
+            decodeUseTime = System.currentTimeMillis() - startTime - waitTime;
+        }
+
+        // 解码到EOI就结束了，这时下载线程可能还没确认读完，要等下载结束了才能判断数据是否完整
+        if (decodeResult != null) {
+            awaitFinished();
+        }
+
+        // 数据不完整的话解码结果是不可信的
+        if (decodeResult != null && (request.isCanceled() || !isReadFully())) {
+            decodeResult.recycle(request.getConfiguration().getBitmapPool());
+            decodeResult = null;
+        }
+
+        if (decodeResult != null) {
+            decodeResult.setDecodeUseTime(Math.max(decodeUseTime, 0));
+            if (SLogType.TIME.isEnabled()) {
+                SLog.fd(SLogType.TIME, LOG_NAME, "decode finished %dms after the last byte. useTime=%dms. %s",
+                        System.currentTimeMillis() - finishTime, decodeResult.getDecodeUseTime(), request.getKey());
+            }
+        }
+
+        synchronized (this) {
+            result = decodeResult;
+            state = STATE_DONE;
+            data = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 等待下载线程调用{@link #finish(boolean)}，请求取消了就不等了
+     */
+    private synchronized void awaitFinished() {
+        while (!finished && !request.isCanceled()) {
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    private BitmapDecodeResult decode() throws IOException {
+        LoadOptions loadOptions = request.getOptions();
+
+        // 先读取尺寸和类型，一般只需要文件头
+        BitmapFactory.Options boundOptions = new BitmapFactory.Options();
+        boundOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new StreamInputStream(), null, boundOptions);
+        if (boundOptions.outWidth <= 1 || boundOptions.outHeight <= 1 || boundOptions.outMimeType == null) {
+            return null;
+        }
+
+        ImageType imageType = ImageType.valueOfMimeType(boundOptions.outMimeType);
+        if (imageType != ImageType.JPEG || EXIF_THUMBNAIL_DECODE_HELPER.match(request, null, imageType, boundOptions)) {
+            return null;
+        }
+
+        ImageOrientationCorrector orientationCorrector = request.getConfiguration().getImageOrientationCorrector();
+        int exifOrientation = ExifInterface.ORIENTATION_UNDEFINED;
+        if (!loadOptions.isCorrectImageOrientationDisabled() && orientationCorrector.support(boundOptions.outMimeType)) {
+            exifOrientation = orientationCorrector.readExifOrientation(new StreamInputStream());
+        }
+        ImageAttrs imageAttrs = new ImageAttrs(boundOptions.outMimeType, boundOptions.outWidth, boundOptions.outHeight, exifOrientation);
+
+        int imageWidth = boundOptions.outWidth;
+        int imageHeight = boundOptions.outHeight;
+        orientationCorrector.rotateSize(boundOptions, exifOrientation);
+
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1 && loadOptions.isInPreferQualityOverSpeed()) {
+            decodeOptions.inPreferQualityOverSpeed = true;
+        }
+
+        Bitmap.Config config = loadOptions.getBitmapConfig();
+        if (config == null) {
+            config = imageType.getConfig(loadOptions.isLowQualityImage());
+        }
+        if (config != null) {
+            decodeOptions.inPreferredConfig = config;
+        }
+
+        MaxSize maxSize = loadOptions.getMaxSize();
+        if (maxSize != null) {
+            boolean supportLargeImage = SketchUtils.supportLargeImage(request, imageType);
+            ImageSizeCalculator imageSizeCalculator = request.getConfiguration().getImageSizeCalculator();
+            decodeOptions.inSampleSize = imageSizeCalculator.calculateInSampleSize(boundOptions.outWidth, boundOptions.outHeight,
+                    maxSize.getWidth(), maxSize.getHeight(), supportLargeImage);
+        }
+
+        BitmapPool bitmapPool = request.getConfiguration().getBitmapPool();
+        if (BitmapPoolUtils.sdkSupportInBitmap() && !loadOptions.isBitmapPoolDisabled()) {
+            BitmapPoolUtils.setInBitmapFromPool(decodeOptions, imageWidth, imageHeight, boundOptions.outMimeType, bitmapPool);
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(new StreamInputStream(), null, decodeOptions);
+        } catch (Throwable throwable) {
+            if (decodeOptions.inBitmap != null) {
+                BitmapPoolUtils.freeBitmapToPool(decodeOptions.inBitmap, bitmapPool);
+            }
+            throw throwable instanceof IOException ? (IOException) throwable : new IOException(throwable);
+        }
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getWidth() <= 1 || bitmap.getHeight() <= 1) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            } else if (decodeOptions.inBitmap != null) {
+                BitmapPoolUtils.freeBitmapToPool(decodeOptions.inBitmap, bitmapPool);
+            }
+            return null;
+        }
+
+        ProcessedImageCache processedImageCache = request.getConfiguration().getProcessedImageCache();
+        boolean processed = processedImageCache.canUseCacheProcessedImageInDisk(decodeOptions.inSampleSize);
+        BitmapDecodeResult decodeResult = new BitmapDecodeResult(imageAttrs, bitmap).setProcessed(processed);
+        decodeResult.setImageFrom(ImageFrom.NETWORK);
+        synchronized (this) {
+            decodeResult.setSourceLength(length);
+        }
+
+        Bitmap newBitmap = orientationCorrector.rotate(bitmap, exifOrientation, bitmapPool);
+        if (newBitmap != null && newBitmap != bitmap) {
+            BitmapPoolUtils.freeBitmapToPool(bitmap, bitmapPool);
+            if (newBitmap.isRecycled()) {
+                return null;
+            }
+            decodeResult.setBitmap(newBitmap);
+            decodeResult.setProcessed(true);
+        }
+
+        ImageDecodeUtils.decodeSuccess(decodeResult.getBitmap(), imageWidth, imageHeight, decodeOptions.inSampleSize, request, LOG_NAME);
+        return decodeResult;
+    }
+
+    /**
+     * 从头读取已下载的数据，读到末尾时等待下载线程写入更多数据，下载结束或请求取消了才结束
+     */
+    private class StreamInputStream extends InputStream {
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+
+            synchronized (DownloadStreamDecoder.this) {
+                while (position >= length && !finished && data != null) {
+                    if (request.isCanceled()) {
+                        throw new InterruptedIOException("request canceled");
+                    }
+                    long waitStartTime = System.currentTimeMillis();
+                    try {
+                        DownloadStreamDecoder.this.wait(100);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("interrupted");
+                    } finally {
+                        waitTime += System.currentTimeMillis() - waitStartTime;
+                    }
+                }
+                if (data == null || position >= length) {
+                    return -1;
+                }
+
+                int readCount = Math.min(count, length - position);
+                System.arraycopy(data, position, buffer, offset, readCount);
+                position += readCount;
+                return readCount;
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(Math.max(count, 0), 8 * 1024)];
+            long skipped = 0;
+            while (skipped < count) {
+                int readCount = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (readCount == -1) {
+                    break;
+                }
+                skipped += readCount;
+            }
+            return skipped;
+        }
+    }
+}
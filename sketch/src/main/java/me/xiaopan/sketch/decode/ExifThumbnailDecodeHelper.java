@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.decode;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.SLogType;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.request.ImageFrom;
+import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.LoadRequest;
+import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.request.Resize;
+import me.xiaopan.sketch.util.ExifInterface;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 相机拍的JPEG图片在EXIF中都内嵌了一张160x120左右的缩略图，目标尺寸很小时直接解码这张缩略图，就不用对上千万像素的原图做采样了。
+ * 没有缩略图、缩略图太小或者宽高比和原图不一致（有的相机会给16:9的照片加黑边）时返回null，交给后面的DecodeHelper解码原图
+ */
+public class ExifThumbnailDecodeHelper extends DecodeHelper {
+    private static final String LOG_NAME = "ExifThumbnailDecodeHelper";
+
+    /**
+     * 目标尺寸的最长边超过这个值就不再尝试缩略图了，常见的缩略图最大也就320x240
+     */
+    private static final int MAX_TARGET_SIZE = 400;
+
+    /**
+     * 允许缩略图比目标尺寸略小，最多放大这么多倍
+     */
+    private static final float MAX_UPSCALE = 1.25f;
+
+    /**
+     * 缩略图和原图宽高比允许的误差
+     */
+    private static final float MAX_ASPECT_RATIO_ERROR = 0.03f;
+
+    @Override
+    public boolean match(LoadRequest request, DataSource dataSource, ImageType imageType, BitmapFactory.Options boundOptions) {
+        LoadOptions loadOptions = request.getOptions();
+        if (imageType != ImageType.JPEG || loadOptions.isThumbnailMode()) {
+            return false;
+        }
+
+        int[] targetSize = getTargetSize(loadOptions);
+        if (targetSize == null || targetSize[0] <= 0 || targetSize[1] <= 0
+                || Math.max(targetSize[0], targetSize[1]) > MAX_TARGET_SIZE) {
+            return false;
+        }
+
+        // 原图不比目标尺寸大很多的话正常解码也很快，没必要再去读EXIF
+        return (long) boundOptions.outWidth * boundOptions.outHeight >= 16L * targetSize[0] * targetSize[1];
+    }
+
+    @Override
+    boolean isOptional() {
+        return true;
+    }
+
+    @Override
+    public DecodeResult decode(LoadRequest request, DataSource dataSource, ImageType imageType, BitmapFactory.Options boundOptions,
+                               BitmapFactory.Options decodeOptions, int exifOrientation) throws DecodeException {
+        byte[] thumbnailData = readThumbnailData(dataSource);
+        if (thumbnailData == null) {
+            if (SLogType.REQUEST.isEnabled()) {
+                SLog.fd(SLogType.REQUEST, LOG_NAME, "not found exif thumbnail. %s", request.getKey());
+            }
+            return null;
+        }
+
+        BitmapFactory.Options thumbnailBoundOptions = new BitmapFactory.Options();
+        thumbnailBoundOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(thumbnailData, 0, thumbnailData.length, thumbnailBoundOptions);
+        int thumbnailWidth = thumbnailBoundOptions.outWidth;
+        int thumbnailHeight = thumbnailBoundOptions.outHeight;
+        if (thumbnailWidth <= 1 || thumbnailHeight <= 1) {
+            return null;
+        }
+
+        // 缩略图和原图一样都没有旋转，所以要把目标尺寸转到原图的方向上再比较
+        int[] targetSize = getTargetSize(request.getOptions());
+        //noinspection ConstantConditions
+        int targetWidth = targetSize[0];
+        int targetHeight = targetSize[1];
+        int degrees = ImageOrientationCorrector.getExifOrientationDegrees(exifOrientation);
+        if (degrees == 90 || degrees == 270) {
+            targetWidth = targetSize[1];
+            targetHeight = targetSize[0];
+        }
+
+        float imageRatio = (float) boundOptions.outWidth / boundOptions.outHeight;
+        float thumbnailRatio = (float) thumbnailWidth / thumbnailHeight;
+        if (Math.abs(thumbnailRatio - imageRatio) > imageRatio * MAX_ASPECT_RATIO_ERROR) {
+            if (SLogType.REQUEST.isEnabled()) {
+                SLog.fd(SLogType.REQUEST, LOG_NAME, "exif thumbnail aspect ratio mismatch. thumbnailSize=%dx%d, imageSize=%dx%d. %s",
+                        thumbnailWidth, thumbnailHeight, boundOptions.outWidth, boundOptions.outHeight, request.getKey());
+            }
+            return null;
+        }
+
+        if (thumbnailWidth * MAX_UPSCALE < targetWidth || thumbnailHeight * MAX_UPSCALE < targetHeight) {
+            if (SLogType.REQUEST.isEnabled()) {
+                SLog.fd(SLogType.REQUEST, LOG_NAME, "exif thumbnail too small. thumbnailSize=%dx%d, targetSize=%dx%d. %s",
+                        thumbnailWidth, thumbnailHeight, targetWidth, targetHeight, request.getKey());
+            }
+            return null;
+        }
+
+        ImageSizeCalculator sizeCalculator = request.getConfiguration().getImageSizeCalculator();
+        decodeOptions.inSampleSize = sizeCalculator.calculateInSampleSize(thumbnailWidth, thumbnailHeight,
+                targetWidth, targetHeight, false);
+
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(thumbnailData, 0, thumbnailData.length, decodeOptions);
+        } catch (Throwable throwable) {
+            throwable.printStackTrace();
+        }
+
+        if (bitmap == null || bitmap.isRecycled() || bitmap.getWidth() <= 1 || bitmap.getHeight() <= 1) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            decodeOptions.inSampleSize = 1;
+            return null;
+        }
+
+        // 图片属性还是用原图的，这样显示出来的尺寸信息才是对的
+        ImageAttrs imageAttrs = new ImageAttrs(boundOptions.outMimeType, boundOptions.outWidth, boundOptions.outHeight, exifOrientation);
+        BitmapDecodeResult result = new BitmapDecodeResult(imageAttrs, bitmap);
+        result.setImageFrom(ImageFrom.EXIF_THUMBNAIL);
+
+        ImageOrientationCorrector orientationCorrector = request.getConfiguration().getImageOrientationCorrector();
+        correctOrientation(orientationCorrector, result, exifOrientation, request);
+
+        ImageDecodeUtils.decodeSuccess(bitmap, thumbnailWidth, thumbnailHeight, decodeOptions.inSampleSize, request, LOG_NAME);
+        return result;
+    }
+
+    /**
+     * 获取目标尺寸，优先使用resize
+     *
+     * @return null：没有设置resize和maxSize
+     */
+    private static int[] getTargetSize(LoadOptions loadOptions) {
+        Resize resize = loadOptions.getResize();
+        if (resize != null) {
+            return new int[]{resize.getWidth(), resize.getHeight()};
+        }
+
+        MaxSize maxSize = loadOptions.getMaxSize();
+        if (maxSize != null) {
+            return new int[]{maxSize.getWidth(), maxSize.getHeight()};
+        }
+
+        return null;
+    }
+
+    /**
+     * 读取EXIF中内嵌的JPEG缩略图，从输入流读取的时候ExifInterface会把缩略图数据保存在内存中
+     */
+    private static byte[] readThumbnailData(DataSource dataSource) {
+        InputStream inputStream = null;
+        try {
+            inputStream = dataSource.getInputStream();
+            ExifInterface exifInterface = new ExifInterface(inputStream);
+            return exifInterface.hasThumbnail() && exifInterface.isThumbnailCompressed() ? exifInterface.getThumbnail() : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+}
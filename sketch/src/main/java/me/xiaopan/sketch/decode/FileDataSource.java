@@ -17,6 +17,7 @@
 package me.xiaopan.sketch.decode;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,10 +28,11 @@ import me.xiaopan.sketch.drawable.SketchGifDrawable;
 import me.xiaopan.sketch.drawable.SketchGifFactory;
 import me.xiaopan.sketch.request.ImageFrom;
 
-public class FileDataSource implements DataSource {
+public class FileDataSource implements FileDescriptorDataSource {
 
     private File file;
     private long length = -1;
+    private final FileDescriptorHolder fileDescriptorHolder = new FileDescriptorHolder();
 
     public FileDataSource(File file) {
         this.file = file;
@@ -38,9 +40,27 @@ public class FileDataSource implements DataSource {
 
     @Override
     public InputStream getInputStream() throws IOException {
+        if (fileDescriptorHolder.isOpened()) {
+            return fileDescriptorHolder.newInputStream();
+        }
         return new FileInputStream(file);
     }
 
+    @Override
+    public boolean open() {
+        return fileDescriptorHolder.open(file);
+    }
+
+    @Override
+    public FileDescriptor getFileDescriptor() {
+        return fileDescriptorHolder.getFileDescriptor();
+    }
+
+    @Override
+    public void close() {
+        fileDescriptorHolder.close();
+    }
+
     @Override
     public synchronized long getLength() throws IOException {
         if (length >= 0) {
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.xiaopan.sketch.decode;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+
+/**
+ * 可以通过文件描述符解码的数据源。调用{@link #open()}后文件只打开一次，探测尺寸、读取EXIF方向以及解码都共用同一个文件描述符，
+ * 不用每次都重新打开文件、创建输入流，用完后要调用{@link #close()}关闭；没有打开时和普通数据源一样每次都创建新的输入流
+ */
+public interface FileDescriptorDataSource extends DataSource, Closeable {
+    /**
+     * 打开文件描述符，已经打开了就直接返回true
+     *
+     * @return false：没有可用的文件或打开失败，只能使用输入流
+     */
+    boolean open();
+
+    /**
+     * 获取文件描述符，读取位置已经重置到文件开头，可以直接交给BitmapFactory.decodeFileDescriptor()或BitmapRegionDecoder.newInstance()
+     *
+     * @return null：还没有打开
+     */
+    FileDescriptor getFileDescriptor();
+
+    /**
+     * 关闭文件描述符，之后又会每次都创建新的输入流
+     */
+    @Override
+    void close();
+}
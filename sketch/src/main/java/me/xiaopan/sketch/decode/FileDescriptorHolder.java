@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.xiaopan.sketch.decode;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 持有一个打开的文件，供{@link FileDescriptorDataSource}共用
+ */
+class FileDescriptorHolder {
+    private RandomAccessFile randomAccessFile;
+
+    synchronized boolean open(File file) {
+        if (randomAccessFile != null) {
+            return true;
+        }
+        if (file == null) {
+            return false;
+        }
+
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    synchronized boolean isOpened() {
+        return randomAccessFile != null;
+    }
+
+    synchronized FileDescriptor getFileDescriptor() {
+        if (randomAccessFile == null) {
+            return null;
+        }
+
+        // BitmapFactory和BitmapRegionDecoder都从当前位置开始读，而输入流可能已经读到中间了
+        try {
+            randomAccessFile.seek(0);
+            return randomAccessFile.getFD();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * 创建一个从文件开头读的输入流，关闭输入流并不会关闭文件
+     */
+    synchronized InputStream newInputStream() throws IOException {
+        if (randomAccessFile == null) {
+            throw new IOException("closed");
+        }
+        return new BufferedInputStream(new SharedFileInputStream(randomAccessFile), 8 * 1024);
+    }
+
+    synchronized void close() {
+        SketchUtils.close(randomAccessFile);
+        randomAccessFile = null;
+    }
+
+    /**
+     * 自己记录读取位置，每次读之前都先定位，这样多个输入流和文件描述符交替使用也不会互相影响
+     */
+    private static class SharedFileInputStream extends InputStream {
+        private final RandomAccessFile randomAccessFile;
+        private long position;
+        private long markPosition;
+
+        SharedFileInputStream(RandomAccessFile randomAccessFile) {
+            this.randomAccessFile = randomAccessFile;
+        }
+
+        @Override
+        public int read() throws IOException {
+            synchronized (randomAccessFile) {
+                randomAccessFile.seek(position);
+                int value = randomAccessFile.read();
+                if (value != -1) {
+                    position++;
+                }
+                return value;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            synchronized (randomAccessFile) {
+                randomAccessFile.seek(position);
+                int readCount = randomAccessFile.read(buffer, offset, count);
+                if (readCount > 0) {
+                    position += readCount;
+                }
+                return readCount;
+            }
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            if (count <= 0) {
+                return 0;
+            }
+            long skipCount = Math.min(count, Math.max(0, randomAccessFile.length() - position));
+            position += skipCount;
+            return skipCount;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, randomAccessFile.length() - position));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            markPosition = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = markPosition;
+        }
+
+        @Override
+        public void close() {
+            // 文件由FileDescriptorHolder统一关闭
+        }
+    }
+}
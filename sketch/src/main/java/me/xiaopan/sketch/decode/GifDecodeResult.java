@@ -28,6 +28,7 @@ public class GifDecodeResult implements DecodeResult {
 
     private boolean banProcess;
     private boolean processed;
+    private long decodeUseTime;
 
     public GifDecodeResult(ImageAttrs imageAttrs, SketchGifDrawable gifDrawable) {
         this.imageAttrs = imageAttrs;
@@ -71,6 +72,17 @@ public class GifDecodeResult implements DecodeResult {
         return this;
     }
 
+    @Override
+    public long getDecodeUseTime() {
+        return decodeUseTime;
+    }
+
+    @Override
+    public GifDecodeResult setDecodeUseTime(long decodeUseTime) {
+        this.decodeUseTime = decodeUseTime;
+        return this;
+    }
+
     @Override
     public void recycle(BitmapPool bitmapPool) {
         if (gifDrawable != null) {
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.decode;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 通过文件头判断PNG和WebP图片有没有透明通道，没有透明通道的图片可以用RGB_565解码，内存占用减半
+ */
+public class ImageAlphaDetector {
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int PNG_COLOR_TYPE_GRAY = 0;
+    private static final int PNG_COLOR_TYPE_RGB = 2;
+    private static final int PNG_COLOR_TYPE_PALETTE = 3;
+
+    private static final int WEBP_VP8X_FLAG_ALPHA = 0x10;
+    private static final int WEBP_VP8L_SIGNATURE = 0x2F;
+
+    /**
+     * 头部chunk最多读这么多，再往后还没找到结果就当作有透明通道
+     */
+    private static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+    private ImageAlphaDetector() {
+    }
+
+    /**
+     * 判断图片是否是不透明的，只支持PNG和WebP，读取失败或者无法确定时都返回false
+     *
+     * @param imageType  图片类型
+     * @param dataSource 数据源
+     * @return true：确定没有透明像素
+     */
+    public static boolean isOpaque(ImageType imageType, DataSource dataSource) {
+        if (imageType != ImageType.PNG && imageType != ImageType.WEBP) {
+            return false;
+        }
+
+        InputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(dataSource.getInputStream(), 1024);
+            return imageType == ImageType.PNG ? isOpaquePng(inputStream) : isOpaqueWebp(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+    }
+
+    /**
+     * 根据IHDR中的颜色类型判断，灰度、RGB以及调色板类型的图片只要在IDAT之前没有tRNS块就是不透明的
+     */
+    public static boolean isOpaquePng(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[13];
+        if (!readFully(inputStream, buffer, PNG_SIGNATURE.length)) {
+            return false;
+        }
+        for (int index = 0; index < PNG_SIGNATURE.length; index++) {
+            if (buffer[index] != PNG_SIGNATURE[index]) {
+                return false;
+            }
+        }
+
+        long readLength = PNG_SIGNATURE.length;
+        boolean readHeader = false;
+        while (readLength < MAX_HEADER_LENGTH) {
+            if (!readFully(inputStream, buffer, 8)) {
+                return false;
+            }
+            long chunkLength = readInt(buffer, 0) & 0xFFFFFFFFL;
+            String chunkType = new String(buffer, 4, 4, "US-ASCII");
+            readLength += 8;
+
+            if (!readHeader) {
+                // IHDR必须是第一个块
+                if (!"IHDR".equals(chunkType) || chunkLength != 13 || !readFully(inputStream, buffer, 13)) {
+                    return false;
+                }
+                int colorType = buffer[9] & 0xFF;
+                if (colorType != PNG_COLOR_TYPE_GRAY && colorType != PNG_COLOR_TYPE_RGB && colorType != PNG_COLOR_TYPE_PALETTE) {
+                    return false;
+                }
+                readHeader = true;
+                chunkLength -= 13;
+            } else if ("tRNS".equals(chunkType)) {
+                return false;
+            } else if ("IDAT".equals(chunkType)) {
+                return true;
+            }
+
+            // 跳过数据和CRC
+            if (!skipFully(inputStream, chunkLength + 4)) {
+                return false;
+            }
+            readLength += chunkLength + 4;
+        }
+        return false;
+    }
+
+    /**
+     * 简单格式（VP8）不支持透明；无损格式（VP8L）头部有是否使用了透明通道的标记；扩展格式（VP8X）头部有透明标记
+     */
+    public static boolean isOpaqueWebp(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[12];
+        if (!readFully(inputStream, buffer, 12)) {
+            return false;
+        }
+        if (buffer[0] != 'R' || buffer[1] != 'I' || buffer[2] != 'F' || buffer[3] != 'F'
+                || buffer[8] != 'W' || buffer[9] != 'E' || buffer[10] != 'B' || buffer[11] != 'P') {
+            return false;
+        }
+
+        if (!readFully(inputStream, buffer, 8)) {
+            return false;
+        }
+        String chunkType = new String(buffer, 0, 4, "US-ASCII");
+        if ("VP8 ".equals(chunkType)) {
+            return true;
+        } else if ("VP8L".equals(chunkType)) {
+            // 1字节签名，然后是14位宽、14位高和1位alpha_is_used，都是小端
+            if (!readFully(inputStream, buffer, 5) || (buffer[0] & 0xFF) != WEBP_VP8L_SIGNATURE) {
+                return false;
+            }
+            return (buffer[4] & 0x10) == 0;
+        } else if ("VP8X".equals(chunkType)) {
+            if (!readFully(inputStream, buffer, 1)) {
+                return false;
+            }
+            return (buffer[0] & WEBP_VP8X_FLAG_ALPHA) == 0;
+        } else {
+            return false;
+        }
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int readLength = inputStream.read(buffer, offset, length - offset);
+            if (readLength == -1) {
+                return false;
+            }
+            offset += readLength;
+        }
+        return true;
+    }
+
+    private static boolean skipFully(InputStream inputStream, long length) throws IOException {
+        while (length > 0) {
+            long skipped = inputStream.skip(length);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.decode;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.SLogType;
+import me.xiaopan.sketch.cache.DiskCache;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.util.ExifInterface;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * 图片属性索引，记录本地文件和磁盘缓存中图片的宽、高、类型、方向以及是否透明，并持久化到磁盘。同一张图片再次解码时就不用再探测尺寸、读取EXIF方向、检测透明通道了，
+ * 还可以在显示之前用来预留宽高比。本地文件用路径、修改时间和长度作为key，文件变了自然就找不到了
+ */
+public class ImageAttrsIndex implements Identifier {
+    private static final String LOG_NAME = "ImageAttrsIndex";
+    private static final String INDEX_DIR_NAME = "sketch_image_attrs";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final int INDEX_FILE_MAGIC = 0x53494149; // "SIAI"
+    private static final int INDEX_FILE_VERSION = 2;   // 版本2增加了opacity
+    private static final int INDEX_FILE_VERSION_1 = 1;
+    private static final long SAVE_DELAY_MILLIS = 3000;
+
+    /**
+     * 读取尺寸时没有读取方向，下次需要方向时再读
+     */
+    private static final int ORIENTATION_UNKNOWN = -1;
+
+    private Context context;
+    private int maxCount;
+    private boolean disabled;
+    private boolean loaded;
+    private boolean saveScheduled;
+    private final LinkedHashMap<String, ImageAttrs> attrsMap = new LinkedHashMap<String, ImageAttrs>(0, 0.75f, true);
+    private final ScheduledThreadPoolExecutor saveExecutor;
+    private final Runnable saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    public ImageAttrsIndex(Context context, int maxCount) {
+        this.context = context.getApplicationContext();
+        this.maxCount = maxCount;
+        this.saveExecutor = new ScheduledThreadPoolExecutor(1);
+        this.saveExecutor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        this.saveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 生成索引key，只有本地文件和磁盘缓存中的图片才能生成
+     *
+     * @return null：不支持这种数据源
+     */
+    public static String makeKey(DataSource dataSource) {
+        File file = null;
+        if (dataSource instanceof FileDataSource) {
+            file = ((FileDataSource) dataSource).getFile(null, null);
+        } else if (dataSource instanceof CacheFileDataSource) {
+            DiskCache.Entry diskCacheEntry = ((CacheFileDataSource) dataSource).getDiskCacheEntry();
+            file = diskCacheEntry.getFile();
+            if (file == null) {
+                // 打包存储的缓存没有单独的文件，重新缓存后长度一般也会变
+                return "cache:" + diskCacheEntry.getUri() + ":" + diskCacheEntry.getLength();
+            }
+        }
+
+        if (file == null) {
+            return null;
+        }
+
+        return "file:" + file.getPath() + ":" + file.lastModified() + ":" + file.length();
+    }
+
+    /**
+     * 读取图片的宽、高、类型和方向，索引中有就直接返回，没有就探测尺寸、读取方向后存入索引
+     *
+     * @param dataSource                      数据源
+     * @param orientationCorrector            用来读取方向
+     * @param correctImageOrientationDisabled 禁止纠正方向，这时不读取方向，返回的方向是ExifInterface.ORIENTATION_UNDEFINED
+     * @return 宽高都是图片的原始尺寸，没有根据方向旋转；解码失败时宽高都是-1，类型是null
+     * @throws IOException 数据源异常
+     */
+    public ImageAttrs readImageAttrs(DataSource dataSource, ImageOrientationCorrector orientationCorrector,
+                                     boolean correctImageOrientationDisabled) throws IOException {
+        String key = !disabled ? makeKey(dataSource) : null;
+        ImageAttrs imageAttrs = key != null ? get(key) : null;
+
+        if (imageAttrs == null) {
+            BitmapFactory.Options boundOptions = new BitmapFactory.Options();
+            boundOptions.inJustDecodeBounds = true;
+            ImageDecodeUtils.decodeBitmap(dataSource, boundOptions);
+            imageAttrs = new ImageAttrs(boundOptions.outMimeType, boundOptions.outWidth, boundOptions.outHeight, ORIENTATION_UNKNOWN);
+
+            // 解码失败的不记录，下次还要再试
+            if (key != null && (boundOptions.outMimeType == null || boundOptions.outWidth <= 1 || boundOptions.outHeight <= 1)) {
+                key = null;
+            }
+        }
+
+        if (correctImageOrientationDisabled) {
+            if (key != null && imageAttrs.getExifOrientation() == ORIENTATION_UNKNOWN) {
+                put(key, imageAttrs);
+            }
+            return new ImageAttrs(imageAttrs.getMimeType(), imageAttrs.getWidth(), imageAttrs.getHeight(), ExifInterface.ORIENTATION_UNDEFINED);
+        }
+
+        if (imageAttrs.getExifOrientation() == ORIENTATION_UNKNOWN) {
+            int exifOrientation = orientationCorrector.readExifOrientation(imageAttrs.getMimeType(), dataSource);
+            int opacity = imageAttrs.getOpacity();
+            imageAttrs = new ImageAttrs(imageAttrs.getMimeType(), imageAttrs.getWidth(), imageAttrs.getHeight(), exifOrientation);
+            imageAttrs.setOpacity(opacity);
+            if (key != null) {
+                put(key, imageAttrs);
+            }
+        }
+
+        return imageAttrs;
+    }
+
+    /**
+     * 记录在别处读取的图片属性，例如边下载边解码时读到的，索引中已经有了就不再记录
+     *
+     * @param dataSource                      数据源
+     * @param imageAttrs                      图片属性
+     * @param correctImageOrientationDisabled 读取时禁止了纠正方向，这时方向是不可信的
+     */
+    public void record(DataSource dataSource, ImageAttrs imageAttrs, boolean correctImageOrientationDisabled) {
+        String key = !disabled ? makeKey(dataSource) : null;
+        if (key == null || get(key) != null) {
+            return;
+        }
+
+        int exifOrientation = correctImageOrientationDisabled ? ORIENTATION_UNKNOWN : imageAttrs.getExifOrientation();
+        ImageAttrs newImageAttrs = new ImageAttrs(imageAttrs.getMimeType(), imageAttrs.getWidth(), imageAttrs.getHeight(), exifOrientation);
+        newImageAttrs.setOpacity(imageAttrs.getOpacity());
+        put(key, newImageAttrs);
+    }
+
+    /**
+     * 判断PNG和WebP图片是否不透明，索引中有检测结果就直接返回，没有就检测后存入索引
+     *
+     * @param dataSource 数据源
+     * @param imageType  图片类型
+     * @return true：确定没有透明像素
+     */
+    public boolean isOpaque(DataSource dataSource, ImageType imageType) {
+        if (imageType != ImageType.PNG && imageType != ImageType.WEBP) {
+            return false;
+        }
+
+        String key = !disabled ? makeKey(dataSource) : null;
+        ImageAttrs imageAttrs = key != null ? get(key) : null;
+        if (imageAttrs != null && imageAttrs.getOpacity() != ImageAttrs.OPACITY_UNKNOWN) {
+            return imageAttrs.getOpacity() == ImageAttrs.OPACITY_OPAQUE;
+        }
+
+        boolean opaque = ImageAlphaDetector.isOpaque(imageType, dataSource);
+        if (imageAttrs != null) {
+            imageAttrs.setOpacity(opaque ? ImageAttrs.OPACITY_OPAQUE : ImageAttrs.OPACITY_TRANSLUCENT);
+            put(key, imageAttrs);
+        }
+        return opaque;
+    }
+
+    /**
+     * 从索引中获取图片属性
+     *
+     * @param key {@link #makeKey(DataSource)}生成的key
+     * @return null：没有
+     */
+    public ImageAttrs get(String key) {
+        if (disabled) {
+            return null;
+        }
+
+        synchronized (attrsMap) {
+            ensureLoaded();
+            return attrsMap.get(key);
+        }
+    }
+
+    /**
+     * 存入索引，稍后会在后台线程中保存到磁盘
+     *
+     * @param key {@link #makeKey(DataSource)}生成的key
+     */
+    public void put(String key, ImageAttrs imageAttrs) {
+        if (disabled) {
+            return;
+        }
+
+        synchronized (attrsMap) {
+            ensureLoaded();
+            attrsMap.put(key, imageAttrs);
+            trimToCount();
+
+            if (!saveScheduled) {
+                saveScheduled = true;
+                saveExecutor.schedule(saveRunnable, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void trimToCount() {
+        while (attrsMap.size() > maxCount) {
+            String eldestKey = attrsMap.keySet().iterator().next();
+            attrsMap.remove(eldestKey);
+        }
+    }
+
+    private File getIndexFile() {
+        return new File(SketchUtils.getDefaultSketchCacheDir(context, INDEX_DIR_NAME, true), INDEX_FILE_NAME);
+    }
+
+    /**
+     * 第一次使用的时候才从磁盘读取，调用者要持有attrsMap的锁
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 8 * 1024));
+            int version = inputStream.readInt() == INDEX_FILE_MAGIC ? inputStream.readInt() : -1;
+            if (version != INDEX_FILE_VERSION && version != INDEX_FILE_VERSION_1) {
+                SLog.fw(SLogType.CACHE, LOG_NAME, "unknown index file. %s", indexFile.getPath());
+                return;
+            }
+
+            int count = inputStream.readInt();
+            for (int index = 0; index < count; index++) {
+                String key = inputStream.readUTF();
+                String mimeType = inputStream.readUTF();
+                int width = inputStream.readInt();
+                int height = inputStream.readInt();
+                int exifOrientation = inputStream.readInt();
+                ImageAttrs imageAttrs = new ImageAttrs(mimeType, width, height, exifOrientation);
+                if (version != INDEX_FILE_VERSION_1) {
+                    imageAttrs.setOpacity(inputStream.readByte());
+                }
+                attrsMap.put(key, imageAttrs);
+            }
+            trimToCount();
+        } catch (IOException e) {
+            // 索引只是加速用的，坏了就从头再来
+            e.printStackTrace();
+            attrsMap.clear();
+        } finally {
+            SketchUtils.close(inputStream);
+        }
+
+        if (SLogType.CACHE.isEnabled()) {
+            SLog.fi(SLogType.CACHE, LOG_NAME, "load. count=%d, useTime=%dms", attrsMap.size(), System.currentTimeMillis() - startTime);
+        }
+    }
+
+    /**
+     * 先写到临时文件再替换，写到一半被杀也不会损坏旧索引
+     */
+    private void save() {
+        List<Map.Entry<String, ImageAttrs>> entries;
+        synchronized (attrsMap) {
+            saveScheduled = false;
+            entries = new ArrayList<Map.Entry<String, ImageAttrs>>(attrsMap.entrySet());
+        }
+
+        File indexFile = getIndexFile();
+        File parentDir = indexFile.getParentFile();
+        if (!parentDir.exists() && !parentDir.mkdirs()) {
+            SLog.fw(SLogType.CACHE, LOG_NAME, "create index dir failed. %s", parentDir.getPath());
+            return;
+        }
+
+        File tempFile = new File(parentDir, INDEX_FILE_NAME + ".tmp");
+        DataOutputStream outputStream = null;
+        boolean success = false;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 8 * 1024));
+            outputStream.writeInt(INDEX_FILE_MAGIC);
+            outputStream.writeInt(INDEX_FILE_VERSION);
+            outputStream.writeInt(entries.size());
+            for (Map.Entry<String, ImageAttrs> entry : entries) {
+                ImageAttrs imageAttrs = entry.getValue();
+                outputStream.writeUTF(entry.getKey());
+                outputStream.writeUTF(imageAttrs.getMimeType());
+                outputStream.writeInt(imageAttrs.getWidth());
+                outputStream.writeInt(imageAttrs.getHeight());
+                outputStream.writeInt(imageAttrs.getExifOrientation());
+                outputStream.writeByte(imageAttrs.getOpacity());
+            }
+            outputStream.flush();
+            success = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            SketchUtils.close(outputStream);
+        }
+
+        if (!success || !tempFile.renameTo(indexFile)) {
+            SketchUtils.deleteFile(tempFile);
+        }
+    }
+
+    /**
+     * 获取最多记录多少张图片
+     */
+    @SuppressWarnings("unused")
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * 是否禁用了
+     */
+    @SuppressWarnings("unused")
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    /**
+     * 设置禁用，禁用后每次解码都要重新探测尺寸、读取方向
+     *
+     * @param disabled 禁用
+     */
+    @SuppressWarnings("unused")
+    public void setDisabled(boolean disabled) {
+        this.disabled = disabled;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setDisabled. %s", disabled);
+    }
+
+    /**
+     * 清空索引
+     */
+    @SuppressWarnings("unused")
+    public void clear() {
+        synchronized (attrsMap) {
+            loaded = true;
+            attrsMap.clear();
+            SketchUtils.deleteFile(getIndexFile());
+        }
+    }
+
+    @Override
+    public String getKey() {
+        return String.format("%s(maxCount=%d,disabled=%s)", LOG_NAME, maxCount, disabled);
+    }
+}
@@ -24,8 +24,11 @@ import android.graphics.Rect;
 import android.os.Build;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 
 import me.xiaopan.sketch.ErrorTracker;
 import me.xiaopan.sketch.SLog;
@@ -39,7 +42,20 @@ import me.xiaopan.sketch.util.SketchUtils;
 
 public class ImageDecodeUtils {
 
+    /**
+     * 获取打开的文件描述符，没有就返回null
+     */
+    static FileDescriptor getOpenedFileDescriptor(DataSource dataSource) {
+        return dataSource instanceof FileDescriptorDataSource ? ((FileDescriptorDataSource) dataSource).getFileDescriptor() : null;
+    }
+
     public static Bitmap decodeBitmap(DataSource dataSource, BitmapFactory.Options options) throws IOException {
+        // 已经打开了文件描述符就直接解码，不用再创建输入流
+        FileDescriptor fileDescriptor = getOpenedFileDescriptor(dataSource);
+        if (fileDescriptor != null) {
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
+
         InputStream inputStream = null;
         Bitmap bitmap = null;
 
@@ -53,33 +69,134 @@ public class ImageDecodeUtils {
         return bitmap;
     }
 
-    public static Bitmap decodeRegionBitmap(DataSource dataSource, Rect srcRect, BitmapFactory.Options options) {
+    /**
+     * 为请求解码，解码过程中请求被取消了会尽快中断解码。7.0以下通过requestCancelDecode()中断，
+     * 7.0开始requestCancelDecode()不再起作用，只能通过输入流中断，所以不再使用文件描述符解码
+     */
+    public static Bitmap decodeBitmap(LoadRequest request, DataSource dataSource, BitmapFactory.Options options) throws IOException {
+        request.setDecodingOptions(options);
+        try {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+                return decodeBitmap(dataSource, options);
+            }
+
+            InputStream inputStream = null;
+            try {
+                inputStream = new CancelableInputStream(dataSource.getInputStream(), request);
+                return BitmapFactory.decodeStream(inputStream, null, options);
+            } finally {
+                SketchUtils.close(inputStream);
+            }
+        } finally {
+            request.setDecodingOptions(null);
+        }
+    }
+
+    /**
+     * 读取区域，BitmapRegionDecoder从缓存中获取，用完不回收，同一个文件下次读取区域或者查看大图时还可以接着用。
+     * BitmapRegionDecoder是共用的，不能关闭它的输入流，所以只能在7.0以下通过requestCancelDecode()中断
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    public static Bitmap decodeRegionBitmap(LoadRequest request, DataSource dataSource,
+                                            Rect srcRect, BitmapFactory.Options options) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
             return null;
         }
 
-        InputStream inputStream;
+        RegionDecoderCache.Ref regionDecoderRef;
         try {
-            inputStream = dataSource.getInputStream();
+            regionDecoderRef = request.getConfiguration().getRegionDecoderCache().acquire(dataSource);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
 
-        BitmapRegionDecoder regionDecoder;
+        request.setDecodingOptions(options);
         try {
-            regionDecoder = BitmapRegionDecoder.newInstance(inputStream, false);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+            return regionDecoderRef.getDecoder().decodeRegion(srcRect, options);
         } finally {
-            SketchUtils.close(inputStream);
+            request.setDecodingOptions(null);
+            regionDecoderRef.release();
         }
+    }
 
-        Bitmap bitmap = regionDecoder.decodeRegion(srcRect, options);
-        regionDecoder.recycle();
-        SketchUtils.close(inputStream);
-        return bitmap;
+    /**
+     * 检查请求是否在解码过程中被取消了，取消了的话就回收解码结果或者没用上的inBitmap
+     *
+     * @return true：已取消
+     */
+    static boolean decodeCanceled(LoadRequest request, Bitmap bitmap, BitmapFactory.Options options, String logName) {
+        if (!request.isCanceled()) {
+            return false;
+        }
+
+        BitmapPool bitmapPool = request.getConfiguration().getBitmapPool();
+        if (bitmap != null && !bitmap.isRecycled()) {
+            BitmapPoolUtils.freeBitmapToPool(bitmap, bitmapPool);
+        } else if (options.inBitmap != null && !options.inBitmap.isRecycled()) {
+            BitmapPoolUtils.freeBitmapToPool(options.inBitmap, bitmapPool);
+        }
+        options.inBitmap = null;
+
+        if (SLogType.REQUEST.isEnabled()) {
+            SLog.fw(SLogType.REQUEST, logName, "decode canceled. %s", request.getKey());
+        }
+        return true;
+    }
+
+    /**
+     * 请求取消后再读取就抛异常，让解码器尽快结束
+     */
+    private static class CancelableInputStream extends FilterInputStream {
+        private LoadRequest request;
+
+        CancelableInputStream(InputStream in, LoadRequest request) {
+            super(in);
+            this.request = request;
+        }
+
+        private void checkCanceled() throws IOException {
+            if (request.isCanceled()) {
+                throw new InterruptedIOException("decode canceled");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCanceled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCanceled();
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkCanceled();
+            return super.skip(n);
+        }
+    }
+
+    /**
+     * 创建BitmapRegionDecoder，已经打开了文件描述符就直接用，BitmapRegionDecoder会复制一个文件描述符，所以之后可以放心关闭数据源
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    public static BitmapRegionDecoder newRegionDecoder(DataSource dataSource) throws IOException {
+        FileDescriptor fileDescriptor = getOpenedFileDescriptor(dataSource);
+        if (fileDescriptor != null) {
+            return BitmapRegionDecoder.newInstance(fileDescriptor, false);
+        }
+
+        InputStream inputStream = null;
+        try {
+            inputStream = dataSource.getInputStream();
+            return BitmapRegionDecoder.newInstance(inputStream, false);
+        } finally {
+            SketchUtils.close(inputStream);
+        }
     }
 
     static void decodeSuccess(Bitmap bitmap, int outWidth, int outHeight, int inSampleSize, LoadRequest loadRequest, String logName) {
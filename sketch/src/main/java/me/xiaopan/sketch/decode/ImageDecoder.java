@@ -27,8 +27,13 @@ import java.util.List;
 import me.xiaopan.sketch.Identifier;
 import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.SLogType;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.request.LoadOptions;
 import me.xiaopan.sketch.request.LoadRequest;
-import me.xiaopan.sketch.util.ExifInterface;
+import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.util.SketchUtils;
 
 /**
  * 图片解码器，读取bitmap之前执行计算采样比例、选择合适的config、读取方向、寻找可复用的bitmap等操作，之后进行方向纠正、处理、缓存等操作
@@ -36,6 +41,12 @@ import me.xiaopan.sketch.util.ExifInterface;
 public class ImageDecoder implements Identifier {
     private static final String LOG_NAME = "ImageDecoder";
 
+    // 预览图相对于完整图片的缩小倍数，超大图片缩小的更多
+    private static final int PREVIEW_IN_SAMPLE_SCALE = 4;
+    private static final int PREVIEW_IN_SAMPLE_SCALE_LARGE_IMAGE = 8;
+    // 原图像素数少于这个值时完整图片很快就能解码出来，再解码一次预览图反而更慢
+    private static final long PREVIEW_MIN_PIXEL_COUNT = 1024 * 1024;
+
     private DecodeTimeAnalyze timeAnalyze = new DecodeTimeAnalyze();
     private List<DecodeHelper> decodeHelperList;
     private List<ResultProcessor> resultProcessorList;
@@ -46,7 +57,9 @@ public class ImageDecoder implements Identifier {
 
         decodeHelperList.add(new ProcessedCacheDecodeHelper());
         decodeHelperList.add(new GifDecodeHelper());
+        decodeHelperList.add(new ExifThumbnailDecodeHelper());
         decodeHelperList.add(new ThumbnailModeDecodeHelper());
+        decodeHelperList.add(new ResizeCropDecodeHelper());
         decodeHelperList.add(new NormalDecodeHelper());
 
         resultProcessorList.add(new ProcessImageResultProcessor());
@@ -61,10 +74,8 @@ public class ImageDecoder implements Identifier {
      * @throws DecodeException 解码失败了
      */
     public DecodeResult decode(LoadRequest request) throws DecodeException {
-        long startTime = 0;
-        if (SLogType.TIME.isEnabled()) {
-            startTime = timeAnalyze.decodeStart();
-        }
+        // 解码耗时还要作为再处理缓存的代价，因此始终记录开始时间
+        long startTime = timeAnalyze.decodeStart();
 
         DecodeResult result = null;
         try {
@@ -75,23 +86,66 @@ public class ImageDecoder implements Identifier {
             e.printStackTrace();
         }
 
+        // 解码过程中被取消了，结果已经没用了
+        if (request.isCanceled()) {
+            timeAnalyze.decodeCanceled(startTime, LOG_NAME, request.getKey());
+            if (result != null) {
+                result.recycle(request.getConfiguration().getBitmapPool());
+            }
+            return null;
+        }
+
         if (SLogType.TIME.isEnabled()) {
             timeAnalyze.decodeEnd(startTime, LOG_NAME, request.getKey());
         }
 
         if (result != null) {
-            try {
-                doProcess(request, result);
-            } catch (DecodeException e) {
-                result.recycle(request.getConfiguration().getBitmapPool());
-                throw e;
-            } catch (Throwable e) {
-                e.printStackTrace();
-                result.recycle(request.getConfiguration().getBitmapPool());
-                result = null;
+            long useTime = System.currentTimeMillis() - startTime;
+            result.setDecodeUseTime(useTime);
+
+            // 没有缩小的解码就和读取已处理图片缓存的代价差不多，记下来用于判断值不值得缓存
+            if (result instanceof BitmapDecodeResult) {
+                Bitmap bitmap = ((BitmapDecodeResult) result).getBitmap();
+                ImageAttrs imageAttrs = result.getImageAttrs();
+                long pixelCount = bitmap != null ? (long) bitmap.getWidth() * bitmap.getHeight() : 0;
+                if (pixelCount > 0 && pixelCount >= (long) imageAttrs.getWidth() * imageAttrs.getHeight()) {
+                    timeAnalyze.fullSizeDecodeEnd(pixelCount, useTime);
+                }
             }
         }
 
+        return process(request, result);
+    }
+
+    /**
+     * 执行后续的处理，边下载边解码出来的结果也直接从这里开始
+     *
+     * @param request LoadRequest
+     * @param result  DecodeResult
+     * @return DecodeResult
+     * @throws DecodeException 处理失败了
+     */
+    public DecodeResult process(LoadRequest request, DecodeResult result) throws DecodeException {
+        if (result == null) {
+            return null;
+        }
+
+        if (request.isCanceled()) {
+            result.recycle(request.getConfiguration().getBitmapPool());
+            return null;
+        }
+
+        try {
+            doProcess(request, result);
+        } catch (DecodeException e) {
+            result.recycle(request.getConfiguration().getBitmapPool());
+            throw e;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            result.recycle(request.getConfiguration().getBitmapPool());
+            result = null;
+        }
+
         return result;
     }
 
@@ -107,11 +161,27 @@ public class ImageDecoder implements Identifier {
         DataSource dataSource = DataSourceFactory.processedCacheFirstMakeDataSource(request.getContext(), request.getUriInfo(),
                 request.getDownloadResult(), request.getOptions(), request.getProcessedImageDiskCacheKey());
 
-        // Decode bounds and mime info
-        BitmapFactory.Options boundOptions = new BitmapFactory.Options();
-        boundOptions.inJustDecodeBounds = true;
+        // 文件只打开一次，探测尺寸、读取方向以及解码都共用同一个文件描述符
+        if (!(dataSource instanceof FileDescriptorDataSource)) {
+            return doDecode(request, dataSource);
+        }
+        FileDescriptorDataSource fileDescriptorDataSource = (FileDescriptorDataSource) dataSource;
+        fileDescriptorDataSource.open();
         try {
-            ImageDecodeUtils.decodeBitmap(dataSource, boundOptions);
+            return doDecode(request, dataSource);
+        } finally {
+            fileDescriptorDataSource.close();
+        }
+    }
+
+    private DecodeResult doDecode(LoadRequest request, DataSource dataSource) throws DecodeException {
+        // Decode bounds, mime info and image orientation, images that have been decoded before are read from the index
+        ImageAttrsIndex imageAttrsIndex = request.getConfiguration().getImageAttrsIndex();
+        ImageOrientationCorrector imageOrientationCorrector = request.getConfiguration().getImageOrientationCorrector();
+        ImageAttrs imageAttrs;
+        try {
+            imageAttrs = imageAttrsIndex.readImageAttrs(dataSource, imageOrientationCorrector,
+                    request.getOptions().isCorrectImageOrientationDisabled());
         } catch (IOException e) {
             e.printStackTrace();
             SLog.fe(SLogType.REQUEST, LOG_NAME, "decode bounds failed %s", request.getKey());
@@ -120,19 +190,19 @@ public class ImageDecoder implements Identifier {
         }
 
         // Exclude images with a width of less than or equal to 1
-        if (boundOptions.outWidth <= 1 || boundOptions.outHeight <= 1) {
+        if (imageAttrs.getWidth() <= 1 || imageAttrs.getHeight() <= 1) {
             SLog.fe(SLogType.REQUEST, LOG_NAME, "image width or height less than or equal to 1px. imageSize: %dx%d. %s",
-                    boundOptions.outWidth, boundOptions.outHeight, request.getKey());
+                    imageAttrs.getWidth(), imageAttrs.getHeight(), request.getKey());
             ImageDecodeUtils.decodeError(request, dataSource, LOG_NAME);
             return null;
         }
 
-        // Read image orientation
-        int exifOrientation = ExifInterface.ORIENTATION_UNDEFINED;
-        if (!request.getOptions().isCorrectImageOrientationDisabled()) {
-            ImageOrientationCorrector imageOrientationCorrector = request.getConfiguration().getImageOrientationCorrector();
-            exifOrientation = imageOrientationCorrector.readExifOrientation(boundOptions.outMimeType, dataSource);
-        }
+        BitmapFactory.Options boundOptions = new BitmapFactory.Options();
+        boundOptions.inJustDecodeBounds = true;
+        boundOptions.outWidth = imageAttrs.getWidth();
+        boundOptions.outHeight = imageAttrs.getHeight();
+        boundOptions.outMimeType = imageAttrs.getMimeType();
+        int exifOrientation = imageAttrs.getExifOrientation();
 
         ImageType imageType = ImageType.valueOfMimeType(boundOptions.outMimeType);
 
@@ -146,7 +216,14 @@ public class ImageDecoder implements Identifier {
         // Setup preferred bitmap config
         Bitmap.Config newConfig = request.getOptions().getBitmapConfig();
         if (newConfig == null && imageType != null) {
-            newConfig = imageType.getConfig(request.getOptions().isLowQualityImage());
+            boolean lowQualityImage = request.getOptions().isLowQualityImage();
+            newConfig = imageType.getConfig(lowQualityImage);
+
+            // 没有透明通道的PNG和WebP同JPEG一样处理，一般是RGB_565，内存占用减半
+            // 检测结果记录在索引中，下次就不用再读文件头了
+            if (newConfig != ImageType.JPEG.getConfig(lowQualityImage) && imageAttrsIndex.isOpaque(dataSource, imageType)) {
+                newConfig = ImageType.JPEG.getConfig(lowQualityImage);
+            }
         }
         if (newConfig != null) {
             decodeOptions.inPreferredConfig = newConfig;
@@ -156,17 +233,150 @@ public class ImageDecoder implements Identifier {
         for (DecodeHelper decodeHelper : decodeHelperList) {
             if (decodeHelper.match(request, dataSource, imageType, boundOptions)) {
                 decodeResult = decodeHelper.decode(request, dataSource, imageType, boundOptions, decodeOptions, exifOrientation);
-                break;
+                if (decodeResult != null || !decodeHelper.isOptional() || request.isCanceled()) {
+                    break;
+                }
             }
         }
 
-        if (decodeResult != null) {
+        if (decodeResult != null && decodeResult.getImageFrom() == null) {
             decodeResult.setImageFrom(dataSource.getImageFrom());
         }
 
+        // 原图文件的长度也是判断值不值得缓存已处理图片的依据
+        if (decodeResult instanceof BitmapDecodeResult) {
+            try {
+                ((BitmapDecodeResult) decodeResult).setSourceLength(dataSource.getLength());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
         return decodeResult;
     }
 
+    /**
+     * 解码一张低分辨率的预览图，用于渐进式显示。预览图不做处理也不缓存，
+     * 解码失败了不影响完整图片的解码，因此这里只返回null
+     *
+     * @param request LoadRequest
+     * @return BitmapDecodeResult，不需要预览或解码失败时返回null
+     */
+    public BitmapDecodeResult decodePreview(LoadRequest request) {
+        LoadOptions loadOptions = request.getOptions();
+
+        // 有resize的话完整图片会被裁剪或缩放，和预览图对不上
+        if (loadOptions.getResize() != null) {
+            return null;
+        }
+
+        // 已经有处理过的缓存了，完整图片很快就能解码出来，没必要再预览
+        ProcessedImageCache processedImageCache = request.getConfiguration().getProcessedImageCache();
+        if (processedImageCache.canUse(loadOptions) && processedImageCache.checkDiskCache(
+                request.getConfiguration().getDiskCache(), request.getProcessedImageDiskCacheKey())) {
+            return null;
+        }
+
+        try {
+            DataSource dataSource = DataSourceFactory.makeDataSource(request.getContext(), request.getUriInfo(), request.getDownloadResult());
+            if (!(dataSource instanceof FileDescriptorDataSource)) {
+                return doDecodePreview(request, dataSource);
+            }
+            FileDescriptorDataSource fileDescriptorDataSource = (FileDescriptorDataSource) dataSource;
+            fileDescriptorDataSource.open();
+            try {
+                return doDecodePreview(request, dataSource);
+            } finally {
+                fileDescriptorDataSource.close();
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private BitmapDecodeResult doDecodePreview(LoadRequest request, DataSource dataSource) throws IOException {
+        LoadOptions loadOptions = request.getOptions();
+        ImageAttrsIndex imageAttrsIndex = request.getConfiguration().getImageAttrsIndex();
+        ImageOrientationCorrector orientationCorrector = request.getConfiguration().getImageOrientationCorrector();
+        ImageAttrs imageAttrs = imageAttrsIndex.readImageAttrs(dataSource, orientationCorrector,
+                loadOptions.isCorrectImageOrientationDisabled());
+
+        ImageType imageType = ImageType.valueOfMimeType(imageAttrs.getMimeType());
+        if (imageType == null || (imageType == ImageType.GIF && loadOptions.isDecodeGifImage())) {
+            return null;
+        }
+
+        if ((long) imageAttrs.getWidth() * imageAttrs.getHeight() < PREVIEW_MIN_PIXEL_COUNT) {
+            return null;
+        }
+
+        int exifOrientation = imageAttrs.getExifOrientation();
+        BitmapFactory.Options boundOptions = new BitmapFactory.Options();
+        boundOptions.outWidth = imageAttrs.getWidth();
+        boundOptions.outHeight = imageAttrs.getHeight();
+        orientationCorrector.rotateSize(boundOptions, exifOrientation);
+
+        // 在完整图片的缩小倍数上再缩小4到8倍
+        boolean supportLargeImage = SketchUtils.supportLargeImage(request, imageType);
+        int inSampleSize = 1;
+        MaxSize maxSize = loadOptions.getMaxSize();
+        if (maxSize != null) {
+            ImageSizeCalculator imageSizeCalculator = request.getConfiguration().getImageSizeCalculator();
+            inSampleSize = imageSizeCalculator.calculateInSampleSize(boundOptions.outWidth, boundOptions.outHeight,
+                    maxSize.getWidth(), maxSize.getHeight(), supportLargeImage);
+        }
+        inSampleSize *= supportLargeImage ? PREVIEW_IN_SAMPLE_SCALE_LARGE_IMAGE : PREVIEW_IN_SAMPLE_SCALE;
+        if (boundOptions.outWidth / inSampleSize <= 1 || boundOptions.outHeight / inSampleSize <= 1) {
+            return null;
+        }
+
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        decodeOptions.inSampleSize = inSampleSize;
+        decodeOptions.inPreferredConfig = imageType.getConfig(true);
+
+        BitmapPool bitmapPool = request.getConfiguration().getBitmapPool();
+        if (BitmapPoolUtils.sdkSupportInBitmap() && !loadOptions.isBitmapPoolDisabled()) {
+            BitmapPoolUtils.setInBitmapFromPool(decodeOptions,
+                    boundOptions.outWidth, boundOptions.outHeight, imageAttrs.getMimeType(), bitmapPool);
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = ImageDecodeUtils.decodeBitmap(request, dataSource, decodeOptions);
+        } catch (Throwable throwable) {
+            throwable.printStackTrace();
+            if (decodeOptions.inBitmap != null) {
+                BitmapPoolUtils.freeBitmapToPool(decodeOptions.inBitmap, bitmapPool);
+            }
+            return null;
+        }
+
+        if (ImageDecodeUtils.decodeCanceled(request, bitmap, decodeOptions, LOG_NAME)) {
+            return null;
+        }
+        if (bitmap == null || bitmap.isRecycled()) {
+            return null;
+        }
+
+        BitmapDecodeResult result = new BitmapDecodeResult(imageAttrs, bitmap);
+        Bitmap newBitmap = orientationCorrector.rotate(bitmap, exifOrientation, bitmapPool);
+        if (newBitmap != null && newBitmap != bitmap) {
+            BitmapPoolUtils.freeBitmapToPool(bitmap, bitmapPool);
+            if (newBitmap.isRecycled()) {
+                return null;
+            }
+            result.setBitmap(newBitmap);
+        }
+        result.setImageFrom(dataSource.getImageFrom());
+
+        if (SLogType.REQUEST.isEnabled()) {
+            SLog.fi(SLogType.REQUEST, LOG_NAME, "decode preview success. inSampleSize=%d. previewSize=%dx%d. %s",
+                    inSampleSize, result.getBitmap().getWidth(), result.getBitmap().getHeight(), request.getKey());
+        }
+        return result;
+    }
+
     /**
      * 执行后续的处理，包括转换、缓存
      *
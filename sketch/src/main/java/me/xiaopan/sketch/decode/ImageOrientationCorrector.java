@@ -25,6 +25,7 @@ import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -41,6 +42,15 @@ public class ImageOrientationCorrector implements Identifier {
 
     public static final int PAINT_FLAGS = Paint.DITHER_FLAG | Paint.FILTER_BITMAP_FLAG;
 
+    private static final int JPEG_MARKER_SOI = 0xD8;
+    private static final int JPEG_MARKER_APP0 = 0xE0;
+    private static final int JPEG_MARKER_APP1 = 0xE1;
+    private static final int JPEG_MARKER_APP15 = 0xEF;
+    private static final int JPEG_MARKER_COM = 0xFE;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int EXIF_TAG_ORIENTATION = 0x0112;
+    private static final int EXIF_FORMAT_UNSIGNED_SHORT = 3;
+
     public static String toName(int exifOrientation) {
         switch (exifOrientation) {
             case ExifInterface.ORIENTATION_ROTATE_90:
@@ -155,16 +165,177 @@ public class ImageOrientationCorrector implements Identifier {
     }
 
     /**
-     * 读取图片方向
+     * 读取图片方向，JPEG直接解析APP1段，只读到方向标签就停止，其它格式才交给ExifInterface完整解析
      *
      * @param inputStream 文件输入流
      * @return exif 保存的原始方向
      */
     public int readExifOrientation(InputStream inputStream) throws IOException {
+        if (!inputStream.markSupported()) {
+            inputStream = new BufferedInputStream(inputStream, 1024);
+        }
+
+        inputStream.mark(2);
+        if (inputStream.read() == 0xFF && inputStream.read() == JPEG_MARKER_SOI) {
+            return readJpegExifOrientation(inputStream);
+        }
+        inputStream.reset();
+
         ExifInterface exifInterface = new ExifInterface(inputStream);
         return exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
     }
 
+    /**
+     * 逐段查找EXIF所在的APP1段，EXIF总是紧跟在SOI或APP0后面，因此遇到第一个不是APPn或COM的段就认为没有EXIF，
+     * 没有EXIF的图片一般只读几十个字节就结束了
+     */
+    private int readJpegExifOrientation(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[12];
+        while (true) {
+            int marker = readJpegMarker(inputStream);
+            if (marker == -1) {
+                return ExifInterface.ORIENTATION_UNDEFINED;
+            }
+            if (marker != JPEG_MARKER_COM && (marker < JPEG_MARKER_APP0 || marker > JPEG_MARKER_APP15)) {
+                return ExifInterface.ORIENTATION_UNDEFINED;
+            }
+
+            if (!readFully(inputStream, buffer, 2)) {
+                return ExifInterface.ORIENTATION_UNDEFINED;
+            }
+            int segmentLength = ((buffer[0] & 0xFF) << 8 | (buffer[1] & 0xFF)) - 2;
+            if (segmentLength < 0) {
+                return ExifInterface.ORIENTATION_UNDEFINED;
+            }
+
+            if (marker == JPEG_MARKER_APP1 && segmentLength >= EXIF_HEADER.length) {
+                if (!readFully(inputStream, buffer, EXIF_HEADER.length)) {
+                    return ExifInterface.ORIENTATION_UNDEFINED;
+                }
+                if (startsWith(buffer, EXIF_HEADER)) {
+                    return readTiffOrientation(inputStream, buffer, segmentLength - EXIF_HEADER.length);
+                }
+                segmentLength -= EXIF_HEADER.length;
+            }
+
+            if (!skipFully(inputStream, segmentLength)) {
+                return ExifInterface.ORIENTATION_UNDEFINED;
+            }
+        }
+    }
+
+    /**
+     * 解析TIFF头和IFD0，方向标签只会出现在IFD0中
+     */
+    private int readTiffOrientation(InputStream inputStream, byte[] buffer, int tiffLength) throws IOException {
+        if (tiffLength < 8 || !readFully(inputStream, buffer, 8)) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+
+        boolean littleEndian;
+        if (buffer[0] == 'I' && buffer[1] == 'I') {
+            littleEndian = true;
+        } else if (buffer[0] == 'M' && buffer[1] == 'M') {
+            littleEndian = false;
+        } else {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+        if (readShort(buffer, 2, littleEndian) != 42) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+
+        long ifdOffset = readInt(buffer, 4, littleEndian) & 0xFFFFFFFFL;
+        if (ifdOffset < 8 || ifdOffset + 2 > tiffLength || !skipFully(inputStream, ifdOffset - 8)) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+
+        if (!readFully(inputStream, buffer, 2)) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+        // 有些软件写的标签不是按升序排列的，因此要看完所有的标签，IFD0中的标签不多，不会很慢
+        int entryCount = (int) Math.min(readShort(buffer, 0, littleEndian), (tiffLength - ifdOffset - 2) / 12);
+        for (int index = 0; index < entryCount; index++) {
+            if (!readFully(inputStream, buffer, 12)) {
+                return ExifInterface.ORIENTATION_UNDEFINED;
+            }
+
+            int tag = readShort(buffer, 0, littleEndian);
+            if (tag == EXIF_TAG_ORIENTATION) {
+                int format = readShort(buffer, 2, littleEndian);
+                if (format != EXIF_FORMAT_UNSIGNED_SHORT) {
+                    return ExifInterface.ORIENTATION_UNDEFINED;
+                }
+                int orientation = readShort(buffer, 8, littleEndian);
+                return orientation >= ExifInterface.ORIENTATION_NORMAL && orientation <= ExifInterface.ORIENTATION_ROTATE_270 ?
+                        orientation : ExifInterface.ORIENTATION_UNDEFINED;
+            }
+        }
+        return ExifInterface.ORIENTATION_UNDEFINED;
+    }
+
+    private static int readJpegMarker(InputStream inputStream) throws IOException {
+        int value = inputStream.read();
+        if (value != 0xFF) {
+            return -1;
+        }
+        // 标记前面可以有任意多个0xFF填充字节
+        while (value == 0xFF) {
+            value = inputStream.read();
+        }
+        return value;
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int readLength = inputStream.read(buffer, offset, length - offset);
+            if (readLength == -1) {
+                return false;
+            }
+            offset += readLength;
+        }
+        return true;
+    }
+
+    private static boolean skipFully(InputStream inputStream, long length) throws IOException {
+        while (length > 0) {
+            long skipped = inputStream.skip(length);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1) {
+                    return false;
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] buffer, byte[] prefix) {
+        for (int index = 0; index < prefix.length; index++) {
+            if (buffer[index] != prefix[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readShort(byte[] buffer, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+        } else {
+            return (buffer[offset] & 0xFF) << 8 | (buffer[offset + 1] & 0xFF);
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset, boolean littleEndian) {
+        if (littleEndian) {
+            return readShort(buffer, offset, true) | readShort(buffer, offset + 2, true) << 16;
+        } else {
+            return readShort(buffer, offset, false) << 16 | readShort(buffer, offset + 2, false);
+        }
+    }
+
     /**
      * 读取图片方向
      *
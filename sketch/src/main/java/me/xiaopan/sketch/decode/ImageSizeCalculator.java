@@ -286,6 +286,24 @@ public class ImageSizeCalculator implements Identifier {
         return inSampleSize;
     }
 
+    /**
+     * 计算精确尺寸解码时的InSampleSize，缩小后的宽高都不能小于目标宽高，剩下的部分再交给inDensity和inTargetDensity缩放
+     *
+     * @param outWidth     原始宽
+     * @param outHeight    原始高
+     * @param targetWidth  目标宽
+     * @param targetHeight 目标高
+     * @return 不小于目标尺寸的最大InSampleSize
+     */
+    public int calculateExactSizeInSampleSize(int outWidth, int outHeight, int targetWidth, int targetHeight) {
+        int inSampleSize = 1;
+        while (SketchUtils.ceil(outWidth, inSampleSize * 2) >= targetWidth
+                && SketchUtils.ceil(outHeight, inSampleSize * 2) >= targetHeight) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
     /**
      * 根据高度计算是否可以使用阅读模式
      */
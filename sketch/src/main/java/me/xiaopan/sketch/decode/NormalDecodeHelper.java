@@ -18,6 +18,7 @@ package me.xiaopan.sketch.decode;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 
 import me.xiaopan.sketch.ErrorTracker;
 import me.xiaopan.sketch.SLog;
@@ -25,8 +26,10 @@ import me.xiaopan.sketch.SLogType;
 import me.xiaopan.sketch.cache.BitmapPool;
 import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.request.LoadOptions;
 import me.xiaopan.sketch.request.LoadRequest;
 import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.request.Resize;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class NormalDecodeHelper extends DecodeHelper {
@@ -54,6 +57,9 @@ public class NormalDecodeHelper extends DecodeHelper {
                     maxSize.getWidth(), maxSize.getHeight(), supportLargeImage);
         }
 
+        // Decode directly to the resize size, so that ResizeImageProcessor does not need to draw it again
+        boolean exactSize = setupExactSize(request, boundOptions, decodeOptions);
+
         // Set inBitmap from bitmap pool
         if (BitmapPoolUtils.sdkSupportInBitmap() && !request.getOptions().isBitmapPoolDisabled()) {
             BitmapPool bitmapPool = request.getConfiguration().getBitmapPool();
@@ -63,18 +69,20 @@ public class NormalDecodeHelper extends DecodeHelper {
 
         Bitmap bitmap = null;
         try {
-            bitmap = ImageDecodeUtils.decodeBitmap(dataSource, decodeOptions);
+            bitmap = ImageDecodeUtils.decodeBitmap(request, dataSource, decodeOptions);
         } catch (Throwable throwable) {
             throwable.printStackTrace();
 
             ErrorTracker errorTracker = request.getConfiguration().getErrorTracker();
             BitmapPool bitmapPool = request.getConfiguration().getBitmapPool();
-            if (ImageDecodeUtils.isInBitmapDecodeError(throwable, decodeOptions, false)) {
+            if (request.isCanceled()) {
+                // 被取消打断的，不算解码失败
+            } else if (ImageDecodeUtils.isInBitmapDecodeError(throwable, decodeOptions, false)) {
                 ImageDecodeUtils.recycleInBitmapOnDecodeError(errorTracker, bitmapPool, request.getUri(),
                         boundOptions.outWidth, boundOptions.outHeight, boundOptions.outMimeType, throwable, decodeOptions, false);
 
                 try {
-                    bitmap = ImageDecodeUtils.decodeBitmap(dataSource, decodeOptions);
+                    bitmap = ImageDecodeUtils.decodeBitmap(request, dataSource, decodeOptions);
                 } catch (Throwable throwable1) {
                     throwable1.printStackTrace();
 
@@ -87,6 +95,11 @@ public class NormalDecodeHelper extends DecodeHelper {
             }
         }
 
+        // 解码过程中请求被取消了，结果可能是不完整的
+        if (ImageDecodeUtils.decodeCanceled(request, bitmap, decodeOptions, LOG_NAME)) {
+            return null;
+        }
+
         // 过滤掉无效的图片
         if (bitmap == null || bitmap.isRecycled()) {
             ImageDecodeUtils.decodeError(request, dataSource, LOG_NAME);
@@ -103,6 +116,11 @@ public class NormalDecodeHelper extends DecodeHelper {
             return null;
         }
 
+        // 按目标尺寸缩放后bitmap的density会被改成inTargetDensity，要改回来，否则绘制时会被再缩放一次
+        if (exactSize) {
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+        }
+
         ProcessedImageCache processedImageCache = request.getConfiguration().getProcessedImageCache();
         boolean processed = processedImageCache.canUseCacheProcessedImageInDisk(decodeOptions.inSampleSize);
 
@@ -114,4 +132,51 @@ public class NormalDecodeHelper extends DecodeHelper {
         ImageDecodeUtils.decodeSuccess(bitmap, boundOptions.outWidth, boundOptions.outHeight, decodeOptions.inSampleSize, request, LOG_NAME);
         return result;
     }
+
+    /**
+     * 有resize时用inSampleSize加上inDensity和inTargetDensity让解码器直接输出刚好覆盖resize的尺寸。
+     * 4.4以下decodeStream不支持缩放，BitmapFactory会再创建一张缩放后的bitmap，就没有意义了
+     *
+     * @return true：已设置
+     */
+    private boolean setupExactSize(LoadRequest request, BitmapFactory.Options boundOptions, BitmapFactory.Options decodeOptions) {
+        LoadOptions loadOptions = request.getOptions();
+        Resize resize = loadOptions.getResize();
+        if (resize == null || loadOptions.getImageProcessor() == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+
+        ResizeCalculator resizeCalculator = request.getConfiguration().getResizeCalculator();
+        ResizeCalculator.Mapping mapping = resizeCalculator.calculator(boundOptions.outWidth, boundOptions.outHeight,
+                resize.getWidth(), resize.getHeight(), resize.getScaleType(), loadOptions.isForceUseResize());
+        if (mapping == null || mapping.srcRect.isEmpty() || mapping.destRect.isEmpty()) {
+            return false;
+        }
+
+        float scale = Math.max((float) mapping.destRect.width() / mapping.srcRect.width(),
+                (float) mapping.destRect.height() / mapping.srcRect.height());
+        if (scale >= 1f) {
+            return false;
+        }
+
+        int targetWidth = Math.max(Math.round(boundOptions.outWidth * scale), 1);
+        int targetHeight = Math.max(Math.round(boundOptions.outHeight * scale), 1);
+        ImageSizeCalculator sizeCalculator = request.getConfiguration().getImageSizeCalculator();
+        int inSampleSize = sizeCalculator.calculateExactSizeInSampleSize(boundOptions.outWidth, boundOptions.outHeight,
+                targetWidth, targetHeight);
+
+        // maxSize要求的更小，以maxSize为准
+        if (decodeOptions.inSampleSize > inSampleSize) {
+            return false;
+        }
+
+        decodeOptions.inSampleSize = inSampleSize;
+        int sampledWidth = SketchUtils.ceil(boundOptions.outWidth, inSampleSize);
+        if (sampledWidth != targetWidth) {
+            decodeOptions.inScaled = true;
+            decodeOptions.inDensity = sampledWidth;
+            decodeOptions.inTargetDensity = targetWidth;
+        }
+        return true;
+    }
 }
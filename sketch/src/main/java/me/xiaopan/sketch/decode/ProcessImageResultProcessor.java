@@ -52,6 +52,7 @@ public class ProcessImageResultProcessor implements ResultProcessor {
 
         request.setStatus(BaseRequest.Status.PROCESSING);
 
+        long startTime = System.currentTimeMillis();
         Bitmap newBitmap = null;
         try {
             newBitmap = imageProcessor.process(
@@ -69,6 +70,7 @@ public class ProcessImageResultProcessor implements ResultProcessor {
                 BitmapPoolUtils.freeBitmapToPool(bitmap, request.getConfiguration().getBitmapPool());
                 bitmapDecodeResult.setBitmap(newBitmap);
             }
+            bitmapDecodeResult.setProcessUseTime(System.currentTimeMillis() - startTime);
             result.setProcessed(true);
         } else {
             throw new DecodeException(String.format("%s: %s. %s", ErrorCause.PROCESS_IMAGE_FAIL.name(),
@@ -20,11 +20,22 @@ import android.graphics.Bitmap;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.SLogType;
 import me.xiaopan.sketch.cache.DiskCache;
 import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.LoadRequest;
 import me.xiaopan.sketch.util.DiskLruCache;
 import me.xiaopan.sketch.util.SketchUtils;
 
@@ -32,6 +43,26 @@ import me.xiaopan.sketch.util.SketchUtils;
  * 对读到内存后又再次处理过的图片进行缓存，下次就不用再处理了，可加快加载速度
  */
 public class ProcessedImageCache implements Identifier {
+    private static final String LOG_NAME = "ProcessedImageCache";
+
+    // 还没统计到足够的解码速度时使用的默认值，每百万像素的解码耗时，单位毫秒
+    private static final float DEFAULT_DECODE_TIME_PER_MEGA_PIXEL = 25f;
+    // 质量为100时每个像素压缩后大概的字节数
+    private static final float JPEG_BYTES_PER_PIXEL = 1.5f;
+    private static final float PNG_BYTES_PER_PIXEL = 3f;
+
+    private long minSavedTime = 10;
+    private float maxRereadCostRatio = 0.5f;
+    private float maxSizeRatio = 2f;
+
+    private final AtomicLong saveCount = new AtomicLong();
+    private final AtomicLong skipCount = new AtomicLong();
+
+    // 压缩编码很慢，交给单独的低优先级线程去压缩和写入，排队等待写入的数据太多了就直接放弃
+    private static final long MAX_PENDING_WRITE_BYTES = 16 * 1024 * 1024;
+    private ThreadPoolExecutor writeExecutor;
+    private final Set<String> pendingWriteKeys = new HashSet<>();
+    private long pendingWriteBytes;
 
     /**
      * 判断是否可以使用此功能
@@ -62,13 +93,145 @@ public class ProcessedImageCache implements Identifier {
     }
 
     /**
-     * 此缩放比例是否可以使用缓存到本地磁盘功能
+     * 此缩放比例是否可以使用缓存到本地磁盘功能，缩小过的图片才和原图不一样，值不值得缓存由{@link #decideSaveToDiskCache(LoadRequest, BitmapDecodeResult)}决定
      */
     public boolean canUseCacheProcessedImageInDisk(int inSampleSize) {
-        return inSampleSize >= 8;
+        return inSampleSize > 1;
     }
 
+    /**
+     * 根据重新生成这张图片的代价（解码加处理）和读取缓存的代价判断值不值得缓存到磁盘。
+     * 读取缓存的代价根据已统计的不缩小解码的速度和图片的像素数估算，缓存文件的大小根据压缩格式和像素数估算
+     *
+     * @param request LoadRequest
+     * @param result  已处理的解码结果
+     * @return Decision 包含判断结果以及判断依据
+     */
+    public Decision decideSaveToDiskCache(LoadRequest request, BitmapDecodeResult result) {
+        Bitmap bitmap = result.getBitmap();
+        long pixelCount = (long) bitmap.getWidth() * bitmap.getHeight();
+
+        boolean jpeg = SketchUtils.bitmapConfigToCompressFormat(bitmap.getConfig()) == Bitmap.CompressFormat.JPEG;
+        long expectedCacheSize = (long) (pixelCount * (jpeg ? JPEG_BYTES_PER_PIXEL : PNG_BYTES_PER_PIXEL));
+
+        float decodeTimePerMegaPixel = DecodeTimeAnalyze.getFullSizeDecodeTimePerMegaPixel();
+        if (decodeTimePerMegaPixel <= 0) {
+            decodeTimePerMegaPixel = DEFAULT_DECODE_TIME_PER_MEGA_PIXEL;
+        }
+        long rereadCost = (long) (pixelCount * decodeTimePerMegaPixel / 1000000);
+        long regenerateCost = result.getDecodeUseTime() + result.getProcessUseTime();
+        long sourceLength = result.getSourceLength();
+
+        boolean save = regenerateCost - rereadCost >= minSavedTime
+                && rereadCost <= regenerateCost * maxRereadCostRatio
+                && (sourceLength <= 0 || expectedCacheSize <= sourceLength * maxSizeRatio);
+
+        Decision decision = new Decision(save, sourceLength, result.getDecodeUseTime(), result.getProcessUseTime(),
+                expectedCacheSize, rereadCost);
+        if (save) {
+            saveCount.incrementAndGet();
+        } else {
+            skipCount.incrementAndGet();
+        }
+        onDecision(request, decision);
+        return decision;
+    }
+
+    /**
+     * 每做出一次判断都会回调此方法，可以继承并重写此方法收集判断依据，再根据设备的情况调整参数
+     *
+     * @param request  LoadRequest
+     * @param decision 判断结果以及判断依据
+     */
+    protected void onDecision(LoadRequest request, Decision decision) {
+        if (SLogType.CACHE.isEnabled()) {
+            SLog.fd(SLogType.CACHE, LOG_NAME, "decide save to disk cache. %s. %s", decision, request.getKey());
+        }
+    }
+
+    /**
+     * 获取缓存后至少要节省的时间，单位毫秒
+     */
+    @SuppressWarnings("unused")
+    public long getMinSavedTime() {
+        return minSavedTime;
+    }
+
+    /**
+     * 设置缓存后至少要节省的时间，重新生成的代价减去读取缓存的代价小于这个时间就不缓存了，默认10毫秒
+     *
+     * @param minSavedTime 单位毫秒
+     */
+    @SuppressWarnings("unused")
+    public void setMinSavedTime(long minSavedTime) {
+        this.minSavedTime = minSavedTime;
+        if (SLogType.CACHE.isEnabled()) {
+            SLog.fi(SLogType.CACHE, LOG_NAME, "setMinSavedTime. %d", minSavedTime);
+        }
+    }
+
+    /**
+     * 获取读取缓存的代价最多是重新生成的代价的多少倍
+     */
+    @SuppressWarnings("unused")
+    public float getMaxRereadCostRatio() {
+        return maxRereadCostRatio;
+    }
+
+    /**
+     * 设置读取缓存的代价最多是重新生成的代价的多少倍，超过了就不缓存了，默认0.5
+     */
+    @SuppressWarnings("unused")
+    public void setMaxRereadCostRatio(float maxRereadCostRatio) {
+        this.maxRereadCostRatio = maxRereadCostRatio;
+        if (SLogType.CACHE.isEnabled()) {
+            SLog.fi(SLogType.CACHE, LOG_NAME, "setMaxRereadCostRatio. %s", maxRereadCostRatio);
+        }
+    }
+
+    /**
+     * 获取缓存文件最多是原图文件的多少倍
+     */
+    @SuppressWarnings("unused")
+    public float getMaxSizeRatio() {
+        return maxSizeRatio;
+    }
+
+    /**
+     * 设置缓存文件最多是原图文件的多少倍，超过了就不缓存了，省得占用太多磁盘空间，默认2
+     */
+    @SuppressWarnings("unused")
+    public void setMaxSizeRatio(float maxSizeRatio) {
+        this.maxSizeRatio = maxSizeRatio;
+        if (SLogType.CACHE.isEnabled()) {
+            SLog.fi(SLogType.CACHE, LOG_NAME, "setMaxSizeRatio. %s", maxSizeRatio);
+        }
+    }
+
+    /**
+     * 获取判断为值得缓存的次数
+     */
+    @SuppressWarnings("unused")
+    public long getSaveCount() {
+        return saveCount.get();
+    }
+
+    /**
+     * 获取判断为不值得缓存的次数
+     */
+    @SuppressWarnings("unused")
+    public long getSkipCount() {
+        return skipCount.get();
+    }
+
+    /**
+     * 检查磁盘缓存中是否已经有了，还在排队等待写入的当作没有
+     */
     public boolean checkDiskCache(DiskCache diskCache, String processedImageDiskCacheKey) {
+        if (isPendingWrite(processedImageDiskCacheKey)) {
+            return false;
+        }
+
         ReentrantLock editLock = diskCache.getEditLock(processedImageDiskCacheKey);
         editLock.lock();
 
@@ -79,9 +242,14 @@ public class ProcessedImageCache implements Identifier {
     }
 
     /**
-     * 开启了缓存已处理图片功能，如果磁盘缓存中已经有了缓存就直接读取
+     * 开启了缓存已处理图片功能，如果磁盘缓存中已经有了缓存就直接读取。还在排队等待写入的直接返回null，
+     * 这时候旧的缓存可能正在被删除，新的还没写完，调用方会从原图重新解码
      */
     public ProcessedCacheDataSource getDiskCache(DiskCache diskCache, String processedImageDiskCacheKey) {
+        if (isPendingWrite(processedImageDiskCacheKey)) {
+            return null;
+        }
+
         ReentrantLock editLock = diskCache.getEditLock(processedImageDiskCacheKey);
         editLock.lock();
 
@@ -99,8 +267,111 @@ public class ProcessedImageCache implements Identifier {
     /**
      * 保存bitmap到磁盘缓存
      */
+    @SuppressWarnings("unused")
     public void saveToDiskCache(DiskCache diskCache, String processedImageDiskCacheKey, Bitmap bitmap) {
-        ReentrantLock editLock = diskCache.getEditLock(processedImageDiskCacheKey);
+        saveToDiskCache(diskCache, processedImageDiskCacheKey, bitmap, 0);
+    }
+
+    /**
+     * 保存bitmap到磁盘缓存，不会阻塞当前线程，复制一份bitmap交给写入线程去压缩和写入，
+     * 因为原bitmap接下来会被显示、放进内存缓存，随时可能被回收或放回BitmapPool被复用。
+     * 复制只是内存拷贝，比压缩编码快得多，排队中的副本加起来超过{@link #getMaxPendingWriteBytes()}就直接放弃
+     *
+     * @param cost 重新生成这张图片的耗时（解码加处理），单位毫秒，磁盘缓存空间不足时会优先保留代价高的
+     */
+    public void saveToDiskCache(final DiskCache diskCache, final String processedImageDiskCacheKey, Bitmap bitmap, final long cost) {
+        final int byteCount = SketchUtils.getByteCount(bitmap);
+        synchronized (pendingWriteKeys) {
+            if (pendingWriteKeys.contains(processedImageDiskCacheKey) || pendingWriteBytes + byteCount > getMaxPendingWriteBytes()) {
+                if (SLogType.CACHE.isEnabled()) {
+                    SLog.fw(SLogType.CACHE, LOG_NAME, "skip save to disk cache. pendingCount=%d, pendingBytes=%d, byteCount=%d. %s",
+                            pendingWriteKeys.size(), pendingWriteBytes, byteCount, processedImageDiskCacheKey);
+                }
+                return;
+            }
+            pendingWriteKeys.add(processedImageDiskCacheKey);
+            pendingWriteBytes += byteCount;
+        }
+
+        Bitmap copyBitmap = null;
+        try {
+            copyBitmap = bitmap.copy(bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888, false);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+        }
+        if (copyBitmap == null) {
+            removePendingWrite(processedImageDiskCacheKey, byteCount);
+            return;
+        }
+
+        final Bitmap writeBitmap = copyBitmap;
+        try {
+            getWriteExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeToDiskCache(diskCache, processedImageDiskCacheKey, writeBitmap, cost);
+                    } finally {
+                        writeBitmap.recycle();
+                        removePendingWrite(processedImageDiskCacheKey, byteCount);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+            writeBitmap.recycle();
+            removePendingWrite(processedImageDiskCacheKey, byteCount);
+        }
+    }
+
+    /**
+     * 排队等待写入的bitmap副本最多占用多少内存，不超过最大可用内存的1/16
+     */
+    private static long getMaxPendingWriteBytes() {
+        return Math.min(MAX_PENDING_WRITE_BYTES, Runtime.getRuntime().maxMemory() / 16);
+    }
+
+    /**
+     * 是否正在排队等待写入磁盘缓存
+     */
+    public boolean isPendingWrite(String processedImageDiskCacheKey) {
+        synchronized (pendingWriteKeys) {
+            return pendingWriteKeys.contains(processedImageDiskCacheKey);
+        }
+    }
+
+    private void removePendingWrite(String processedImageDiskCacheKey, int dataLength) {
+        synchronized (pendingWriteKeys) {
+            pendingWriteKeys.remove(processedImageDiskCacheKey);
+            pendingWriteBytes -= dataLength;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getWriteExecutor() {
+        if (writeExecutor == null) {
+            writeExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ProcessedImageWriteThread");
+                }
+            });
+            writeExecutor.allowCoreThreadTimeOut(true);
+        }
+        return writeExecutor;
+    }
+
+    /**
+     * 压缩bitmap并写入磁盘缓存，在写入线程中执行
+     */
+    protected void writeToDiskCache(DiskCache diskCache, String processedImageDiskCacheKey, Bitmap bitmap, long cost) {
+        ReentrantLock editLock = diskCache.getExclusiveEditLock(processedImageDiskCacheKey);
         editLock.lock();
 
         DiskCache.Entry diskCacheEntry = diskCache.get(processedImageDiskCacheKey);
@@ -115,6 +386,8 @@ public class ProcessedImageCache implements Identifier {
             try {
                 outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
                 bitmap.compress(SketchUtils.bitmapConfigToCompressFormat(bitmap.getConfig()), 100, outputStream);
+                diskCacheEditor.setCategory(DiskCache.Category.PROCESSED);
+                diskCacheEditor.setCost(cost);
                 diskCacheEditor.commit();
             } catch (DiskLruCache.EditorChangedException e) {
                 e.printStackTrace();
@@ -138,6 +411,89 @@ public class ProcessedImageCache implements Identifier {
 
     @Override
     public String getKey() {
-        return "ProcessedImageCache";
+        return String.format("%s(minSavedTime=%d,maxRereadCostRatio=%s,maxSizeRatio=%s)",
+                LOG_NAME, minSavedTime, maxRereadCostRatio, maxSizeRatio);
+    }
+
+    /**
+     * 是否缓存已处理图片的判断结果以及判断依据
+     */
+    public static class Decision {
+        private boolean save;
+        private long sourceLength;
+        private long decodeUseTime;
+        private long processUseTime;
+        private long expectedCacheSize;
+        private long rereadCost;
+
+        public Decision(boolean save, long sourceLength, long decodeUseTime, long processUseTime,
+                        long expectedCacheSize, long rereadCost) {
+            this.save = save;
+            this.sourceLength = sourceLength;
+            this.decodeUseTime = decodeUseTime;
+            this.processUseTime = processUseTime;
+            this.expectedCacheSize = expectedCacheSize;
+            this.rereadCost = rereadCost;
+        }
+
+        /**
+         * 值得缓存
+         */
+        public boolean isSave() {
+            return save;
+        }
+
+        /**
+         * 原图文件长度，单位字节，未知时为0
+         */
+        @SuppressWarnings("unused")
+        public long getSourceLength() {
+            return sourceLength;
+        }
+
+        /**
+         * 解码耗时，单位毫秒
+         */
+        @SuppressWarnings("unused")
+        public long getDecodeUseTime() {
+            return decodeUseTime;
+        }
+
+        /**
+         * 处理耗时，单位毫秒
+         */
+        @SuppressWarnings("unused")
+        public long getProcessUseTime() {
+            return processUseTime;
+        }
+
+        /**
+         * 重新生成的代价，也就是解码加处理的耗时，单位毫秒
+         */
+        public long getRegenerateCost() {
+            return decodeUseTime + processUseTime;
+        }
+
+        /**
+         * 估算的缓存文件大小，单位字节
+         */
+        @SuppressWarnings("unused")
+        public long getExpectedCacheSize() {
+            return expectedCacheSize;
+        }
+
+        /**
+         * 估算的读取缓存的代价，单位毫秒
+         */
+        @SuppressWarnings("unused")
+        public long getRereadCost() {
+            return rereadCost;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Decision(save=%s, sourceLength=%d, decodeUseTime=%d, processUseTime=%d, expectedCacheSize=%d, rereadCost=%d)",
+                    save, sourceLength, decodeUseTime, processUseTime, expectedCacheSize, rereadCost);
+        }
     }
 }
@@ -43,7 +43,14 @@ public class ProcessedResultCacheProcessor implements ResultProcessor {
         }
 
         BitmapDecodeResult bitmapDecodeResult = (BitmapDecodeResult) result;
+        ProcessedImageCache.Decision decision = processedImageCache.decideSaveToDiskCache(request, bitmapDecodeResult);
+        if (!decision.isSave()) {
+            return;
+        }
+
+        // 重新得到这张图片要再解码、处理一次
+        long cost = decision.getRegenerateCost();
         processedImageCache.saveToDiskCache(request.getConfiguration().getDiskCache(),
-                request.getProcessedImageDiskCacheKey(), bitmapDecodeResult.getBitmap());
+                request.getProcessedImageDiskCacheKey(), bitmapDecodeResult.getBitmap(), cost);
     }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.decode;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.SLogType;
+import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
+import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.LoadRequest;
+import me.xiaopan.sketch.request.MaxSize;
+import me.xiaopan.sketch.util.ExifInterface;
+
+/**
+ * 渐进式JPEG解码器，下载过程中不断接收数据并解析JPEG的段结构，每完整收到一次扫描就可以解码出一张更清晰的中间图。
+ * 不是渐进式JPEG的话会自动停用并丢掉已缓存的数据。数据要在Java堆中保存一份，所以只处理长度已知且不超过上限的图片，
+ * 一开始只分配一个小缓冲区，确认是渐进式JPEG之后才会扩大
+ */
+public class ProgressiveJpegDecoder {
+    private static final String LOG_NAME = "ProgressiveJpegDecoder";
+
+    // 两张中间图之间的最小间隔，解码是在下载线程中进行的，太频繁了会拖慢下载
+    private static final long MIN_FRAME_INTERVAL = 300;
+    // 太小的图片很快就下载完了，没必要显示中间图，还能通过FileChannel直接写入磁盘缓存
+    private static final int MIN_CONTENT_LENGTH = 64 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    // SOF段之前的APP段（EXIF等）一般不会超过这么长，超过了还没找到SOF段就放弃
+    private static final int MAX_HEADER_LENGTH = 128 * 1024;
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_SOF2 = 0xC2;
+    private static final byte[] EOI = new byte[]{(byte) 0xFF, (byte) MARKER_EOI};
+
+    private final int contentLength;
+    private byte[] data;
+    private int length;
+
+    private boolean disabled;
+    private int parsePosition;
+    private boolean inScanData;
+    private int scanCount;
+
+    private int imageWidth;
+    private int imageHeight;
+    private int exifOrientation = -1;
+
+    // 只包含完整扫描的数据长度，也就是最新一个SOS段的位置
+    private int completedScansLength;
+    private int decodedScansLength;
+    private long lastFrameTime;
+
+    public ProgressiveJpegDecoder(int contentLength) {
+        this.contentLength = contentLength;
+        if (canUse(contentLength)) {
+            this.data = new byte[Math.min(contentLength, INITIAL_BUFFER_SIZE)];
+        } else {
+            this.disabled = true;
+        }
+    }
+
+    /**
+     * 这个长度的图片能不能显示中间图
+     *
+     * @param contentLength 文件总长度，未知时小于等于0
+     */
+    public static boolean canUse(long contentLength) {
+        return contentLength >= MIN_CONTENT_LENGTH && contentLength <= DownloadStreamDecoder.getMaxContentLength();
+    }
+
+    /**
+     * 不是渐进式JPEG或数据有问题时就停用了
+     */
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    /**
+     * 写入新下载的数据
+     *
+     * @return true：可以解码一张新的中间图了
+     */
+    public boolean write(byte[] buffer, int offset, int count) {
+        if (disabled) {
+            return false;
+        }
+
+        if (length + count > data.length) {
+            // 比声明的长度还长，或者找不到SOF2段就已经很长了，都不处理
+            if (length + count > contentLength || (imageWidth == 0 && length + count > MAX_HEADER_LENGTH)) {
+                disable();
+                return false;
+            }
+            data = Arrays.copyOf(data, Math.min(contentLength, Math.max(length + count, data.length * 2)));
+        }
+        System.arraycopy(buffer, offset, data, length, count);
+        length += count;
+
+        parse();
+
+        return !disabled && completedScansLength > decodedScansLength
+                && System.currentTimeMillis() - lastFrameTime >= MIN_FRAME_INTERVAL;
+    }
+
+    private void disable() {
+        disabled = true;
+        data = null;
+        length = 0;
+    }
+
+    /**
+     * 从上次停下的地方接着解析，数据不够一个完整的段时就停下等待更多数据
+     */
+    private void parse() {
+        while (!disabled) {
+            if (inScanData) {
+                // 扫描数据中的0xFF后面跟着0x00或RSTn都不是段的开始
+                int position = parsePosition;
+                while (position + 1 < length) {
+                    if (data[position] == (byte) 0xFF) {
+                        int next = data[position + 1] & 0xFF;
+                        if (next != 0x00 && next != 0xFF && (next < 0xD0 || next > 0xD7)) {
+                            break;
+                        }
+                    }
+                    position++;
+                }
+                parsePosition = position;
+                if (position + 1 >= length) {
+                    return;
+                }
+                inScanData = false;
+            }
+
+            if (parsePosition + 2 > length) {
+                return;
+            }
+            if (data[parsePosition] != (byte) 0xFF) {
+                disable();
+                return;
+            }
+            int marker = data[parsePosition + 1] & 0xFF;
+
+            if (parsePosition == 0) {
+                if (marker != MARKER_SOI) {
+                    disable();
+                    return;
+                }
+                parsePosition += 2;
+                continue;
+            }
+            if (marker == 0xFF) {
+                // 填充字节
+                parsePosition++;
+                continue;
+            }
+            if (marker == MARKER_EOI) {
+                // 最后一次扫描交给完整解码去显示
+                disable();
+                return;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                parsePosition += 2;
+                continue;
+            }
+
+            if (parsePosition + 4 > length) {
+                return;
+            }
+            int segmentLength = ((data[parsePosition + 2] & 0xFF) << 8) | (data[parsePosition + 3] & 0xFF);
+            if (segmentLength < 2) {
+                disable();
+                return;
+            }
+            if (parsePosition + 2 + segmentLength > length) {
+                return;
+            }
+
+            if (isStartOfFrame(marker)) {
+                if (marker != MARKER_SOF2 || segmentLength < 7) {
+                    // 只处理渐进式JPEG，其它的中间图只有上面一部分，没有意义
+                    disable();
+                    return;
+                }
+                imageHeight = ((data[parsePosition + 5] & 0xFF) << 8) | (data[parsePosition + 6] & 0xFF);
+                imageWidth = ((data[parsePosition + 7] & 0xFF) << 8) | (data[parsePosition + 8] & 0xFF);
+                if (imageWidth <= 1 || imageHeight <= 1) {
+                    disable();
+                    return;
+                }
+            } else if (marker == MARKER_SOS) {
+                if (imageWidth == 0) {
+                    disable();
+                    return;
+                }
+                if (scanCount > 0) {
+                    completedScansLength = parsePosition;
+                }
+                scanCount++;
+                inScanData = true;
+            }
+
+            parsePosition += 2 + segmentLength;
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * 获取图片属性，解析到SOF段之后才有
+     */
+    public ImageAttrs getImageAttrs() {
+        return new ImageAttrs(ImageType.JPEG.getMimeType(), imageWidth, imageHeight,
+                exifOrientation != -1 ? exifOrientation : ExifInterface.ORIENTATION_UNDEFINED);
+    }
+
+    /**
+     * 用已经收到的完整扫描解码一张中间图，尺寸按照maxSize计算，bitmap优先从BitmapPool中获取
+     *
+     * @param request LoadRequest
+     * @return 解码失败时返回null
+     */
+    public Bitmap decodeFrame(LoadRequest request) {
+        if (disabled || completedScansLength <= decodedScansLength) {
+            return null;
+        }
+
+        int scansLength = completedScansLength;
+        decodedScansLength = scansLength;
+        lastFrameTime = System.currentTimeMillis();
+
+        LoadOptions loadOptions = request.getOptions();
+        ImageOrientationCorrector orientationCorrector = request.getConfiguration().getImageOrientationCorrector();
+        if (exifOrientation == -1) {
+            exifOrientation = ExifInterface.ORIENTATION_UNDEFINED;
+            if (!loadOptions.isCorrectImageOrientationDisabled()) {
+                try {
+                    exifOrientation = orientationCorrector.readExifOrientation(new ByteArrayInputStream(data, 0, scansLength));
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        BitmapFactory.Options boundOptions = new BitmapFactory.Options();
+        boundOptions.outWidth = imageWidth;
+        boundOptions.outHeight = imageHeight;
+        orientationCorrector.rotateSize(boundOptions, exifOrientation);
+
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        MaxSize maxSize = loadOptions.getMaxSize();
+        if (maxSize != null) {
+            ImageSizeCalculator imageSizeCalculator = request.getConfiguration().getImageSizeCalculator();
+            decodeOptions.inSampleSize = imageSizeCalculator.calculateInSampleSize(boundOptions.outWidth, boundOptions.outHeight,
+                    maxSize.getWidth(), maxSize.getHeight(), false);
+        }
+        decodeOptions.inPreferredConfig = ImageType.JPEG.getConfig(loadOptions.isLowQualityImage());
+
+        BitmapPool bitmapPool = request.getConfiguration().getBitmapPool();
+        if (BitmapPoolUtils.sdkSupportInBitmap() && !loadOptions.isBitmapPoolDisabled()) {
+            BitmapPoolUtils.setInBitmapFromPool(decodeOptions, imageWidth, imageHeight, ImageType.JPEG.getMimeType(), bitmapPool);
+        }
+
+        // 在完整扫描的后面补上EOI，解码器就会把还没收到的部分当作0处理
+        InputStream inputStream = new SequenceInputStream(new ByteArrayInputStream(data, 0, scansLength), new ByteArrayInputStream(EOI));
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(inputStream, null, decodeOptions);
+        } catch (Throwable throwable) {
+            throwable.printStackTrace();
+            bitmap = null;
+        }
+        if (bitmap == null || bitmap.isRecycled()) {
+            if (decodeOptions.inBitmap != null) {
+                BitmapPoolUtils.freeBitmapToPool(decodeOptions.inBitmap, bitmapPool);
+            }
+            return null;
+        }
+
+        Bitmap newBitmap = orientationCorrector.rotate(bitmap, exifOrientation, bitmapPool);
+        if (newBitmap != null && newBitmap != bitmap) {
+            BitmapPoolUtils.freeBitmapToPool(bitmap, bitmapPool);
+            if (newBitmap.isRecycled()) {
+                return null;
+            }
+            bitmap = newBitmap;
+        }
+
+        if (SLogType.REQUEST.isEnabled()) {
+            SLog.fi(SLogType.REQUEST, LOG_NAME, "decode frame. scans=%d. data=%d/%d. frameSize=%dx%d. %s",
+                    scanCount - 1, scansLength, length, bitmap.getWidth(), bitmap.getHeight(), request.getKey());
+        }
+        return bitmap;
+    }
+}
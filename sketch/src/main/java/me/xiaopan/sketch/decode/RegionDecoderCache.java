@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.decode;
+
+import android.annotation.TargetApi;
+import android.graphics.BitmapRegionDecoder;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import me.xiaopan.sketch.Identifier;
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.SLogType;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * BitmapRegionDecoder缓存，缩略图模式、裁剪解码以及大图功能读取同一个文件时共用同一个BitmapRegionDecoder，省掉重复解析文件头和建立索引的时间。
+ * <br>用引用计数管理，正在使用的不会被回收；空闲的按最近最少使用的顺序回收，以图片尺寸估算占用的native内存，总量不超过maxSize。
+ * 只有能通过{@link ImageAttrsIndex#makeKey(DataSource)}生成key的数据源才缓存，其它的用完就回收
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+public class RegionDecoderCache implements Identifier {
+    private static final String LOG_NAME = "RegionDecoderCache";
+
+    /**
+     * BitmapRegionDecoder为了随机读取要给整张图片建立索引，占用的内存和像素数成正比，和文件长度关系不大，
+     * 按每个像素四分之一个字节估算
+     */
+    private static final int PIXELS_PER_DECODER_BYTE = 4;
+
+    private final LinkedHashMap<String, Ref> refMap = new LinkedHashMap<String, Ref>(0, 0.75f, true);
+    private long maxSize;
+    private long size;
+    private boolean disabled;
+
+    public RegionDecoderCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 获取BitmapRegionDecoder，用完一定要调用{@link Ref#release()}
+     *
+     * @param dataSource 数据源，如果是FileDescriptorDataSource并且已经打开了会直接使用文件描述符
+     * @return Ref
+     * @throws IOException 创建BitmapRegionDecoder失败
+     */
+    public Ref acquire(DataSource dataSource) throws IOException {
+        String key = !disabled ? ImageAttrsIndex.makeKey(dataSource) : null;
+
+        if (key != null) {
+            synchronized (this) {
+                Ref ref = refMap.get(key);
+                if (ref != null && !ref.decoder.isRecycled()) {
+                    ref.refCount++;
+                    return ref;
+                }
+            }
+        }
+
+        // 创建比较耗时，不能在锁里执行
+        BitmapRegionDecoder decoder = ImageDecodeUtils.newRegionDecoder(dataSource);
+        long decoderSize = estimateDecoderSize(decoder);
+
+        if (key == null || decoderSize > maxSize) {
+            return new Ref(this, null, decoder, 0);
+        }
+
+        synchronized (this) {
+            Ref ref = refMap.get(key);
+            if (ref != null && !ref.decoder.isRecycled()) {
+                // 别的线程已经创建了
+                decoder.recycle();
+                ref.refCount++;
+                return ref;
+            }
+
+            if (ref != null) {
+                size -= ref.size;
+            }
+            ref = new Ref(this, key, decoder, decoderSize);
+            ref.refCount++;
+            refMap.put(key, ref);
+            size += decoderSize;
+            trimToSize(maxSize);
+
+            if (SLogType.CACHE.isEnabled()) {
+                SLog.fd(SLogType.CACHE, LOG_NAME, "put. size=%d/%d, count=%d. %s", size, maxSize, refMap.size(), key);
+            }
+            return ref;
+        }
+    }
+
+    /**
+     * 根据图片尺寸估算BitmapRegionDecoder占用的内存
+     */
+    protected long estimateDecoderSize(BitmapRegionDecoder decoder) {
+        return Math.max((long) decoder.getWidth() * decoder.getHeight() / PIXELS_PER_DECODER_BYTE, 0);
+    }
+
+    private synchronized void release(Ref ref) {
+        if (ref.key == null) {
+            ref.decoder.recycle();
+            return;
+        }
+
+        if (ref.refCount > 0) {
+            ref.refCount--;
+        }
+        if (ref.refCount == 0) {
+            if (refMap.get(ref.key) != ref) {
+                // 已经被挤出去了，最后一个使用者负责回收
+                ref.decoder.recycle();
+            } else {
+                trimToSize(maxSize);
+            }
+        }
+    }
+
+    /**
+     * 按最近最少使用的顺序回收空闲的BitmapRegionDecoder，正在使用的只从缓存中移除，等使用者都释放了再回收
+     */
+    private void trimToSize(long targetSize) {
+        Iterator<Ref> iterator = refMap.values().iterator();
+        while (size > targetSize && iterator.hasNext()) {
+            Ref ref = iterator.next();
+            if (ref.refCount > 0 && targetSize > 0) {
+                continue;
+            }
+
+            iterator.remove();
+            size -= ref.size;
+            if (ref.refCount == 0) {
+                ref.decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * 根据level回收空闲的BitmapRegionDecoder
+     *
+     * @param level 修剪级别，对应APP的不同状态，对应ComponentCallbacks2里的常量
+     */
+    public synchronized void trimMemory(int level) {
+        long oldSize = size;
+        if (level >= android.content.ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSize(maxSize / 2);
+        }
+
+        SLog.fw(SLogType.CACHE, LOG_NAME, "trimMemory. level=%s, released: %d",
+                SketchUtils.getTrimLevelName(level), oldSize - size);
+    }
+
+    /**
+     * 清空缓存，正在使用的等使用者释放后再回收
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    @SuppressWarnings("unused")
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @SuppressWarnings("unused")
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    /**
+     * 设置禁用，禁用后每次都创建新的BitmapRegionDecoder，用完就回收
+     *
+     * @param disabled 禁用
+     */
+    @SuppressWarnings("unused")
+    public void setDisabled(boolean disabled) {
+        this.disabled = disabled;
+        SLog.fi(SLogType.CACHE, LOG_NAME, "setDisabled. %s", disabled);
+        if (disabled) {
+            clear();
+        }
+    }
+
+    @Override
+    public String getKey() {
+        return String.format("%s(maxSize=%d,disabled=%s)", LOG_NAME, maxSize, disabled);
+    }
+
+    /**
+     * BitmapRegionDecoder引用，BitmapRegionDecoder内部已经加了锁，多个线程可以同时使用
+     */
+    public static class Ref {
+        private final RegionDecoderCache cache;
+        private final String key;
+        private final BitmapRegionDecoder decoder;
+        private final long size;
+        private int refCount;
+
+        private Ref(RegionDecoderCache cache, String key, BitmapRegionDecoder decoder, long size) {
+            this.cache = cache;
+            this.key = key;
+            this.decoder = decoder;
+            this.size = size;
+        }
+
+        public BitmapRegionDecoder getDecoder() {
+            return decoder;
+        }
+
+        /**
+         * 释放引用，不能再使用getDecoder()返回的BitmapRegionDecoder
+         */
+        public void release() {
+            cache.release(this);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 Peng fei Pan <sky@xiaopan.me>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package me.xiaopan.sketch.decode;
+
+import android.graphics.BitmapFactory;
+import android.widget.ImageView;
+
+import me.xiaopan.sketch.SLog;
+import me.xiaopan.sketch.SLogType;
+import me.xiaopan.sketch.request.LoadOptions;
+import me.xiaopan.sketch.request.LoadRequest;
+import me.xiaopan.sketch.request.Resize;
+import me.xiaopan.sketch.util.SketchUtils;
+
+/**
+ * resize的ScaleType是CENTER_CROP时反正最后要裁掉一部分，那就直接用BitmapRegionDecoder只读取resize在原图中对应的区域，
+ * 省掉解码被裁掉部分的时间以及完整尺寸的临时bitmap。裁掉的部分太少时不划算，还是交给NormalDecodeHelper
+ */
+public class ResizeCropDecodeHelper extends ThumbnailModeDecodeHelper {
+    private static final String LOG_NAME = "ResizeCropDecodeHelper";
+
+    /**
+     * 至少要裁掉这么多比例的像素才使用区域解码
+     */
+    private static final float MIN_CROP_FRACTION = 0.25f;
+
+    @Override
+    public boolean match(LoadRequest request, DataSource dataSource, ImageType imageType, BitmapFactory.Options boundOptions) {
+        LoadOptions loadOptions = request.getOptions();
+        Resize resize = loadOptions.getResize();
+        if (resize == null
+                || resize.getScaleType() != ImageView.ScaleType.CENTER_CROP
+                || loadOptions.getImageProcessor() == null
+                || !SketchUtils.sdkSupportBitmapRegionDecoder()
+                || !SketchUtils.formatSupportBitmapRegionDecoder(imageType)) {
+            return false;
+        }
+
+        // 这里还不知道图片方向，所以旋转前后都要裁掉足够多才行
+        return getCropFraction(boundOptions.outWidth, boundOptions.outHeight, resize) >= MIN_CROP_FRACTION
+                && getCropFraction(boundOptions.outHeight, boundOptions.outWidth, resize) >= MIN_CROP_FRACTION;
+    }
+
+    @Override
+    public DecodeResult decode(LoadRequest request, DataSource dataSource, ImageType imageType, BitmapFactory.Options boundOptions,
+                               BitmapFactory.Options decodeOptions, int exifOrientation) throws DecodeException {
+        if (SLogType.REQUEST.isEnabled()) {
+            SLog.fd(SLogType.REQUEST, LOG_NAME, "crop at decode. imageSize=%dx%d, resize=%s. %s",
+                    boundOptions.outWidth, boundOptions.outHeight, request.getOptions().getResize().getKey(), request.getKey());
+        }
+
+        return decodeResizeRegion(request, dataSource, imageType, boundOptions, decodeOptions, exifOrientation, true, LOG_NAME);
+    }
+
+    /**
+     * 区域解码失败（格式不支持、内存不足等）时交给NormalDecodeHelper，就和没有这个DecodeHelper时一样
+     */
+    @Override
+    boolean isOptional() {
+        return true;
+    }
+
+    /**
+     * 计算按resize的宽高比居中裁剪时要裁掉的像素比例，和ResizeCalculator.Mapping.srcRect的计算方式一致
+     */
+    private static float getCropFraction(int imageWidth, int imageHeight, Resize resize) {
+        if (imageWidth <= 0 || imageHeight <= 0 || resize.getWidth() <= 0 || resize.getHeight() <= 0) {
+            return 0;
+        }
+
+        float imageRatio = (float) imageWidth / imageHeight;
+        float resizeRatio = (float) resize.getWidth() / resize.getHeight();
+        return 1 - Math.min(imageRatio, resizeRatio) / Math.max(imageRatio, resizeRatio);
+    }
+}
@@ -61,16 +61,26 @@ public class ThumbnailModeDecodeHelper extends DecodeHelper {
     @Override
     public DecodeResult decode(LoadRequest request, DataSource dataSource, ImageType imageType, BitmapFactory.Options boundOptions,
                                BitmapFactory.Options decodeOptions, int exifOrientation) throws DecodeException {
-
-        ImageOrientationCorrector orientationCorrector = request.getConfiguration().getImageOrientationCorrector();
-        orientationCorrector.rotateSize(boundOptions, exifOrientation);
-
         // 缩略图模式强制质量优先
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1
                 && !decodeOptions.inPreferQualityOverSpeed) {
             decodeOptions.inPreferQualityOverSpeed = true;
         }
 
+        return decodeResizeRegion(request, dataSource, imageType, boundOptions, decodeOptions, exifOrientation, false, LOG_NAME);
+    }
+
+    /**
+     * 只读取resize在原图中对应的区域
+     *
+     * @param optional 可选的解码方式，失败时不报告错误也不删除磁盘缓存，还原decodeOptions后返回null，交给后面的DecodeHelper解码
+     */
+    DecodeResult decodeResizeRegion(LoadRequest request, DataSource dataSource, ImageType imageType, BitmapFactory.Options boundOptions,
+                                    BitmapFactory.Options decodeOptions, int exifOrientation, boolean optional,
+                                    String logName) throws DecodeException {
+        ImageOrientationCorrector orientationCorrector = request.getConfiguration().getImageOrientationCorrector();
+        orientationCorrector.rotateSize(boundOptions, exifOrientation);
+
         // 计算resize区域在原图中的对应区域
         LoadOptions loadOptions = request.getOptions();
         Resize resize = loadOptions.getResize();
@@ -94,18 +104,24 @@ public class ThumbnailModeDecodeHelper extends DecodeHelper {
 
         Bitmap bitmap = null;
         try {
-            bitmap = ImageDecodeUtils.decodeRegionBitmap(dataSource, mapping.srcRect, decodeOptions);
+            bitmap = ImageDecodeUtils.decodeRegionBitmap(request, dataSource, mapping.srcRect, decodeOptions);
         } catch (Throwable throwable) {
             throwable.printStackTrace();
 
             ErrorTracker errorTracker = request.getConfiguration().getErrorTracker();
             BitmapPool bitmapPool = request.getConfiguration().getBitmapPool();
-            if (ImageDecodeUtils.isInBitmapDecodeError(throwable, decodeOptions, true)) {
+            if (request.isCanceled()) {
+                // 被取消打断的，不算解码失败
+            } else if (optional) {
+                if (SLogType.REQUEST.isEnabled()) {
+                    SLog.fw(SLogType.REQUEST, logName, "decode region failed, fall back. %s. %s", throwable, request.getKey());
+                }
+            } else if (ImageDecodeUtils.isInBitmapDecodeError(throwable, decodeOptions, true)) {
                 ImageDecodeUtils.recycleInBitmapOnDecodeError(errorTracker, bitmapPool, request.getUri(),
                         boundOptions.outWidth, boundOptions.outHeight, boundOptions.outMimeType, throwable, decodeOptions, true);
 
                 try {
-                    bitmap = ImageDecodeUtils.decodeRegionBitmap(dataSource, mapping.srcRect, decodeOptions);
+                    bitmap = ImageDecodeUtils.decodeRegionBitmap(request, dataSource, mapping.srcRect, decodeOptions);
                 } catch (Throwable throwable1) {
                     throwable1.printStackTrace();
 
@@ -121,21 +137,34 @@ public class ThumbnailModeDecodeHelper extends DecodeHelper {
             }
         }
 
+        // 解码过程中请求被取消了，结果可能是不完整的
+        if (ImageDecodeUtils.decodeCanceled(request, bitmap, decodeOptions, logName)) {
+            return null;
+        }
+
         // 过滤掉无效的图片
         if (bitmap == null || bitmap.isRecycled()) {
-            ImageDecodeUtils.decodeError(request, dataSource, LOG_NAME);
+            if (optional) {
+                resetDecodeOptions(request, decodeOptions);
+            } else {
+                ImageDecodeUtils.decodeError(request, dataSource, logName);
+            }
             return null;
         }
 
         // 过滤宽高小于等于1的图片
         if (bitmap.getWidth() <= 1 || bitmap.getHeight() <= 1) {
             if (SLogType.REQUEST.isEnabled()) {
-                SLog.fw(SLogType.REQUEST, LOG_NAME,
+                SLog.fw(SLogType.REQUEST, logName,
                         "image width or height less than or equal to 1px. imageSize: %dx%d. bitmapSize: %dx%d. %s",
                         boundOptions.outWidth, boundOptions.outHeight, bitmap.getWidth(), bitmap.getHeight(), request.getKey());
             }
             bitmap.recycle();
-            ImageDecodeUtils.decodeError(request, dataSource, LOG_NAME);
+            if (optional) {
+                resetDecodeOptions(request, decodeOptions);
+            } else {
+                ImageDecodeUtils.decodeError(request, dataSource, logName);
+            }
             return null;
         }
 
@@ -144,7 +173,18 @@ public class ThumbnailModeDecodeHelper extends DecodeHelper {
 
         correctOrientation(orientationCorrector, result, exifOrientation, request);
 
-        ImageDecodeUtils.decodeSuccess(bitmap, boundOptions.outWidth, boundOptions.outHeight, decodeOptions.inSampleSize, request, LOG_NAME);
+        ImageDecodeUtils.decodeSuccess(bitmap, boundOptions.outWidth, boundOptions.outHeight, decodeOptions.inSampleSize, request, logName);
         return result;
     }
+
+    /**
+     * 区域解码失败后还原被修改过的decodeOptions，没用上的inBitmap放回BitmapPool
+     */
+    private void resetDecodeOptions(LoadRequest request, BitmapFactory.Options decodeOptions) {
+        decodeOptions.inSampleSize = 1;
+        if (BitmapPoolUtils.sdkSupportInBitmapForRegionDecoder() && decodeOptions.inBitmap != null) {
+            BitmapPoolUtils.freeBitmapToPoolForRegionDecoder(decodeOptions.inBitmap, request.getConfiguration().getBitmapPool());
+            decodeOptions.inBitmap = null;
+        }
+    }
 }
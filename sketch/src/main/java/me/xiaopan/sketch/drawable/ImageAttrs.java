@@ -20,10 +20,24 @@ package me.xiaopan.sketch.drawable;
  * 图片的真实属性，例如宽、高、类型、方向等
  */
 public class ImageAttrs {
+    /**
+     * 还没检测是否有透明像素
+     */
+    public static final int OPACITY_UNKNOWN = -1;
+    /**
+     * 可能有透明像素
+     */
+    public static final int OPACITY_TRANSLUCENT = 0;
+    /**
+     * 确定没有透明像素
+     */
+    public static final int OPACITY_OPAQUE = 1;
+
     private int width;
     private int height;
     private String mimeType;
     private int exifOrientation;
+    private int opacity = OPACITY_UNKNOWN;
 
     public ImageAttrs(String mimeType, int width, int height, int exifOrientation) {
         this.mimeType = mimeType;
@@ -52,4 +66,17 @@ public class ImageAttrs {
         this.width = width;
         this.height = height;
     }
+
+    /**
+     * 获取是否有透明像素，只有PNG和WebP才会检测
+     *
+     * @return {@link #OPACITY_UNKNOWN}、{@link #OPACITY_TRANSLUCENT}或{@link #OPACITY_OPAQUE}
+     */
+    public int getOpacity() {
+        return opacity;
+    }
+
+    public void setOpacity(int opacity) {
+        this.opacity = opacity;
+    }
 }
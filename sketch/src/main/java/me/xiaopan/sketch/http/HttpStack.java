@@ -18,6 +18,7 @@ package me.xiaopan.sketch.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Map;
 
 import me.xiaopan.sketch.Identifier;
@@ -151,4 +152,19 @@ public interface HttpStack extends Identifier {
          */
         void releaseConnection();
     }
+
+    /**
+     * 可选的能力，底层本身就是通道的响应（例如基于NIO的HTTP客户端）可以实现这个接口，
+     * ImageDownloader会用FileChannel.transferFrom()直接写入磁盘缓存文件，省掉ImageDownloader自己的读缓冲区和输出流的复制。
+     * 只能包装成通道的流（例如HttpURLConnection）就没必要实现了，transferFrom()内部还是会经过一个临时缓冲区，并不会更快
+     */
+    interface ChannelImageHttpResponse extends ImageHttpResponse {
+        /**
+         * 获取内容通道，和{@link #getContent()}读的是同一份内容，只能二选一
+         *
+         * @return 暂时不支持时返回null，会改为读取{@link #getContent()}
+         * @throws IOException
+         */
+        ReadableByteChannel getContentChannel() throws IOException;
+    }
 }
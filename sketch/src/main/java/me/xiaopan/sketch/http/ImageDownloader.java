@@ -18,10 +18,12 @@ package me.xiaopan.sketch.http;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.ReentrantLock;
 
 import me.xiaopan.sketch.Identifier;
@@ -32,10 +34,12 @@ import me.xiaopan.sketch.request.DownloadRequest;
 import me.xiaopan.sketch.request.DownloadResult;
 import me.xiaopan.sketch.request.ImageFrom;
 import me.xiaopan.sketch.util.DiskLruCache;
+import me.xiaopan.sketch.util.SketchMD5Utils;
 import me.xiaopan.sketch.util.SketchUtils;
 
 public class ImageDownloader implements Identifier {
     private static final String KEY = "ImageDownloader";
+    private static final int TRANSFER_CHUNK_SIZE = 64 * 1024;
 
     /**
      * 下载，这个方法主要实现缓存锁与检查缓存
@@ -54,33 +58,47 @@ public class ImageDownloader implements Identifier {
         // 使用磁盘缓存就必须要上锁
         ReentrantLock diskCacheEditLock = null;
         if (!request.getOptions().isCacheInDiskDisabled()) {
+            // 先用很快就释放的锁检查一下，已经有缓存了就不用去拿独占锁了
+            request.setStatus(BaseRequest.Status.CHECK_DISK_CACHE);
+            ReentrantLock checkLock = diskCache.getEditLock(diskCacheKey);
+            checkLock.lock();
+            DiskCache.Entry existEntry = diskCache.get(diskCacheKey);
+            checkLock.unlock();
+            if (existEntry != null) {
+                return new DownloadResult(existEntry, ImageFrom.DISK_CACHE);
+            }
+
             request.setStatus(BaseRequest.Status.GET_DISK_CACHE_EDIT_LOCK);
 
-            diskCacheEditLock = diskCache.getEditLock(request.getUriInfo().getDiskCacheKey());
-            if (diskCacheEditLock != null) {
-                diskCacheEditLock.lock();
-            }
+            // 下载期间会一直持有锁，所以要用独占锁，以免挡住其它图片的缓存操作
+            diskCacheEditLock = diskCache.getExclusiveEditLock(diskCacheKey);
+            diskCacheEditLock.lock();
 
             if (request.isCanceled()) {
+                diskCacheEditLock.unlock();
                 if (SLogType.REQUEST.isEnabled()) {
                     request.printLogW("canceled", "runDownload", "get disk cache edit lock after");
                 }
                 return null;
             }
 
-            // 检查磁盘缓存
+            // 等锁期间可能已经被别的请求下载好了，再检查一遍
             request.setStatus(BaseRequest.Status.CHECK_DISK_CACHE);
             DiskCache.Entry diskCacheEntry = diskCache.get(diskCacheKey);
             if (diskCacheEntry != null) {
+                diskCacheEditLock.unlock();
                 return new DownloadResult(diskCacheEntry, ImageFrom.DISK_CACHE);
             }
         }
 
-        DownloadResult justDownloadResult = loopRetryDownload(request, diskCache, diskCacheKey);
-
-        // 解锁
-        if (diskCacheEditLock != null) {
-            diskCacheEditLock.unlock();
+        DownloadResult justDownloadResult;
+        try {
+            justDownloadResult = loopRetryDownload(request, diskCache, diskCacheKey);
+        } finally {
+            // 解锁
+            if (diskCacheEditLock != null) {
+                diskCacheEditLock.unlock();
+            }
         }
 
         if (request.isCanceled()) {
@@ -141,6 +159,7 @@ public class ImageDownloader implements Identifier {
             throws IOException, DiskLruCache.EditorChangedException, DiskLruCache.ClosedException, DiskLruCache.FileNotExistException {
         request.setStatus(BaseRequest.Status.CONNECTING);
 
+        long startTime = System.currentTimeMillis();
         HttpStack.ImageHttpResponse httpResponse = httpStack.getHttpResponse(request.getUriInfo().getContent());
         if (request.isCanceled()) {
             httpResponse.releaseConnection();
@@ -198,12 +217,32 @@ public class ImageDownloader implements Identifier {
         if (!request.getOptions().isCacheInDiskDisabled()) {
             diskCacheEditor = diskCache.edit(diskCacheKey);
         }
-        OutputStream outputStream;
+
+        // 开启了内容去重就边读边算摘要，省得写完再读一遍
+        MessageDigest digest = diskCacheEditor != null && diskCacheEditor.isContentDigestRequired() ? SketchMD5Utils.obtainDigest() : null;
+
+        // 响应本身就能提供通道时直接通过FileChannel.transferFrom()写入缓存文件，省掉这里的读缓冲区和输出流的复制，要算摘要或请求要拿到数据时就只能走流了
+        ReadableByteChannel contentChannel = null;
+        FileChannel fileChannel = null;
+        OutputStream outputStream = null;
         if (diskCacheEditor != null) {
             try {
-                outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
-            } catch (FileNotFoundException e) {
+                if (digest == null && httpResponse instanceof HttpStack.ChannelImageHttpResponse
+                        && !request.isReceiveDownloadData(contentLength)) {
+                    contentChannel = ((HttpStack.ChannelImageHttpResponse) httpResponse).getContentChannel();
+                    if (contentChannel != null) {
+                        fileChannel = diskCacheEditor.newFileChannel();
+                    }
+                }
+                if (fileChannel == null) {
+                    outputStream = new BufferedOutputStream(diskCacheEditor.newOutputStream(), 8 * 1024);
+                }
+            } catch (IOException e) {
+                SketchUtils.close(contentChannel);
                 SketchUtils.close(inputStream);
+                if (digest != null) {
+                    SketchMD5Utils.recycleDigest(digest);
+                }
                 diskCacheEditor.abort();
                 throw e;
             }
@@ -215,11 +254,25 @@ public class ImageDownloader implements Identifier {
         int completedLength = 0;
         boolean readFully;
         try {
-            completedLength = readData(request, inputStream, outputStream, (int) contentLength);
+            if (fileChannel != null) {
+                completedLength = transferData(request, contentChannel, fileChannel, (int) contentLength);
+            } else {
+                completedLength = readData(request, inputStream, outputStream, digest, (int) contentLength);
+            }
 
             readFully = contentLength <= 0 || completedLength == contentLength;
+
+            // 先通知数据读完了，边下载边解码的话就不用等提交磁盘缓存了
+            request.receiveDownloadDataFinished(readFully && !request.isCanceled());
+
             if (diskCacheEditor != null) {
                 if (readFully) {
+                    // 下载耗时就是重新获取这张图片的代价
+                    diskCacheEditor.setCategory(DiskCache.Category.ORIGINAL);
+                    diskCacheEditor.setCost(System.currentTimeMillis() - startTime);
+                    if (digest != null) {
+                        diskCacheEditor.setContentDigest(SketchMD5Utils.digestToHex(digest));
+                    }
                     diskCacheEditor.commit();
                 } else {
                     diskCacheEditor.abort();
@@ -236,8 +289,16 @@ public class ImageDownloader implements Identifier {
             diskCacheEditor.abort();
             throw e;
         } finally {
+            // 出异常了也要通知，已经通知过的话这次会被忽略
+            request.receiveDownloadDataFinished(false);
+
             SketchUtils.close(outputStream);
+            SketchUtils.close(fileChannel);
+            SketchUtils.close(contentChannel);
             SketchUtils.close(inputStream);
+            if (digest != null) {
+                SketchMD5Utils.recycleDigest(digest);
+            }
         }
 
         if (request.isCanceled()) {
@@ -267,10 +328,15 @@ public class ImageDownloader implements Identifier {
         }
     }
 
-    private int readData(DownloadRequest request, InputStream inputStream, OutputStream outputStream, int contentLength) throws IOException {
+    /**
+     * @param digest 不为null时读到的数据也会用它计算摘要
+     */
+    private int readData(DownloadRequest request, InputStream inputStream, OutputStream outputStream, MessageDigest digest,
+                         int contentLength) throws IOException {
         int realReadCount;
         int completedLength = 0;
         long lastCallbackTime = 0;
+        boolean receiveData = request.isReceiveDownloadData(contentLength);
         byte[] buffer = new byte[8 * 1024];
         while (true) {
             if (request.isCanceled()) {
@@ -280,6 +346,12 @@ public class ImageDownloader implements Identifier {
             realReadCount = inputStream.read(buffer);
             if (realReadCount != -1) {
                 outputStream.write(buffer, 0, realReadCount);
+                if (digest != null) {
+                    digest.update(buffer, 0, realReadCount);
+                }
+                if (receiveData) {
+                    request.receiveDownloadData(completedLength, buffer, realReadCount, contentLength);
+                }
                 completedLength += realReadCount;
 
                 // 每秒钟回调一次进度
@@ -298,6 +370,39 @@ public class ImageDownloader implements Identifier {
         return completedLength;
     }
 
+    /**
+     * 通过FileChannel.transferFrom()把内容直接写入缓存文件，每次最多传输TRANSFER_CHUNK_SIZE个字节，以便及时响应取消和回调进度
+     */
+    private int transferData(DownloadRequest request, ReadableByteChannel contentChannel, FileChannel fileChannel,
+                             int contentLength) throws IOException {
+        long transferCount;
+        int completedLength = 0;
+        long lastCallbackTime = 0;
+        while (true) {
+            if (request.isCanceled()) {
+                break;
+            }
+
+            // 阻塞的通道只有读到结尾时才会一个字节也传输不了
+            transferCount = fileChannel.transferFrom(contentChannel, completedLength, TRANSFER_CHUNK_SIZE);
+            if (transferCount > 0) {
+                completedLength += transferCount;
+
+                // 每秒钟回调一次进度
+                long currentTime = System.currentTimeMillis();
+                if (currentTime - lastCallbackTime >= 1000) {
+                    lastCallbackTime = currentTime;
+                    request.updateProgress(contentLength, completedLength);
+                }
+            } else {
+                // 结束的时候再次回调一下进度，确保页面上能显示100%
+                request.updateProgress(contentLength, completedLength);
+                break;
+            }
+        }
+        return completedLength;
+    }
+
     @Override
     public String getKey() {
         return KEY;
@@ -65,21 +65,23 @@ public class ApkIconPreprocessor implements Preprocessor {
             return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
         }
 
-        ReentrantLock diskCacheEditLock = diskCache.getEditLock(diskCacheKey);
+        // 生成图片比较慢，要用独占锁，以免挡住其它图片的缓存操作
+        ReentrantLock diskCacheEditLock = diskCache.getExclusiveEditLock(diskCacheKey);
         diskCacheEditLock.lock();
+        try {
+            cacheEntry = diskCache.get(diskCacheKey);
+            if (cacheEntry != null) {
+                return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
+            }
 
-        cacheEntry = diskCache.get(diskCacheKey);
-        if (cacheEntry != null) {
-            return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
+            return readApkIcon(context, uriInfo, diskCache);
+        } finally {
+            diskCacheEditLock.unlock();
         }
-
-        PreProcessResult result = readApkIcon(context, uriInfo, diskCache);
-
-        diskCacheEditLock.unlock();
-        return result;
     }
 
     private PreProcessResult readApkIcon(Context context, UriInfo uriInfo, DiskCache diskCache) {
+        long startTime = System.currentTimeMillis();
         BitmapPool bitmapPool = Sketch.with(context).getConfiguration().getBitmapPool();
         Bitmap iconBitmap = SketchUtils.readApkIcon(context, uriInfo.getContent(), false, LOG_NAME, bitmapPool);
         if (iconBitmap == null) {
@@ -111,6 +113,8 @@ public class ApkIconPreprocessor implements Preprocessor {
             iconBitmap.compress(SketchUtils.bitmapConfigToCompressFormat(iconBitmap.getConfig()), 100, outputStream);
 
             if (diskCacheEditor != null) {
+                diskCacheEditor.setCategory(DiskCache.Category.APP_ICON);
+                diskCacheEditor.setCost(System.currentTimeMillis() - startTime);
                 diskCacheEditor.commit();
             }
         } catch (DiskLruCache.EditorChangedException e) {
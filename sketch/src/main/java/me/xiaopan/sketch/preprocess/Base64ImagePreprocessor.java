@@ -53,21 +53,23 @@ public class Base64ImagePreprocessor implements Preprocessor {
             return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
         }
 
-        ReentrantLock diskCacheEditLock = diskCache.getEditLock(uriInfo.getDiskCacheKey());
+        // 生成图片比较慢，要用独占锁，以免挡住其它图片的缓存操作
+        ReentrantLock diskCacheEditLock = diskCache.getExclusiveEditLock(uriInfo.getDiskCacheKey());
         diskCacheEditLock.lock();
+        try {
+            cacheEntry = diskCache.get(uriInfo.getDiskCacheKey());
+            if (cacheEntry != null) {
+                return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
+            }
 
-        cacheEntry = diskCache.get(uriInfo.getDiskCacheKey());
-        if (cacheEntry != null) {
-            return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
+            return cacheBase64Image(uriInfo, diskCache);
+        } finally {
+            diskCacheEditLock.unlock();
         }
-
-        PreProcessResult result = cacheBase64Image(uriInfo, diskCache);
-
-        diskCacheEditLock.unlock();
-        return result;
     }
 
     private PreProcessResult cacheBase64Image(UriInfo uriInfo, DiskCache diskCache) {
+        long startTime = System.currentTimeMillis();
         byte[] data = Base64.decode(uriInfo.getContent(), Base64.DEFAULT);
 
         DiskCache.Editor diskCacheEditor = diskCache.edit(uriInfo.getDiskCacheKey());
@@ -88,6 +90,8 @@ public class Base64ImagePreprocessor implements Preprocessor {
             outputStream.write(data);
 
             if (diskCacheEditor != null) {
+                diskCacheEditor.setCategory(DiskCache.Category.BASE64);
+                diskCacheEditor.setCost(System.currentTimeMillis() - startTime);
                 diskCacheEditor.commit();
             }
         } catch (DiskLruCache.EditorChangedException e) {
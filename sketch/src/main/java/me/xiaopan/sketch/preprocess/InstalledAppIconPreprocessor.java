@@ -64,21 +64,23 @@ public class InstalledAppIconPreprocessor implements Preprocessor {
             return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
         }
 
-        ReentrantLock diskCacheEditLock = diskCache.getEditLock(uriInfo.getDiskCacheKey());
+        // 生成图片比较慢，要用独占锁，以免挡住其它图片的缓存操作
+        ReentrantLock diskCacheEditLock = diskCache.getExclusiveEditLock(uriInfo.getDiskCacheKey());
         diskCacheEditLock.lock();
+        try {
+            cacheEntry = diskCache.get(uriInfo.getDiskCacheKey());
+            if (cacheEntry != null) {
+                return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
+            }
 
-        cacheEntry = diskCache.get(uriInfo.getDiskCacheKey());
-        if (cacheEntry != null) {
-            return new PreProcessResult(cacheEntry, ImageFrom.DISK_CACHE);
+            return readInstalledAppIcon(context, uriInfo, diskCache);
+        } finally {
+            diskCacheEditLock.unlock();
         }
-
-        PreProcessResult result = readInstalledAppIcon(context, uriInfo, diskCache);
-
-        diskCacheEditLock.unlock();
-        return result;
     }
 
     private PreProcessResult readInstalledAppIcon(Context context, UriInfo uriInfo, DiskCache diskCache) {
+        long startTime = System.currentTimeMillis();
         Uri uri = Uri.parse(uriInfo.getUri());
 
         String packageName = uri.getQueryParameter(INSTALLED_APP_URI_PARAM_PACKAGE_NAME);
@@ -128,6 +130,8 @@ public class InstalledAppIconPreprocessor implements Preprocessor {
             iconBitmap.compress(SketchUtils.bitmapConfigToCompressFormat(iconBitmap.getConfig()), 100, outputStream);
 
             if (diskCacheEditor != null) {
+                diskCacheEditor.setCategory(DiskCache.Category.APP_ICON);
+                diskCacheEditor.setCost(System.currentTimeMillis() - startTime);
                 diskCacheEditor.commit();
             }
         } catch (DiskLruCache.EditorChangedException e) {
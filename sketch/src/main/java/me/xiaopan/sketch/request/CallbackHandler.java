@@ -30,6 +30,8 @@ public class CallbackHandler {
     private static final int WHAT_RUN_FAILED = 33002;
     private static final int WHAT_RUN_CANCELED = 33003;
     private static final int WHAT_RUN_UPDATE_PROGRESS = 33004;
+    private static final int WHAT_RUN_PREVIEW = 33005;
+    private static final int WHAT_RUN_RELEASE_PREVIEW = 33006;
 
     private static final int WHAT_CALLBACK_STARTED = 44001;
     private static final int WHAT_CALLBACK_FAILED = 44002;
@@ -55,6 +57,12 @@ public class CallbackHandler {
                     case WHAT_RUN_FAILED:
                         ((AsyncRequest) msg.obj).runErrorInMainThread();
                         break;
+                    case WHAT_RUN_PREVIEW:
+                        ((DisplayRequest) msg.obj).runPreviewInMainThread();
+                        break;
+                    case WHAT_RUN_RELEASE_PREVIEW:
+                        ((DisplayRequest) msg.obj).runReleasePreviewInMainThread();
+                        break;
 
                     case WHAT_CALLBACK_STARTED:
                         ((Listener) msg.obj).onStarted();
@@ -119,6 +127,20 @@ public class CallbackHandler {
         }
     }
 
+    /**
+     * 推到主线程显示预览图
+     */
+    static void postRunPreview(DisplayRequest request) {
+        handler.obtainMessage(WHAT_RUN_PREVIEW, request).sendToTarget();
+    }
+
+    /**
+     * 过渡效果结束后推到主线程释放预览图
+     */
+    static void postRunReleasePreview(DisplayRequest request, long delayMillis) {
+        handler.sendMessageDelayed(handler.obtainMessage(WHAT_RUN_RELEASE_PREVIEW, request), delayMillis);
+    }
+
     static void postCallbackStarted(Listener listener, boolean sync) {
         if (listener != null) {
             if (sync || SketchUtils.isMainThread()) {
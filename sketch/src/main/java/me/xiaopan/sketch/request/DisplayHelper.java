@@ -26,6 +26,7 @@ import me.xiaopan.sketch.Configuration;
 import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.SLogType;
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.DiskCache;
 import me.xiaopan.sketch.decode.ImageSizeCalculator;
 import me.xiaopan.sketch.display.ImageDisplayer;
 import me.xiaopan.sketch.display.TransitionImageDisplayer;
@@ -351,6 +352,15 @@ public class DisplayHelper {
         return this;
     }
 
+    /**
+     * 渐进式显示，先显示一张低分辨率的预览图，再显示完整的图片
+     */
+    @SuppressWarnings("unused")
+    public DisplayHelper progressiveDisplay() {
+        displayOptions.setProgressiveDisplay(true);
+        return this;
+    }
+
 
     /**
      * 批量设置显示参数（完全覆盖）
@@ -695,6 +705,14 @@ public class DisplayHelper {
         return false;
     }
 
+    /**
+     * 磁盘缓存中是否已经有了，磁盘缓存还在后台安装的时候无法判断，就当作有，交给下载请求在工作线程中等安装好后再判断
+     */
+    private boolean existInDiskCache() {
+        DiskCache diskCache = sketch.getConfiguration().getDiskCache();
+        return diskCache.exist(uriInfo.getDiskCacheKey()) || diskCache.isInstalling();
+    }
+
     private boolean checkRequestLevel() {
         // 如果已经暂停加载的话就不再从本地或网络加载了
         if (displayOptions.getRequestLevel() == RequestLevel.MEMORY) {
@@ -721,7 +739,7 @@ public class DisplayHelper {
 
         // 如果只从本地加载并且是网络请求并且磁盘中没有缓存就结束吧
         if (displayOptions.getRequestLevel() == RequestLevel.LOCAL && uriInfo.getScheme() == UriScheme.NET
-                && !sketch.getConfiguration().getDiskCache().exist(uriInfo.getDiskCacheKey())) {
+                && !existInDiskCache()) {
             boolean isPauseDownload = displayOptions.getRequestLevelFrom() == RequestLevelFrom.PAUSE_DOWNLOAD;
 
             if (SLogType.REQUEST.isEnabled()) {
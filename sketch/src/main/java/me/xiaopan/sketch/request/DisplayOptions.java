@@ -73,6 +73,11 @@ public class DisplayOptions extends LoadOptions {
      */
     private boolean shapeSizeByFixedSize;
 
+    /**
+     * 渐进式显示，先解码一张低分辨率的预览图显示出来，再解码完整的图片替换掉它
+     */
+    private boolean progressiveDisplay;
+
     public DisplayOptions() {
         reset();
     }
@@ -388,6 +393,25 @@ public class DisplayOptions extends LoadOptions {
         return this;
     }
 
+    /**
+     * 是否渐进式显示
+     */
+    public boolean isProgressiveDisplay() {
+        return progressiveDisplay;
+    }
+
+    /**
+     * 设置渐进式显示，先以4到8倍的缩小比例解码一张预览图显示出来，再以较低的优先级解码完整的图片，最后以过渡效果替换预览图，
+     * 适合详情页这种需要显示大图的场景
+     *
+     * @param progressiveDisplay 渐进式显示
+     * @return DisplayOptions
+     */
+    public DisplayOptions setProgressiveDisplay(boolean progressiveDisplay) {
+        this.progressiveDisplay = progressiveDisplay;
+        return this;
+    }
+
     @Override
     public void reset() {
         super.reset();
@@ -400,6 +424,7 @@ public class DisplayOptions extends LoadOptions {
         imageShaper = null;
         shapeSize = null;
         shapeSizeByFixedSize = false;
+        progressiveDisplay = false;
     }
 
     /**
@@ -424,5 +449,6 @@ public class DisplayOptions extends LoadOptions {
         imageShaper = options.imageShaper;
         shapeSize = options.shapeSize;
         shapeSizeByFixedSize = options.shapeSizeByFixedSize;
+        progressiveDisplay = options.progressiveDisplay;
     }
 }
@@ -19,13 +19,20 @@ package me.xiaopan.sketch.request;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.graphics.drawable.LayerDrawable;
 
 import me.xiaopan.sketch.ErrorTracker;
 import me.xiaopan.sketch.SLogType;
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.cache.BitmapPool;
+import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.cache.MemoryCache;
+import me.xiaopan.sketch.decode.BitmapDecodeResult;
+import me.xiaopan.sketch.decode.ProgressiveJpegDecoder;
+import me.xiaopan.sketch.display.ImageDisplayer;
+import me.xiaopan.sketch.display.TransitionImageDisplayer;
 import me.xiaopan.sketch.drawable.ImageAttrs;
+import me.xiaopan.sketch.drawable.SketchLoadingDrawable;
 import me.xiaopan.sketch.drawable.SketchRefBitmap;
 import me.xiaopan.sketch.drawable.SketchBitmapDrawable;
 import me.xiaopan.sketch.drawable.SketchRefDrawable;
@@ -44,6 +51,13 @@ public class DisplayRequest extends LoadRequest {
     private ViewInfo viewInfo;
     private RequestAndViewBinder requestAndViewBinder;
 
+    private ProgressiveJpegDecoder progressiveJpegDecoder;
+    private SketchBitmapDrawable previewDrawable;
+    private boolean previewPosted;
+    private boolean previewDisplayed;
+    private ImageViewInterface transitionViewInterface;
+    private Drawable transitionDrawable;
+
     public DisplayRequest(Sketch sketch, UriInfo uriInfo, String key, DisplayOptions displayOptions,
                           ViewInfo viewInfo, RequestAndViewBinder requestAndViewBinder, DisplayListener displayListener,
                           DownloadProgressListener downloadProgressListener) {
@@ -126,6 +140,45 @@ public class DisplayRequest extends LoadRequest {
         super.postRunCompleted();
     }
 
+    @Override
+    public boolean isReceiveDownloadData(long contentLength) {
+        if (displayOptions.isProgressiveDisplay()) {
+            return !isSync() && ProgressiveJpegDecoder.canUse(contentLength);
+        }
+        return super.isReceiveDownloadData(contentLength);
+    }
+
+    /**
+     * 渐进式JPEG每下载完一次扫描就解码一张中间图显示出来
+     */
+    @Override
+    public void receiveDownloadData(int position, byte[] buffer, int length, int contentLength) {
+        if (!displayOptions.isProgressiveDisplay()) {
+            super.receiveDownloadData(position, buffer, length, contentLength);
+            return;
+        }
+
+        if (position == 0) {
+            progressiveJpegDecoder = new ProgressiveJpegDecoder(contentLength);
+        }
+        if (progressiveJpegDecoder == null || !progressiveJpegDecoder.write(buffer, 0, length) || isCanceled()) {
+            return;
+        }
+
+        Bitmap bitmap = progressiveJpegDecoder.decodeFrame(this);
+        if (bitmap != null) {
+            postPreview(bitmap, progressiveJpegDecoder.getImageAttrs(), ImageFrom.NETWORK);
+        }
+    }
+
+    @Override
+    protected void runDownload() {
+        super.runDownload();
+
+        // 下载结束了，中间图用的数据就没用了
+        progressiveJpegDecoder = null;
+    }
+
     @Override
     protected void runLoad() {
         if (isCanceled()) {
@@ -144,8 +197,112 @@ public class DisplayRequest extends LoadRequest {
         }
 
         if (!finished) {
-            super.runLoad();
+            // 下载时已经显示过中间图了就不用再解码预览图了
+            if (displayOptions.isProgressiveDisplay() && !isSync() && (previewPosted || decodePreview())) {
+                // 预览图已经有了，完整图片就不那么着急了，调低线程优先级给界面和其它请求让路
+                int tid = android.os.Process.myTid();
+                int oldPriority = android.os.Process.getThreadPriority(tid);
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+                try {
+                    super.runLoad();
+                } finally {
+                    android.os.Process.setThreadPriority(oldPriority);
+                }
+            } else {
+                super.runLoad();
+            }
+        }
+    }
+
+    /**
+     * 解码低分辨率的预览图并推到主线程显示
+     *
+     * @return true：预览图已经交给主线程显示了
+     */
+    private boolean decodePreview() {
+        setStatus(Status.DECODING);
+        BitmapDecodeResult previewResult = getConfiguration().getImageDecoder().decodePreview(this);
+        if (previewResult == null) {
+            return false;
+        }
+
+        if (isCanceled()) {
+            BitmapPoolUtils.freeBitmapToPool(previewResult.getBitmap(), getConfiguration().getBitmapPool());
+            return false;
+        }
+
+        postPreview(previewResult.getBitmap(), previewResult.getImageAttrs(), previewResult.getImageFrom());
+        return true;
+    }
+
+    /**
+     * 把预览图或中间图推到主线程显示，主线程还没来得及显示的上一张直接丢掉
+     */
+    private void postPreview(Bitmap bitmap, ImageAttrs imageAttrs, ImageFrom imageFrom) {
+        // 预览图不放入内存缓存，被替换后就没有引用了，会被回收到BitmapPool中
+        BitmapPool bitmapPool = getConfiguration().getBitmapPool();
+        SketchRefBitmap refBitmap = new SketchRefBitmap(bitmap, getKey(), getUri(), imageAttrs, bitmapPool);
+        refBitmap.setIsWaitingUse(String.format("%s:waitingUse:preview", getLogName()), true);
+        SketchBitmapDrawable drawable = new SketchBitmapDrawable(refBitmap, imageFrom);
+
+        SketchBitmapDrawable oldDrawable;
+        synchronized (this) {
+            oldDrawable = previewDrawable;
+            previewDrawable = drawable;
+        }
+        previewPosted = true;
+
+        if (oldDrawable != null) {
+            oldDrawable.setIsWaitingUse(String.format("%s:waitingUse:previewDiscard", getLogName()), false);
+        } else {
+            CallbackHandler.postRunPreview(this);
+        }
+    }
+
+    void runPreviewInMainThread() {
+        SketchBitmapDrawable drawable;
+        synchronized (this) {
+            drawable = previewDrawable;
+            previewDrawable = null;
+        }
+        if (drawable == null) {
+            return;
         }
+
+        ImageViewInterface viewInterface = requestAndViewBinder.getImageViewInterface();
+        if (!isCanceled() && !isFinished() && viewInterface != null && !drawable.isRecycled()) {
+            if (SLogType.REQUEST.isEnabled()) {
+                printLogI("preview display completed", "runPreviewInMainThread", drawable.getInfo());
+            }
+
+            // 用加载中Drawable包一下，这样请求和ImageView的绑定关系就不会断
+            Drawable loadingDrawable = new SketchLoadingDrawable(makeShapeDrawable(drawable), this);
+            if (!previewDisplayed) {
+                displayOptions.getImageDisplayer().display(viewInterface, loadingDrawable);
+                previewDisplayed = true;
+            } else {
+                // 后续的中间图只是越来越清晰，直接替换，上一张也就没有引用了
+                viewInterface.clearAnimation();
+                viewInterface.setImageDrawable(loadingDrawable);
+            }
+        }
+
+        // 使用完毕更新等待使用的引用计数
+        drawable.setIsWaitingUse(String.format("%s:waitingUse:previewFinish", getLogName()), false);
+    }
+
+    void runReleasePreviewInMainThread() {
+        ImageViewInterface viewInterface = transitionViewInterface;
+        Drawable drawable = transitionDrawable;
+        transitionViewInterface = null;
+        transitionDrawable = null;
+        if (viewInterface == null || drawable == null || viewInterface.getDrawable() != drawable) {
+            return;
+        }
+
+        // 过渡效果结束了，去掉过渡Drawable只留下完整图片，这样预览图就没有显示引用了，会被回收到BitmapPool中
+        LayerDrawable layerDrawable = (LayerDrawable) drawable;
+        viewInterface.setImageDrawable(layerDrawable.getDrawable(layerDrawable.getNumberOfLayers() - 1));
     }
 
     private boolean checkMemoryCache() {
@@ -292,11 +449,7 @@ public class DisplayRequest extends LoadRequest {
         }
 
         // 显示图片
-        if ((displayOptions.getShapeSize() != null || displayOptions.getImageShaper() != null)
-                && drawable instanceof BitmapDrawable) {
-            drawable = new SketchShapeBitmapDrawable(getConfiguration().getContext(), (BitmapDrawable) drawable,
-                    displayOptions.getShapeSize(), displayOptions.getImageShaper());
-        }
+        drawable = makeShapeDrawable(drawable);
 
         ImageViewInterface viewInterface = requestAndViewBinder.getImageViewInterface();
         if (SLogType.REQUEST.isEnabled()) {
@@ -309,7 +462,22 @@ public class DisplayRequest extends LoadRequest {
                     "viewHashCode=" + Integer.toHexString(viewInterface.hashCode()));
         }
 
-        displayOptions.getImageDisplayer().display(viewInterface, drawable);
+        if (previewDisplayed) {
+            // 以过渡效果替换预览图，过渡结束后释放预览图
+            ImageDisplayer imageDisplayer = displayOptions.getImageDisplayer();
+            TransitionImageDisplayer transitionImageDisplayer = imageDisplayer instanceof TransitionImageDisplayer ?
+                    (TransitionImageDisplayer) imageDisplayer : new TransitionImageDisplayer();
+            transitionImageDisplayer.display(viewInterface, drawable);
+
+            Drawable newDrawable = viewInterface.getDrawable();
+            if (newDrawable instanceof LayerDrawable) {
+                transitionViewInterface = viewInterface;
+                transitionDrawable = newDrawable;
+                CallbackHandler.postRunReleasePreview(this, transitionImageDisplayer.getDuration());
+            }
+        } else {
+            displayOptions.getImageDisplayer().display(viewInterface, drawable);
+        }
 
         setStatus(Status.COMPLETED);
 
@@ -318,6 +486,15 @@ public class DisplayRequest extends LoadRequest {
         }
     }
 
+    private Drawable makeShapeDrawable(Drawable drawable) {
+        if ((displayOptions.getShapeSize() != null || displayOptions.getImageShaper() != null)
+                && drawable instanceof BitmapDrawable) {
+            return new SketchShapeBitmapDrawable(getConfiguration().getContext(), (BitmapDrawable) drawable,
+                    displayOptions.getShapeSize(), displayOptions.getImageShaper());
+        }
+        return drawable;
+    }
+
     @Override
     protected void runErrorInMainThread() {
         if (isCanceled()) {
@@ -166,6 +166,36 @@ public class DownloadRequest extends AsyncRequest {
         }
     }
 
+    /**
+     * 下载过程中是否需要拿到读到的数据，需要的话就不能通过通道直接写入文件了
+     *
+     * @param contentLength 文件总长度，未知时小于等于0
+     */
+    public boolean isReceiveDownloadData(long contentLength) {
+        return false;
+    }
+
+    /**
+     * 收到下载的数据，在下载线程中执行
+     *
+     * @param position      这段数据在文件中的位置，为0时表示开始了一次新的下载（重试）
+     * @param buffer        数据
+     * @param length        数据长度
+     * @param contentLength 文件总长度，未知时小于等于0
+     */
+    public void receiveDownloadData(int position, byte[] buffer, int length, int contentLength) {
+
+    }
+
+    /**
+     * 下载结束了，不论成功与否都会回调，在下载线程中执行
+     *
+     * @param readFully 数据是否完整
+     */
+    public void receiveDownloadDataFinished(boolean readFully) {
+
+    }
+
     /**
      * 下载完成后续处理
      */
@@ -44,4 +44,9 @@ public enum ImageFrom {
      * 内存
      */
     MEMORY,
+
+    /**
+     * EXIF中内嵌的缩略图
+     */
+    EXIF_THUMBNAIL,
 }
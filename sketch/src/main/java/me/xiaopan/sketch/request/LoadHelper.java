@@ -23,6 +23,7 @@ import me.xiaopan.sketch.Configuration;
 import me.xiaopan.sketch.SLog;
 import me.xiaopan.sketch.SLogType;
 import me.xiaopan.sketch.Sketch;
+import me.xiaopan.sketch.cache.DiskCache;
 import me.xiaopan.sketch.process.ImageProcessor;
 import me.xiaopan.sketch.util.SketchUtils;
 
@@ -321,11 +322,19 @@ public class LoadHelper {
         key = SketchUtils.makeRequestKey(uriInfo.getUri(), uriInfo.getScheme(), loadOptions);
     }
 
+    /**
+     * 磁盘缓存中是否已经有了，磁盘缓存还在后台安装的时候无法判断，就当作有，交给下载请求在工作线程中等安装好后再判断
+     */
+    private boolean existInDiskCache() {
+        DiskCache diskCache = sketch.getConfiguration().getDiskCache();
+        return diskCache.exist(uriInfo.getDiskCacheKey()) || diskCache.isInstalling();
+    }
+
     private boolean checkRequestLevel() {
         // 如果只从本地加载并且是网络请求并且磁盘中没有缓存就结束吧
         if (loadOptions.getRequestLevel() == RequestLevel.LOCAL
                 && uriInfo.getScheme() == UriScheme.NET
-                && !sketch.getConfiguration().getDiskCache().exist(uriInfo.getDiskCacheKey())) {
+                && !existInDiskCache()) {
             boolean isPauseDownload = loadOptions.getRequestLevelFrom() == RequestLevelFrom.PAUSE_DOWNLOAD;
 
             if (SLogType.REQUEST.isEnabled()) {
@@ -17,13 +17,17 @@
 package me.xiaopan.sketch.request;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 
 import me.xiaopan.sketch.SLogType;
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.cache.BitmapPoolUtils;
 import me.xiaopan.sketch.decode.BitmapDecodeResult;
+import me.xiaopan.sketch.decode.CacheFileDataSource;
+import me.xiaopan.sketch.decode.DataSource;
 import me.xiaopan.sketch.decode.DecodeException;
 import me.xiaopan.sketch.decode.DecodeResult;
+import me.xiaopan.sketch.decode.DownloadStreamDecoder;
 import me.xiaopan.sketch.decode.GifDecodeResult;
 import me.xiaopan.sketch.drawable.ImageAttrs;
 import me.xiaopan.sketch.drawable.SketchGifDrawable;
@@ -38,6 +42,8 @@ public class LoadRequest extends FreeRideDownloadRequest {
     private LoadListener loadListener;
 
     private LoadResult loadResult;
+    private volatile BitmapFactory.Options decodingOptions;
+    private DownloadStreamDecoder streamDecoder;
 
     public LoadRequest(Sketch sketch, UriInfo uriInfo, String key, LoadOptions loadOptions,
                        LoadListener loadListener, DownloadProgressListener downloadProgressListener) {
@@ -80,10 +86,28 @@ public class LoadRequest extends FreeRideDownloadRequest {
         }
     }
 
+    /**
+     * 设置正在解码使用的Options，请求被取消时通过它中断解码，解码结束后要设置为null
+     */
+    @SuppressWarnings("deprecation")
+    public void setDecodingOptions(BitmapFactory.Options decodingOptions) {
+        this.decodingOptions = decodingOptions;
+        if (decodingOptions != null && isCanceled()) {
+            decodingOptions.requestCancelDecode();
+        }
+    }
+
     @Override
+    @SuppressWarnings("deprecation")
     public void canceled(CancelCause cancelCause) {
         super.canceled(cancelCause);
 
+        // 正在解码的话中断解码，尽快释放加载线程
+        BitmapFactory.Options decodingOptions = this.decodingOptions;
+        if (decodingOptions != null) {
+            decodingOptions.requestCancelDecode();
+        }
+
         if (loadListener != null) {
             postRunCanceled();
         }
@@ -123,11 +147,49 @@ public class LoadRequest extends FreeRideDownloadRequest {
         super.runDispatch();
     }
 
+    @Override
+    public boolean isReceiveDownloadData(long contentLength) {
+        return DownloadStreamDecoder.canUse(this, contentLength);
+    }
+
+    /**
+     * 边下载边解码
+     */
+    @Override
+    public void receiveDownloadData(int position, byte[] buffer, int length, int contentLength) {
+        if (position == 0) {
+            // 重试时上一次已经完整收到的话就继续用上一次的解码结果
+            if (streamDecoder != null && streamDecoder.isReadFully()) {
+                return;
+            }
+            streamDecoder = DownloadStreamDecoder.start(this, contentLength);
+        } else if (streamDecoder != null && streamDecoder.isReadFully()) {
+            return;
+        }
+
+        if (streamDecoder != null) {
+            streamDecoder.write(buffer, length);
+        }
+    }
+
+    @Override
+    public void receiveDownloadDataFinished(boolean readFully) {
+        if (streamDecoder != null) {
+            streamDecoder.finish(readFully);
+        }
+    }
+
     @Override
     protected void downloadCompleted() {
         DownloadResult downloadResult = getDownloadResult();
         if (downloadResult != null && downloadResult.hasData()) {
             submitRunLoad();
+        } else if (streamDecoder != null && streamDecoder.isReadFully()) {
+            // 数据已经完整收到了，只是没能提交到磁盘缓存，边下载边解码的结果还是可以用的
+            if (SLogType.REQUEST.isEnabled()) {
+                printLogW("download failed", "downloadCompleted", "use stream decode result");
+            }
+            submitRunLoad();
         } else {
             if (SLogType.REQUEST.isEnabled()) {
                 printLogE("are all null", "downloadCompleted");
@@ -145,11 +207,23 @@ public class LoadRequest extends FreeRideDownloadRequest {
             return;
         }
 
-        // 解码
+        // 解码，边下载边解码已经有结果了就只需要执行后续的处理
         setStatus(Status.DECODING);
+        DownloadStreamDecoder streamDecoder = this.streamDecoder;
+        this.streamDecoder = null;
+        BitmapDecodeResult streamDecodeResult = streamDecoder != null ? streamDecoder.awaitResult() : null;
         DecodeResult decodeResult;
         try {
-            decodeResult = getConfiguration().getImageDecoder().decode(this);
+            if (streamDecodeResult != null) {
+                recordStreamImageAttrs(streamDecodeResult.getImageAttrs());
+                decodeResult = getConfiguration().getImageDecoder().process(this, streamDecodeResult);
+            } else if (streamDecoder != null && (getDownloadResult() == null || !getDownloadResult().hasData())) {
+                // 没有磁盘缓存，边下载边解码又失败了，就没有办法了
+                error(ErrorCause.DOWNLOAD_FAIL);
+                return;
+            } else {
+                decodeResult = getConfiguration().getImageDecoder().decode(this);
+            }
         } catch (DecodeException e) {
             e.printStackTrace();
             error(e.getErrorCause());
@@ -218,6 +292,10 @@ public class LoadRequest extends FreeRideDownloadRequest {
 
             loadResult = new LoadResult(gifDrawable, decodeResult);
             loadCompleted();
+        } else if (isCanceled()) {
+            if (SLogType.REQUEST.isEnabled()) {
+                printLogW("canceled", "runLoad", "decode interrupted");
+            }
         } else {
             if (SLogType.REQUEST.isEnabled()) {
                 printLogE("are all null", "runLoad");
@@ -226,6 +304,19 @@ public class LoadRequest extends FreeRideDownloadRequest {
         }
     }
 
+    /**
+     * 边下载边解码时已经读过尺寸和方向了，记到索引里，下次从磁盘缓存解码时就不用再读了
+     */
+    private void recordStreamImageAttrs(ImageAttrs imageAttrs) {
+        DownloadResult downloadResult = getDownloadResult();
+        if (downloadResult == null || downloadResult.getDiskCacheEntry() == null) {
+            return;
+        }
+
+        DataSource dataSource = new CacheFileDataSource(downloadResult.getDiskCacheEntry(), downloadResult.getImageFrom());
+        getConfiguration().getImageAttrsIndex().record(dataSource, imageAttrs, getOptions().isCorrectImageOrientationDisabled());
+    }
+
     protected void loadCompleted() {
         postRunCompleted();
     }
@@ -17,35 +17,48 @@
 package me.xiaopan.sketch.util;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import me.xiaopan.sketch.SLog;
 
@@ -95,17 +108,50 @@ import me.xiaopan.sketch.SLog;
  */
 public final class DiskLruCache implements Closeable {
     public static final String JOURNAL_FILE = "journal";
+    public static final String JOURNAL_FILE_BINARY = "journal.bin";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String JOURNAL_FILE_BINARY_TMP = "journal.bin.tmp";
+    static final String JOURNAL_FILE_BKP = "journal.bkp";
+    static final String JOURNAL_FILE_BINARY_BKP = "journal.bin.bkp";
+    public static final String JOURNAL_FILE_LOCK = "journal.lock";
     static final String MAGIC = "libcore.io.DiskLruCache";
+    static final int MAGIC_BINARY = 0x444c4342; // "DLCB"
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    private static final String PACKED = "PACKED";
+    private static final String COST = "COST";
+    private static final String LINK = "LINK";
+
+    private static final int OP_CLEAN = 1;
+    private static final int OP_DIRTY = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_READ = 4;
+    private static final int OP_PACKED = 5;
+    private static final int OP_COST = 6;
+    private static final int OP_LINK = 7;
+    private static final int OP_FLAG_PACKED_KEY = 0x80;
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int JOURNAL_FLUSH_SIZE_THRESHOLD = 4 * 1024;
+    private static final long JOURNAL_FLUSH_DELAY_MILLIS = 1000;
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".pack";
+    private static final Pattern VALUE_FILE_NAME_PATTERN = Pattern.compile("[0-9A-Za-z_-]+\\.\\d+(\\.tmp)?");
+    private static final long SEGMENT_MAX_LENGTH = 4 * 1024 * 1024;
+    private static final long LOCK_JOURNAL_POSITION = 0;
+    private static final long LOCK_JOURNAL_SIZE = 8;
+    private static final long LOCK_PRESENCE_POSITION = 8;
+    private static final int EVICTION_WINDOW = 16;
+
+    /**
+     * Entries are tagged with a category in [0, CATEGORY_COUNT), 0 by default.
+     */
+    public static final int CATEGORY_COUNT = 8;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -145,16 +191,86 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Compaction runs on the cleanup thread without holding the cache lock for
+     * the whole rewrite. It copies the index under the lock, writes the copy to
+     * "journal.tmp" without the lock while every line appended to the journal in
+     * the meantime is also kept in a backlog, and finally, holding only the
+     * journal lock, appends the backlog and renames the file over the journal.
+     * Replaying the backlog after the copy is safe because applying a line again
+     * to a state that already reflects it does not change that state.
+     *
+     * With packing enabled (see setPackedMaxLength) small single-value entries are
+     * not kept as their own files but appended to segment files named
+     * "segment-<n>.pack". They are published with a PACKED line instead of CLEAN:
+     *     PACKED 3400330d1dfc7f3f7f4b8d4d803dfcf6 2 1048576 21054
+     * which is followed by the segment number, the offset in the segment and the
+     * length. Segments are append only; bytes of removed or replaced entries stay
+     * behind as dead space until the cleanup thread compacts the segment by copying
+     * its live entries to the active segment and deleting it.
+     *
+     * When opened with binaryJournal the same records are kept in "journal.bin"
+     * instead, which is much cheaper to parse for big caches:
+     *     header:  int32 0x444c4342, varint version, varint appVersion, varint valueCount
+     *     record:  byte op, key, and for CLEAN one varint length per value
+     * The low bits of op are 1 CLEAN, 2 DIRTY, 3 REMOVE, 4 READ, 5 PACKED (followed
+     * by varint segment, offset and length instead of the lengths). When bit 0x80 is
+     * set the key is a 32-char lowercase hex string (an MD5 digest) packed into
+     * 16 bytes, otherwise it is a varint length followed by the UTF-8 bytes. A
+     * truncated trailing record is ignored, just like a text line without "\n".
+     * If only the other format's journal exists it is migrated on open.
+     *
+     * An entry that was committed with a category or a regeneration cost other
+     * than 0 has its CLEAN or PACKED record followed by a COST record:
+     *     COST 3400330d1dfc7f3f7f4b8d4d803dfcf6 1 820
+     * which holds the category and the cost in milliseconds (op 6 with two varints
+     * in the binary journal). A CLEAN or PACKED record without one resets both to 0.
+     *
+     * With content dedup enabled (see setContentDedup) an entry committed with a
+     * content key whose value is already stored does not keep its own copy but
+     * is published with a LINK line instead of CLEAN:
+     *     LINK 335c4c6028171cfddfbaae1a9c313c52 1ab96a171faeeee38496d8b330771a7a
+     * which is followed by the key of the entry holding the value. In the binary
+     * journal this is op 7 followed by the target key, written as a varint length
+     * and the UTF-8 bytes, or as 0 and the 16 packed bytes. The shared entry is
+     * removed together with every entry linking to it, and the other way round it
+     * is removed once the last entry linking to it is gone.
+     *
+     * DIRTY and CLEAN lines are written and flushed before the operation returns,
+     * together with every line queued in front of them. READ and REMOVE lines are
+     * queued and group committed by a single background writer once the queue
+     * reaches JOURNAL_FLUSH_SIZE_THRESHOLD bytes or JOURNAL_FLUSH_DELAY_MILLIS
+     * has passed. These lines were never flushed eagerly before either, so the
+     * durability after a crash is unchanged: a lost READ only costs LRU accuracy.
+     *
+     * A cache opened with multiProcess may share its directory with caches in
+     * other processes. They coordinate through "journal.lock":
+     *   o Every operation holds an exclusive FileLock on the first 8 bytes, which
+     *     also store the journal generation, while it touches the journal. It
+     *     first reads the records other processes appended since its last
+     *     operation, so a value committed in one process is a hit in the other.
+     *   o Lines are written right away, because other processes only learn about
+     *     changes from the journal. The journal is rebuilt under the lock, which
+     *     bumps the generation so the other processes read it again from the start.
+     *   o Every open cache holds a shared FileLock on byte 8. DIRTY lines of other
+     *     processes mark entries that cannot be edited here. They are only treated
+     *     as left over from a crash when no other process holds that lock on open.
+     * Packing is not available in this mode, and every process has to use the
+     * same journal format.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File legacyJournalFile;
+    private final File journalFileBackup;
+    private final File legacyJournalFileBackup;
+    private final boolean binaryJournal;
     private final int appVersion;
-    private final long maxSize;
+    private long maxSize;
     private final int valueCount;
     private long size = 0;
-    private Writer journalWriter;
+    private volatile OutputStream journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
@@ -166,6 +282,59 @@ public final class DiskLruCache implements Closeable {
      */
     private long nextSequenceNumber = 0;
 
+    /**
+     * Lock order is DiskLruCache.this -> journalLock -> pendingJournalLock. The
+     * background writer never takes DiskLruCache.this, so journal I/O does not
+     * block cache operations that only queue lines.
+     */
+    private final Object journalLock = new Object();
+    private final Object pendingJournalLock = new Object();
+    private final ByteArrayOutputStream pendingJournal = new ByteArrayOutputStream(JOURNAL_FLUSH_SIZE_THRESHOLD);
+    private boolean journalFlushScheduled;
+    private boolean journalFlushRequested;
+    private long journalLineCount;
+    private long journalFlushCount;
+
+    /**
+     * Lines written to the journal while a compaction is in progress, null
+     * otherwise. Guarded by journalLock.
+     */
+    private ByteArrayOutputStream compactionBacklog;
+    private long journalCompactionCount;
+    private long journalCompactionBlockedNanos;
+    private long journalCompactionMaxBlockedNanos;
+
+    /**
+     * Entries up to this length are appended to a segment file, 0 disables packing.
+     */
+    private long packedMaxLength;
+    private final Map<Integer, Segment> segments = new HashMap<Integer, Segment>();
+    private Segment activeSegment;
+
+    /**
+     * Entries committed with the same content key share one value.
+     */
+    private boolean contentDedup;
+
+    /**
+     * Only used when the directory is shared with other processes. The lock file
+     * is guarded by DiskLruCache.this.
+     */
+    private final boolean multiProcess;
+    private RandomAccessFile lockFile;
+    private FileLock journalFileLock;
+    private FileLock presenceLock;
+    private int journalFileLockHoldCount;
+    private long journalGeneration;
+    private long journalReadOffset;
+
+    /**
+     * Per category usage, quota (0 means no quota) and number of entries evicted.
+     */
+    private final long[] categorySizes = new long[CATEGORY_COUNT];
+    private final long[] categoryMaxSizes = new long[CATEGORY_COUNT];
+    private final long[] categoryEvictionCounts = new long[CATEGORY_COUNT];
+
     /* From java.util.Arrays */
     @SuppressWarnings("unchecked")
     private static <T> T[] copyOfRange(T[] original, int start, int end) {
@@ -269,25 +438,68 @@ public final class DiskLruCache implements Closeable {
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override
         public Void call() throws Exception {
+            boolean compactJournal;
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+                lockJournalFile();
+                try {
+                    trimToSize();
+                    compactSegments();
+                    compactJournal = journalRebuildRequired();
+
+                    // other processes append to the journal too, it can only be rewritten under the file lock
+                    if (compactJournal && multiProcess) {
+                        rebuildJournal();
+                        redundantOpCount = 0;
+                        compactJournal = false;
+                    }
+                } finally {
+                    unlockJournalFile();
                 }
             }
+            if (compactJournal) {
+                compactJournal();
+            }
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    /**
+     * This cache uses a single background thread to group commit queued journal lines.
+     */
+    private final ScheduledThreadPoolExecutor journalExecutor = newJournalExecutor();
+    private final Runnable journalFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flushPendingJournal();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private static ScheduledThreadPoolExecutor newJournalExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize, boolean binaryJournal,
+                         RandomAccessFile lockFile) {
         this.directory = directory;
+        this.lockFile = lockFile;
+        this.multiProcess = lockFile != null;
         this.appVersion = appVersion;
-        this.journalFile = new File(directory, JOURNAL_FILE);
-        this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.binaryJournal = binaryJournal;
+        this.journalFile = new File(directory, binaryJournal ? JOURNAL_FILE_BINARY : JOURNAL_FILE);
+        this.journalFileTmp = new File(directory, binaryJournal ? JOURNAL_FILE_BINARY_TMP : JOURNAL_FILE_TMP);
+        this.legacyJournalFile = new File(directory, binaryJournal ? JOURNAL_FILE : JOURNAL_FILE_BINARY);
+        this.journalFileBackup = new File(directory, binaryJournal ? JOURNAL_FILE_BINARY_BKP : JOURNAL_FILE_BKP);
+        this.legacyJournalFileBackup = new File(directory, binaryJournal ? JOURNAL_FILE_BKP : JOURNAL_FILE_BINARY_BKP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
     }
@@ -304,6 +516,40 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. A journal in the other format is migrated to the requested one.
+     *
+     * @param directory     a writable directory
+     * @param appVersion
+     * @param valueCount    the number of values per cache entry. Must be positive.
+     * @param maxSize       the maximum number of bytes this cache should use to store
+     * @param binaryJournal true: keep the journal in the compact binary format
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize, boolean binaryJournal)
+            throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, binaryJournal, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. A journal in the other format is migrated to the requested one.
+     *
+     * @param directory     a writable directory
+     * @param appVersion
+     * @param valueCount    the number of values per cache entry. Must be positive.
+     * @param maxSize       the maximum number of bytes this cache should use to store
+     * @param binaryJournal true: keep the journal in the compact binary format
+     * @param multiProcess  true: the directory may be shared with caches opened
+     *                      by other processes, see the comment on the journal format
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize, boolean binaryJournal,
+                                    boolean multiProcess) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -311,31 +557,148 @@ public final class DiskLruCache implements Closeable {
             throw new IllegalArgumentException("valueCount <= 0");
         }
 
+        if (!multiProcess) {
+            return openJournal(directory, appVersion, valueCount, maxSize, binaryJournal, null, false);
+        }
+
+        // no other process may touch the journal while it is read or created
+        directory.mkdirs();
+        RandomAccessFile lockFile = new RandomAccessFile(new File(directory, JOURNAL_FILE_LOCK), "rw");
+        FileLock journalFileLock = null;
+        try {
+            journalFileLock = lockFile.getChannel().lock(LOCK_JOURNAL_POSITION, LOCK_JOURNAL_SIZE, false);
+
+            // if no other process has the cache open, DIRTY lines are left over from a crash
+            FileLock presenceLock = lockFile.getChannel().tryLock(LOCK_PRESENCE_POSITION, 1, false);
+            boolean keepDirtyEntries = presenceLock == null;
+            if (presenceLock != null) {
+                presenceLock.release();
+            }
+
+            DiskLruCache cache = openJournal(directory, appVersion, valueCount, maxSize, binaryJournal, lockFile, keepDirtyEntries);
+            cache.presenceLock = lockFile.getChannel().lock(LOCK_PRESENCE_POSITION, 1, true);
+            return cache;
+        } catch (OverlappingFileLockException e) {
+            closeQuietly(lockFile);
+            throw new IOException("cache is already open in this process: " + directory);
+        } catch (IOException e) {
+            closeQuietly(lockFile);
+            throw e;
+        } finally {
+            if (journalFileLock != null && journalFileLock.isValid()) {
+                journalFileLock.release();
+            }
+        }
+    }
+
+    /**
+     * @param lockFile         the lock file if the directory is shared with other processes, otherwise null.
+     *                         The caller holds the journal lock on it.
+     * @param keepDirtyEntries true: DIRTY lines may be ongoing edits of other processes
+     */
+    private static DiskLruCache openJournal(File directory, int appVersion, int valueCount, long maxSize, boolean binaryJournal,
+                                            RandomAccessFile lockFile, boolean keepDirtyEntries) throws IOException {
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal, lockFile);
+        File migrateFrom = cache.prepareJournalMigration();
+        if (cache.journalFile.exists() || migrateFrom != null) {
             try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (migrateFrom != null ? !binaryJournal : binaryJournal) {
+                    cache.readBinaryJournal(migrateFrom != null ? migrateFrom : cache.journalFile);
+                } else {
+                    cache.readJournal(migrateFrom != null ? migrateFrom : cache.journalFile);
+                }
+                cache.processJournal(keepDirtyEntries);
+                if (migrateFrom != null) {
+                    cache.rebuildJournal();
+                    deleteIfExists(migrateFrom);
+                } else {
+                    cache.journalWriter = new BufferedOutputStream(new FileOutputStream(cache.journalFile, true),
+                            IO_BUFFER_SIZE);
+                }
+                cache.markJournalSynced();
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
 //                        + journalIsCorrupt.getMessage() + ", removing");
-                cache.delete();
+                deleteCacheFiles(directory);
             }
         }
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal, lockFile);
         cache.rebuildJournal();
+        cache.markJournalSynced();
         return cache;
     }
 
-    private void readJournal() throws IOException {
-        InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
+    /**
+     * Returns true if {@code directory} holds a journal of either format,
+     * including one left behind by an interrupted migration.
+     */
+    public static boolean existJournal(File directory) {
+        return new File(directory, JOURNAL_FILE).exists()
+                || new File(directory, JOURNAL_FILE_BINARY).exists()
+                || new File(directory, JOURNAL_FILE_BKP).exists()
+                || new File(directory, JOURNAL_FILE_BINARY_BKP).exists();
+    }
+
+    /**
+     * Returns true if {@code name} is the name of a file this class creates in
+     * its directory: a journal, a value file or a segment file. The lock file
+     * is not included because other processes may be waiting on it.
+     */
+    public static boolean isCacheFileName(String name) {
+        return JOURNAL_FILE.equals(name)
+                || JOURNAL_FILE_BINARY.equals(name)
+                || JOURNAL_FILE_TMP.equals(name)
+                || JOURNAL_FILE_BINARY_TMP.equals(name)
+                || JOURNAL_FILE_BKP.equals(name)
+                || JOURNAL_FILE_BINARY_BKP.equals(name)
+                || (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX))
+                || VALUE_FILE_NAME_PATTERN.matcher(name).matches();
+    }
+
+    /**
+     * Resolves the journal files left over from a migration between the text
+     * and the binary format. Before the journal is rewritten in the requested
+     * format, the journal of the other format is renamed to its backup name, so
+     * there is never more than one journal a later open could pick up. A
+     * backup is only read again while neither journal exists; once the new
+     * journal exists the backup is stale.
+     *
+     * @return the backup of the other format's journal to migrate from, or
+     * null if the journal in the requested format should be read as usual
+     */
+    private File prepareJournalMigration() throws IOException {
+        // our own backup: a migration to the other format was interrupted or has finished
+        if (journalFileBackup.exists()) {
+            if (legacyJournalFile.exists() || journalFile.exists()) {
+                deleteIfExists(journalFileBackup);
+            } else if (!journalFileBackup.renameTo(journalFile)) {
+                throw new IOException("failed to restore journal backup: " + journalFileBackup);
+            }
+        }
+
+        if (journalFile.exists()) {
+            // the journal in the requested format is authoritative, anything else is stale
+            deleteIfExists(legacyJournalFile);
+            deleteIfExists(legacyJournalFileBackup);
+            return null;
+        }
+
+        if (legacyJournalFile.exists()) {
+            deleteIfExists(legacyJournalFileBackup);
+            if (!legacyJournalFile.renameTo(legacyJournalFileBackup)) {
+                throw new IOException("failed to back up journal: " + legacyJournalFile);
+            }
+        }
+        return legacyJournalFileBackup.exists() ? legacyJournalFileBackup : null;
+    }
+
+    private void readJournal(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
             String version = readAsciiLine(in);
@@ -351,18 +714,30 @@ public final class DiskLruCache implements Closeable {
                         + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
             }
 
-            while (true) {
-                try {
-                    readJournalLine(readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
-                    break;
-                }
-            }
+            readJournalLines(in);
         } finally {
             closeQuietly(in);
         }
     }
 
+    /**
+     * Reads text journal lines up to the end of {@code in}.
+     *
+     * @return the number of lines read
+     */
+    private int readJournalLines(InputStream in) throws IOException {
+        int lineCount = 0;
+        while (true) {
+            try {
+                readJournalLine(readAsciiLine(in));
+                lineCount++;
+            } catch (EOFException endOfJournal) {
+                break;
+            }
+        }
+        return lineCount;
+    }
+
     private void readJournalLine(String line) throws IOException {
         String[] parts = line.split(" ");
         if (parts.length < 2) {
@@ -371,7 +746,7 @@ public final class DiskLruCache implements Closeable {
 
         String key = parts[1];
         if (parts[0].equals(REMOVE) && parts.length == 2) {
-            lruEntries.remove(key);
+            removeJournalEntry(key);
             return;
         }
 
@@ -385,8 +760,46 @@ public final class DiskLruCache implements Closeable {
             entry.readable = true;
             entry.currentEditor = null;
             entry.setLengths(copyOfRange(parts, 2, parts.length));
+            entry.sequenceNumber = nextSequenceNumber++;
+            entry.segment = -1;
+            entry.category = 0;
+            entry.cost = 0;
+            detachJournalEntry(entry);
+        } else if (parts[0].equals(LINK) && parts.length == 3 && !parts[2].equals(key)) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            Arrays.fill(entry.lengths, 0);
+            entry.sequenceNumber = nextSequenceNumber++;
+            entry.segment = -1;
+            entry.category = 0;
+            entry.cost = 0;
+            attachJournalEntry(entry, parts[2]);
+        } else if (parts[0].equals(PACKED) && parts.length == 5 && valueCount == 1) {
+            try {
+                entry.readable = true;
+                entry.currentEditor = null;
+                entry.segment = Integer.parseInt(parts[2]);
+                entry.offset = Long.parseLong(parts[3]);
+                entry.lengths[0] = Long.parseLong(parts[4]);
+                entry.sequenceNumber = nextSequenceNumber++;
+                entry.category = 0;
+                entry.cost = 0;
+                detachJournalEntry(entry);
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+        } else if (parts[0].equals(COST) && parts.length == 4) {
+            try {
+                entry.category = Integer.parseInt(parts[2]);
+                entry.cost = Long.parseLong(parts[3]);
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            if (entry.category < 0 || entry.category >= CATEGORY_COUNT) {
+                throw new IOException("unexpected journal line: " + line);
+            }
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
-            entry.currentEditor = new Editor(entry);
+            entry.currentEditor = new Editor(entry, true);
         } else if (parts[0].equals(READ) && parts.length == 2) {
             // this work was already done by calling lruEntries.get()
         } else {
@@ -394,27 +807,270 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private void readBinaryJournal(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE);
+        try {
+            int magic = (in.read() << 24) | (in.read() << 16) | (in.read() << 8) | in.read();
+            long version = readVarint(in);
+            long appVersionValue = readVarint(in);
+            long valueCountValue = readVarint(in);
+            if (magic != MAGIC_BINARY
+                    || version != Integer.parseInt(VERSION_1)
+                    || appVersionValue != appVersion
+                    || valueCountValue != valueCount) {
+                throw new IOException("unexpected binary journal header: ["
+                        + Integer.toHexString(magic) + ", " + version + ", " + valueCountValue + "]");
+            }
+
+            readBinaryJournalRecords(in);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads binary journal records up to the end of {@code in}.
+     *
+     * @return the number of records read
+     */
+    private int readBinaryJournalRecords(InputStream in) throws IOException {
+        int recordCount = 0;
+        long[] lengths = new long[valueCount];
+        long[] values = new long[2];
+        byte[] packedKey = new byte[16];
+        while (true) {
+            int op = in.read();
+            if (op == -1) {
+                break;
+            }
+
+            try {
+                String key;
+                if ((op & OP_FLAG_PACKED_KEY) != 0) {
+                    readFully(in, packedKey);
+                    key = unpackKey(packedKey);
+                } else {
+                    byte[] keyBytes = new byte[(int) readVarint(in)];
+                    readFully(in, keyBytes);
+                    key = new String(keyBytes, UTF_8);
+                }
+                op &= ~OP_FLAG_PACKED_KEY;
+                String targetKey = null;
+                if (op == OP_CLEAN) {
+                    for (int i = 0; i < valueCount; i++) {
+                        lengths[i] = readVarint(in);
+                    }
+                } else if (op == OP_PACKED) {
+                    values[0] = readVarint(in);
+                    values[1] = readVarint(in);
+                    lengths[0] = readVarint(in);
+                } else if (op == OP_COST) {
+                    values[0] = readVarint(in);
+                    values[1] = readVarint(in);
+                } else if (op == OP_LINK) {
+                    int targetKeyLength = (int) readVarint(in);
+                    if (targetKeyLength == 0) {
+                        readFully(in, packedKey);
+                        targetKey = unpackKey(packedKey);
+                    } else {
+                        byte[] targetKeyBytes = new byte[targetKeyLength];
+                        readFully(in, targetKeyBytes);
+                        targetKey = new String(targetKeyBytes, UTF_8);
+                    }
+                }
+                readJournalRecord(op, key, targetKey, lengths, values);
+                recordCount++;
+            } catch (EOFException endOfJournal) {
+                break;
+            }
+        }
+        return recordCount;
+    }
+
+    /**
+     * @param targetKey the key of the entry holding the value for LINK
+     * @param values    segment and offset for PACKED, category and cost for COST
+     */
+    private void readJournalRecord(int op, String key, String targetKey, long[] lengths, long[] values) throws IOException {
+        if (op == OP_REMOVE) {
+            removeJournalEntry(key);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+
+        if (op == OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.segment = -1;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+            entry.sequenceNumber = nextSequenceNumber++;
+            entry.category = 0;
+            entry.cost = 0;
+            detachJournalEntry(entry);
+        } else if (op == OP_LINK && !targetKey.equals(key)) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.segment = -1;
+            Arrays.fill(entry.lengths, 0);
+            entry.sequenceNumber = nextSequenceNumber++;
+            entry.category = 0;
+            entry.cost = 0;
+            attachJournalEntry(entry, targetKey);
+        } else if (op == OP_PACKED && valueCount == 1) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.segment = (int) values[0];
+            entry.offset = values[1];
+            entry.lengths[0] = lengths[0];
+            entry.sequenceNumber = nextSequenceNumber++;
+            entry.category = 0;
+            entry.cost = 0;
+            detachJournalEntry(entry);
+        } else if (op == OP_COST) {
+            if (values[0] < 0 || values[0] >= CATEGORY_COUNT) {
+                throw new IOException("unexpected journal category: " + values[0]);
+            }
+            entry.category = (int) values[0];
+            entry.cost = values[1];
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry, true);
+        } else if (op == OP_READ) {
+            // this work was already done by calling lruEntries.get()
+        } else {
+            throw new IOException("unexpected journal op: " + op);
+        }
+    }
+
+    private void removeJournalEntry(String key) {
+        Entry entry = lruEntries.remove(key);
+        if (entry != null) {
+            entry.readable = false;
+            detachJournalEntry(entry);
+        }
+    }
+
+    /**
+     * Links {@code entry} to the entry named {@code targetKey} while reading the
+     * journal. The target is created if its CLEAN record follows later.
+     */
+    private void attachJournalEntry(Entry entry, String targetKey) {
+        Entry target = lruEntries.get(targetKey);
+        if (target == null) {
+            target = new Entry(targetKey);
+            lruEntries.put(targetKey, target);
+        }
+        detachJournalEntry(entry);
+        addLink(target, entry);
+        entry.target = target;
+    }
+
+    private static void detachJournalEntry(Entry entry) {
+        if (entry.target != null) {
+            removeLink(entry.target, entry);
+            entry.target = null;
+        }
+    }
+
+    private static void addLink(Entry target, Entry link) {
+        if (target.links == null) {
+            target.links = new ArrayList<Entry>(2);
+        }
+        target.links.add(link);
+    }
+
+    private static void removeLink(Entry target, Entry link) {
+        if (target.links != null) {
+            target.links.remove(link);
+        }
+    }
+
+    private static int linkCount(Entry target) {
+        return target.links != null ? target.links.size() : 0;
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     *
+     * @param keepDirtyEntries true: dirty entries are being edited by another
+     *                         process and are kept
      */
-    private void processJournal() throws IOException {
+    private void processJournal(boolean keepDirtyEntries) throws IOException {
         deleteIfExists(journalFileTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
+            if (entry.target != null && !entry.target.readable) {
+                // the shared value was removed or never committed
+                detachJournalEntry(entry);
+                i.remove();
+                continue;
+            }
+            if (entry.currentEditor == null && !entry.readable) {
+                // only read or linked to, but never published
+                i.remove();
+                continue;
+            }
+
             if (entry.currentEditor == null) {
+                if (entry.isPacked()) {
+                    Segment segment = segments.get(entry.segment);
+                    if (segment == null) {
+                        segment = new Segment(entry.segment);
+                        segment.length = segment.getFile().length();
+                        segments.put(segment.id, segment);
+                    }
+                    if (entry.offset + entry.lengths[0] > segment.length) {
+                        // the segment was truncated, the entry is lost
+                        i.remove();
+                        continue;
+                    }
+                    segment.liveLength += entry.lengths[0];
+                }
+                for (int t = 0; t < valueCount; t++) {
+                    size += entry.lengths[t];
+                    categorySizes[entry.category] += entry.lengths[t];
+                }
+            } else if (keepDirtyEntries) {
+                // the value committed before the edit started is still there
                 for (int t = 0; t < valueCount; t++) {
                     size += entry.lengths[t];
+                    categorySizes[entry.category] += entry.lengths[t];
                 }
             } else {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
-                    deleteIfExists(entry.getCleanFile(t));
+                    if (!entry.isPacked()) {
+                        deleteIfExists(entry.getCleanFile(t));
+                    }
                     deleteIfExists(entry.getDirtyFile(t));
                 }
+                detachJournalEntry(entry);
                 i.remove();
             }
         }
+
+        // segments no entry points at are left over from compactions that were interrupted
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    try {
+                        int id = Integer.parseInt(name.substring(SEGMENT_FILE_PREFIX.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+                        if (!segments.containsKey(id)) {
+                            deleteIfExists(file);
+                        }
+                    } catch (NumberFormatException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -422,126 +1078,741 @@ public final class DiskLruCache implements Closeable {
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
-        if (journalWriter != null) {
-            journalWriter.close();
-        }
+        synchronized (journalLock) {
+            if (journalWriter != null) {
+                journalWriter.close();
+            }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+            // lruEntries already reflects every queued line, so they are redundant now
+            synchronized (pendingJournalLock) {
+                takePendingJournal();
+            }
 
-        for (Entry entry : lruEntries.values()) {
-            if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
-            } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            writeNewJournal();
+
+            if (multiProcess) {
+                // makes the other processes read the new journal from the start
+                journalGeneration = readJournalGeneration() + 1;
+                writeJournalGeneration(journalGeneration);
+                journalReadOffset = journalFile.length();
             }
         }
-
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
     }
 
-    private static void deleteIfExists(File file) throws IOException {
-//        try {
-//            Libcore.os.remove(file.getPath());
-//        } catch (ErrnoException errnoException) {
-//            if (errnoException.errno != OsConstants.ENOENT) {
-//                throw errnoException.rethrowAsIOException();
-//            }
-//        }
-        if (file.exists() && !file.delete()) {
-            throw new IOException();
+    private void writeNewJournal() throws IOException {
+        OutputStream writer = new BufferedOutputStream(new FileOutputStream(journalFileTmp), IO_BUFFER_SIZE);
+        writeJournalHeader(writer);
+        for (Entry entry : lruEntries.values()) {
+            writeJournalEntry(writer, entry);
         }
+
+        writer.close();
+        journalFileTmp.renameTo(journalFile);
+        journalWriter = new BufferedOutputStream(new FileOutputStream(journalFile, true), IO_BUFFER_SIZE);
     }
 
     /**
-     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
-     * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * Rewrites the journal like {@link #rebuildJournal()}, but only holds the
+     * cache lock while copying the index and the journal lock while swapping
+     * the files. See the comment on the journal format for how lines that are
+     * appended in the meantime are kept.
      */
-    public synchronized Snapshot get(String key) throws IOException, ClosedException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
-        }
-
-        if (!entry.readable) {
-            return null;
+    private void compactJournal() throws IOException {
+        long blockedNanos;
+        Entry[] entries;
+        long startTime = System.nanoTime();
+        synchronized (this) {
+            if (journalWriter == null) {
+                return; // closed
+            }
+            entries = new Entry[lruEntries.size()];
+            int index = 0;
+            for (Entry entry : lruEntries.values()) {
+                entries[index++] = entry.copy();
+            }
+            redundantOpCount = 0;
+            synchronized (journalLock) {
+                compactionBacklog = new ByteArrayOutputStream();
+            }
         }
+        blockedNanos = System.nanoTime() - startTime;
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        InputStream[] ins = new InputStream[valueCount];
+        OutputStream writer = null;
+        boolean swapped = false;
         try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+            writer = new BufferedOutputStream(new FileOutputStream(journalFileTmp), IO_BUFFER_SIZE);
+            writeJournalHeader(writer);
+            for (Entry entry : entries) {
+                writeJournalEntry(writer, entry);
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
-        }
+            writer.flush();
+
+            startTime = System.nanoTime();
+            synchronized (journalLock) {
+                if (journalWriter != null) {
+                    compactionBacklog.writeTo(writer);
+                    writer.close();
+                    writer = null;
+                    if (journalFileTmp.renameTo(journalFile)) {
+                        OutputStream oldWriter = journalWriter;
+                        journalWriter = new BufferedOutputStream(new FileOutputStream(journalFile, true), IO_BUFFER_SIZE);
+                        closeQuietly(oldWriter);
+                        swapped = true;
+                    }
+                }
+                compactionBacklog = null;
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+                blockedNanos += System.nanoTime() - startTime;
+                journalCompactionCount++;
+                journalCompactionBlockedNanos += blockedNanos;
+                journalCompactionMaxBlockedNanos = Math.max(journalCompactionMaxBlockedNanos, blockedNanos);
+            }
+        } finally {
+            closeQuietly(writer);
+            if (!swapped) {
+                synchronized (journalLock) {
+                    compactionBacklog = null;
+                }
+                journalFileTmp.delete();
+            }
         }
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+    private void writeJournalHeader(OutputStream writer) throws IOException {
+        if (binaryJournal) {
+            writer.write(MAGIC_BINARY >>> 24);
+            writer.write(MAGIC_BINARY >>> 16);
+            writer.write(MAGIC_BINARY >>> 8);
+            writer.write(MAGIC_BINARY);
+            writeVarint(writer, Integer.parseInt(VERSION_1));
+            writeVarint(writer, appVersion);
+            writeVarint(writer, valueCount);
+        } else {
+            String header = MAGIC + "\n" + VERSION_1 + "\n" + appVersion + "\n" + valueCount + "\n" + "\n";
+            writer.write(header.getBytes(UTF_8));
+        }
     }
 
     /**
-     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
-     * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * Takes the file lock that keeps other processes away from the journal and
+     * applies what they appended since this process last held it. Reentrant, the
+     * caller must hold DiskLruCache.this. Does nothing for a single process cache.
      */
-    public synchronized SimpleSnapshot getSimpleSnapshot(String key) throws IOException, ClosedException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
+    private void lockJournalFile() throws IOException {
+        if (!multiProcess || lockFile == null) {
+            return;
+        }
+        if (journalFileLockHoldCount++ > 0) {
+            return;
+        }
+
+        try {
+            journalFileLock = lockFile.getChannel().lock(LOCK_JOURNAL_POSITION, LOCK_JOURNAL_SIZE, false);
+            if (journalWriter != null) {
+                syncJournal();
+            }
+        } catch (IOException e) {
+            unlockJournalFile();
+            throw e;
+        }
+    }
+
+    private void unlockJournalFile() {
+        if (journalFileLockHoldCount == 0) {
+            return;
+        }
+        if (--journalFileLockHoldCount > 0) {
+            return;
+        }
+
+        if (journalFileLock != null) {
+            try {
+                journalFileLock.release();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            journalFileLock = null;
+        }
+    }
+
+    /**
+     * Applies the journal records other processes appended since the last sync,
+     * or reads the journal again if another process rebuilt it. Caller must hold
+     * DiskLruCache.this and the journal file lock.
+     */
+    private void syncJournal() throws IOException {
+        long generation = readJournalGeneration();
+        if (generation != journalGeneration) {
+            reloadJournal();
+            journalGeneration = generation;
+            return;
+        }
+
+        long length = journalFile.length();
+        if (length <= journalReadOffset) {
+            return;
+        }
+
+        FileInputStream fileInputStream = new FileInputStream(journalFile);
+        try {
+            fileInputStream.getChannel().position(journalReadOffset);
+            InputStream in = new BufferedInputStream(fileInputStream, IO_BUFFER_SIZE);
+            redundantOpCount += binaryJournal ? readBinaryJournalRecords(in) : readJournalLines(in);
+        } finally {
+            closeQuietly(fileInputStream);
+        }
+        journalReadOffset = length;
+        recomputeSize();
+
+        if (size > maxSize || journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Reads the journal another process rebuilt from the start. Entries this
+     * process is editing are kept as they are.
+     */
+    private void reloadJournal() throws IOException {
+        List<Entry> editingEntries = new LinkedList<Entry>();
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor != null && !entry.currentEditor.foreign) {
+                editingEntries.add(entry);
+            }
+        }
+
+        long length = journalFile.length();
+        lruEntries.clear();
+        if (binaryJournal) {
+            readBinaryJournal(journalFile);
+        } else {
+            readJournal(journalFile);
+        }
+        for (Entry entry : editingEntries) {
+            // the shared value the entry links to was read again as well
+            Entry reread = lruEntries.put(entry.key, entry);
+            entry.target = reread != null ? reread.target : null;
+            if (entry.target != null) {
+                removeLink(entry.target, reread);
+                addLink(entry.target, entry);
+            }
+        }
+        journalReadOffset = length;
+        recomputeSize();
+
+        // the writer still appends to the replaced journal
+        synchronized (journalLock) {
+            OutputStream oldWriter = journalWriter;
+            journalWriter = new BufferedOutputStream(new FileOutputStream(journalFile, true), IO_BUFFER_SIZE);
+            closeQuietly(oldWriter);
+        }
+    }
+
+    private void recomputeSize() {
+        size = 0;
+        Arrays.fill(categorySizes, 0);
+        for (Entry entry : lruEntries.values()) {
+            for (long length : entry.lengths) {
+                size += length;
+                categorySizes[entry.category] += length;
+            }
+        }
+    }
+
+    /**
+     * Remembers that every record in the journal is already applied. Caller must
+     * hold the journal file lock.
+     */
+    private void markJournalSynced() throws IOException {
+        if (multiProcess) {
+            journalGeneration = readJournalGeneration();
+            journalReadOffset = journalFile.length();
+        }
+    }
+
+    private long readJournalGeneration() throws IOException {
+        if (lockFile.length() < LOCK_JOURNAL_SIZE) {
+            return 0;
+        }
+        lockFile.seek(LOCK_JOURNAL_POSITION);
+        return lockFile.readLong();
+    }
+
+    private void writeJournalGeneration(long generation) throws IOException {
+        lockFile.seek(LOCK_JOURNAL_POSITION);
+        lockFile.writeLong(generation);
+    }
+
+    /**
+     * Deletes every file in {@code directory} but the lock file, which other
+     * processes may be waiting on.
+     */
+    private static void deleteCacheFiles(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (JOURNAL_FILE_LOCK.equals(file.getName())) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            if (!file.delete()) {
+                SLog.fw("DiskLruCache", "failed to delete file: %s", file.getPath());
+            }
+        }
+    }
+
+    private void writeJournalEntry(OutputStream writer, Entry entry) throws IOException {
+        if (entry.currentEditor != null) {
+            writeJournalRecord(writer, OP_DIRTY, entry.key, null);
+        } else {
+            writeJournalRecord(writer, OP_CLEAN, entry.key, entry);
+        }
+    }
+
+    /**
+     * Encodes one journal record in the format this cache was opened with. A CLEAN
+     * record of a packed entry is written as PACKED, of a linked entry as LINK,
+     * and followed by a COST record if the entry has a category or a cost.
+     *
+     * @param entry the published entry, only needed for CLEAN and COST
+     */
+    private void writeJournalRecord(OutputStream out, int op, String key, Entry entry) throws IOException {
+        if (op == OP_CLEAN && entry.target != null) {
+            op = OP_LINK;
+        } else if (op == OP_CLEAN && entry.isPacked()) {
+            op = OP_PACKED;
+        }
+
+        if (!binaryJournal) {
+            StringBuilder line = new StringBuilder(80);
+            line.append(op == OP_CLEAN ? CLEAN : op == OP_PACKED ? PACKED : op == OP_LINK ? LINK : op == OP_COST ? COST
+                    : op == OP_DIRTY ? DIRTY : op == OP_REMOVE ? REMOVE : READ);
+            line.append(' ').append(key);
+            if (op == OP_CLEAN) {
+                for (long length : entry.lengths) {
+                    line.append(' ').append(length);
+                }
+            } else if (op == OP_PACKED) {
+                line.append(' ').append(entry.segment).append(' ').append(entry.offset).append(' ').append(entry.lengths[0]);
+            } else if (op == OP_LINK) {
+                line.append(' ').append(entry.target.key);
+            } else if (op == OP_COST) {
+                line.append(' ').append(entry.category).append(' ').append(entry.cost);
+            }
+            line.append('\n');
+            out.write(line.toString().getBytes(UTF_8));
+        } else {
+            writeBinaryJournalRecord(out, op, key, entry);
+        }
+
+        if ((op == OP_CLEAN || op == OP_PACKED || op == OP_LINK) && (entry.category != 0 || entry.cost != 0)) {
+            writeJournalRecord(out, OP_COST, key, entry);
+        }
+    }
+
+    private void writeBinaryJournalRecord(OutputStream out, int op, String key, Entry entry) throws IOException {
+        byte[] packedKey = packKey(key);
+        if (packedKey != null) {
+            out.write(op | OP_FLAG_PACKED_KEY);
+            out.write(packedKey);
+        } else {
+            byte[] keyBytes = key.getBytes(UTF_8);
+            out.write(op);
+            writeVarint(out, keyBytes.length);
+            out.write(keyBytes);
+        }
+        if (op == OP_CLEAN) {
+            for (long length : entry.lengths) {
+                writeVarint(out, length);
+            }
+        } else if (op == OP_PACKED) {
+            writeVarint(out, entry.segment);
+            writeVarint(out, entry.offset);
+            writeVarint(out, entry.lengths[0]);
+        } else if (op == OP_LINK) {
+            byte[] packedTargetKey = packKey(entry.target.key);
+            if (packedTargetKey != null) {
+                writeVarint(out, 0);
+                out.write(packedTargetKey);
+            } else {
+                byte[] targetKeyBytes = entry.target.key.getBytes(UTF_8);
+                writeVarint(out, targetKeyBytes.length);
+                out.write(targetKeyBytes);
+            }
+        } else if (op == OP_COST) {
+            writeVarint(out, entry.category);
+            writeVarint(out, entry.cost);
+        }
+    }
+
+    /**
+     * Packs a 32-char lowercase hex key into 16 bytes, returns null for any other key.
+     */
+    private static byte[] packKey(String key) {
+        if (key.length() != 32) {
             return null;
         }
+        byte[] packed = new byte[16];
+        for (int i = 0; i < 32; i++) {
+            char c = key.charAt(i);
+            int value;
+            if (c >= '0' && c <= '9') {
+                value = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                value = c - 'a' + 10;
+            } else {
+                return null;
+            }
+            packed[i >> 1] |= (i & 1) == 0 ? value << 4 : value;
+        }
+        return packed;
+    }
+
+    private static String unpackKey(byte[] packed) {
+        final char[] hexDigits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+        char[] chars = new char[packed.length * 2];
+        for (int i = 0; i < packed.length; i++) {
+            chars[i * 2] = hexDigits[(packed[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = hexDigits[packed[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count = in.read(buffer, offset, buffer.length - offset);
+            if (count == -1) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Queues a line that does not have to be durable before the caller continues.
+     */
+    private void appendJournalLazily(int op, String key) {
+        appendJournalLazily(op, key, null);
+    }
+
+    private void appendJournalLazily(int op, String key, Entry entry) {
+        if (multiProcess) {
+            // other processes only see what is in the journal, so nothing may wait in memory
+            try {
+                appendJournalSynchronously(op, key, entry);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
 
-        if (!entry.readable) {
+        synchronized (pendingJournalLock) {
+            try {
+                writeJournalRecord(pendingJournal, op, key, entry);
+            } catch (IOException e) {
+                // ByteArrayOutputStream never throws
+                e.printStackTrace();
+            }
+            journalLineCount++;
+
+            if (pendingJournal.size() >= JOURNAL_FLUSH_SIZE_THRESHOLD) {
+                if (!journalFlushRequested) {
+                    journalFlushRequested = true;
+                    journalExecutor.execute(journalFlushRunnable);
+                }
+            } else if (!journalFlushScheduled) {
+                journalFlushScheduled = true;
+                journalExecutor.schedule(journalFlushRunnable, JOURNAL_FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Queues a line that is only written together with the next line that
+     * holds the journal file lock, or on close. In multi-process mode this
+     * keeps {@link #exist(String)} free of the cross-process lock and of
+     * synchronous journal writes, which matters because it is called on the
+     * main thread. Only READ lines may be deferred: losing one costs LRU
+     * accuracy, not consistency.
+     */
+    private void deferJournalRecord(int op, String key) {
+        synchronized (pendingJournalLock) {
+            try {
+                writeJournalRecord(pendingJournal, op, key, null);
+            } catch (IOException e) {
+                // ByteArrayOutputStream never throws
+                e.printStackTrace();
+            }
+            journalLineCount++;
+        }
+    }
+
+    /**
+     * Writes and flushes a line together with every line queued in front of it.
+     */
+    private void appendJournalSynchronously(int op, Entry entry) throws IOException {
+        appendJournalSynchronously(op, entry.key, entry);
+    }
+
+    private void appendJournalSynchronously(int op, String key, Entry entry) throws IOException {
+        synchronized (journalLock) {
+            byte[] batch;
+            synchronized (pendingJournalLock) {
+                writeJournalRecord(pendingJournal, op, key, entry);
+                journalLineCount++;
+                batch = takePendingJournal();
+            }
+            writeJournal(batch);
+        }
+    }
+
+    /**
+     * Writes and flushes every queued line.
+     */
+    private void flushPendingJournal() throws IOException {
+        synchronized (journalLock) {
+            byte[] batch;
+            synchronized (pendingJournalLock) {
+                batch = takePendingJournal();
+            }
+            if (batch != null) {
+                writeJournal(batch);
+            }
+        }
+    }
+
+    /**
+     * Caller must hold pendingJournalLock.
+     */
+    private byte[] takePendingJournal() {
+        journalFlushScheduled = false;
+        journalFlushRequested = false;
+        if (pendingJournal.size() == 0) {
             return null;
         }
+        byte[] batch = pendingJournal.toByteArray();
+        pendingJournal.reset();
+        return batch;
+    }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        File[] cleanFiles = new File[valueCount];
-        for (int i = 0; i < valueCount; i++) {
-            cleanFiles[i] = entry.getCleanFile(i);
+    /**
+     * Caller must hold journalLock.
+     */
+    private void writeJournal(byte[] batch) throws IOException {
+        OutputStream writer = journalWriter;
+        if (writer == null) {
+            return; // closed
         }
+        writer.write(batch);
+        writer.flush();
+        journalFlushCount++;
+        if (multiProcess) {
+            // the journal file lock is held and everything before the batch was synced
+            journalReadOffset += batch.length;
+        }
+        if (compactionBacklog != null) {
+            compactionBacklog.write(batch);
+        }
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    /**
+     * Returns the number of lines appended to the journal since the cache was opened.
+     */
+    public long getJournalLineCount() {
+        synchronized (pendingJournalLock) {
+            return journalLineCount;
+        }
+    }
+
+    /**
+     * Returns the number of times the journal was flushed to the filesystem since the
+     * cache was opened. Together with {@link #getJournalLineCount()} this gives the
+     * write amplification of the journal.
+     */
+    public long getJournalFlushCount() {
+        synchronized (journalLock) {
+            return journalFlushCount;
+        }
+    }
+
+    /**
+     * Returns the number of times the journal was compacted since the cache was opened.
+     */
+    public long getJournalCompactionCount() {
+        synchronized (journalLock) {
+            return journalCompactionCount;
         }
+    }
 
-        return new SimpleSnapshot(key, entry.sequenceNumber, cleanFiles, this);
+    /**
+     * Returns how many milliseconds compactions held the cache lock or the
+     * journal lock in total since the cache was opened. Callers that needed
+     * one of these locks were blocked for at most this long.
+     */
+    public long getJournalCompactionBlockedTime() {
+        synchronized (journalLock) {
+            return TimeUnit.NANOSECONDS.toMillis(journalCompactionBlockedNanos);
+        }
     }
 
     /**
-     * Returns exisr of the entry named {@code key}
+     * Returns the longest time in milliseconds a single compaction held the
+     * cache lock or the journal lock.
+     */
+    public long getJournalCompactionMaxBlockedTime() {
+        synchronized (journalLock) {
+            return TimeUnit.NANOSECONDS.toMillis(journalCompactionMaxBlockedNanos);
+        }
+    }
+
+    private static void deleteIfExists(File file) throws IOException {
+//        try {
+//            Libcore.os.remove(file.getPath());
+//        } catch (ErrnoException errnoException) {
+//            if (errnoException.errno != OsConstants.ENOENT) {
+//                throw errnoException.rethrowAsIOException();
+//            }
+//        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable. If a value is returned, it is moved to
+     * the head of the LRU queue.
+     */
+    public synchronized Snapshot get(String key) throws IOException, ClosedException {
+        lockJournalFile();
+        try {
+            checkNotClosed();
+            validateKey(key);
+            Entry entry = lruEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            if (!entry.readable) {
+                return null;
+            }
+
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            Entry value = entry.target != null ? entry.target : entry;
+            InputStream[] ins = new InputStream[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = value.isPacked() ? newPackedInputStream(value) : new FileInputStream(value.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually!
+                return null;
+            }
+
+            redundantOpCount++;
+            appendJournalLazily(OP_READ, key);
+            readTarget(entry);
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+
+            return new Snapshot(key, entry.sequenceNumber, ins);
+        } finally {
+            unlockJournalFile();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable. If a value is returned, it is moved to
+     * the head of the LRU queue.
+     */
+    public synchronized SimpleSnapshot getSimpleSnapshot(String key) throws IOException, ClosedException {
+        lockJournalFile();
+        try {
+            checkNotClosed();
+            validateKey(key);
+            Entry entry = lruEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            if (!entry.readable) {
+                return null;
+            }
+
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            Entry value = entry.target != null ? entry.target : entry;
+            File[] cleanFiles = new File[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                cleanFiles[i] = value.isPacked() ? null : value.getCleanFile(i);
+            }
+
+            redundantOpCount++;
+            appendJournalLazily(OP_READ, key);
+            readTarget(entry);
+            if (journalRebuildRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+
+            return new SimpleSnapshot(key, entry.sequenceNumber, cleanFiles, value.lengths.clone(), this);
+        } finally {
+            unlockJournalFile();
+        }
+    }
+
+    /**
+     * Moves the value {@code entry} links to to the head of the LRU queue too,
+     * so shared values are evicted by their most recent use through any key.
+     */
+    private void readTarget(Entry entry) {
+        if (entry.target != null) {
+            lruEntries.get(entry.target.key);
+            redundantOpCount++;
+            appendJournalLazily(OP_READ, entry.target.key);
+        }
+    }
+
+    /**
+     * Returns exisr of the entry named {@code key}. In multi-process mode this
+     * does not sync with the journal, so entries another process committed
+     * since the last locked operation are not seen yet.
      */
     public synchronized boolean exist(String key) throws ClosedException, IOException {
         checkNotClosed();
@@ -549,7 +1820,11 @@ public final class DiskLruCache implements Closeable {
         Entry entry = lruEntries.get(key);
 
         redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
+        if (multiProcess) {
+            deferJournalRecord(OP_READ, key);
+        } else {
+            appendJournalLazily(OP_READ, key);
+        }
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
         }
@@ -566,147 +1841,503 @@ public final class DiskLruCache implements Closeable {
     }
 
     private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException, ClosedException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
+        lockJournalFile();
+        try {
+            checkNotClosed();
+            validateKey(key);
+            Entry entry = lruEntries.get(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                    && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                return null; // snapshot is stale
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                lruEntries.put(key, entry);
+            } else if (entry.currentEditor != null) {
+                return null; // another edit is in progress
+            }
+
+            Editor editor = new Editor(entry, false);
+            entry.currentEditor = editor;
+
+            // flush the journal before creating files to prevent file leaks
+            appendJournalSynchronously(OP_DIRTY, entry);
+            return editor;
+        } finally {
+            unlockJournalFile();
         }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
+    }
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of bytes that this cache should use to store
+     * its data.
+     */
+    public synchronized long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes the cache can store and queues a job
+     * to trim the existing store, if necessary.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        if (size > maxSize && journalWriter != null) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently being used to store the values in
+     * this cache. This may be greater than the max size if a background
+     * deletion is pending.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException, EditorChangedException, FileNotExistException {
+        lockJournalFile();
+        try {
+            Entry entry = editor.entry;
+            if (entry.currentEditor != editor) {
+                throw new EditorChangedException();
+            }
+
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !entry.readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (!entry.getDirtyFile(i).exists()) {
+                        editor.abort();
+                        throw new FileNotExistException("edit didn't create file " + i);
+                    }
+                }
+            }
+
+            // the entry may move to another category, so it is taken out of its old one first
+            for (int i = 0; i < valueCount; i++) {
+                categorySizes[entry.category] -= entry.lengths[i];
+            }
+            if (success) {
+                entry.category = editor.category;
+                entry.cost = editor.cost;
+            }
+
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                if (success) {
+                    if (dirty.exists()) {
+                        long oldLength = entry.lengths[i];
+                        long newLength = dirty.length();
+                        if (linkValue(entry, editor, dirty)) {
+                            newLength = 0;
+                        } else {
+                            // a value of its own replaces the shared one
+                            unlinkValue(entry);
+                            if (!packValue(entry, dirty, newLength)) {
+                                File clean = entry.getCleanFile(i);
+                                dirty.renameTo(clean);
+                                newLength = clean.length();
+                                releasePackedValue(entry);
+                            }
+                        }
+                        entry.lengths[i] = newLength;
+                        size = size - oldLength + newLength;
+                    }
+                } else {
+                    deleteIfExists(dirty);
+                }
+                categorySizes[entry.category] += entry.lengths[i];
+            }
+
+            redundantOpCount++;
+            entry.currentEditor = null;
+            if (entry.readable | success) {
+                entry.readable = true;
+                appendJournalSynchronously(OP_CLEAN, entry);
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber++;
+                }
+            } else {
+                lruEntries.remove(entry.key);
+                appendJournalSynchronously(OP_REMOVE, entry);
+            }
+
+            if (size > maxSize || categoryOverQuota(entry.category) || journalRebuildRequired() || segmentCompactionRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+        } finally {
+            unlockJournalFile();
+        }
+    }
+
+    /**
+     * We only rebuild the journal when it will halve the size of the journal
+     * and eliminate at least 2000 ops.
+     */
+    private boolean journalRebuildRequired() {
+        final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= lruEntries.size();
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed. Entries
+     * actively being edited cannot be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public synchronized boolean remove(String key) throws IOException, ClosedException {
+        lockJournalFile();
+        try {
+            checkNotClosed();
+            validateKey(key);
+            Entry entry = lruEntries.get(key);
+            if (entry == null || !removeEntry(entry)) {
+                return false;
+            }
+
+            if (journalRebuildRequired() || segmentCompactionRequired()) {
+                executorService.submit(cleanupCallable);
+            }
+
+            return true;
+        } finally {
+            unlockJournalFile();
+        }
+    }
+
+    /**
+     * Removes {@code entry} unless it is being edited. A shared value is removed
+     * together with every entry linking to it, and the last entry linking to a
+     * shared value takes the value with it.
+     */
+    private boolean removeEntry(Entry entry) throws IOException {
+        if (entry.currentEditor != null) {
+            return false;
+        }
+
+        if (linkCount(entry) > 0) {
+            List<Entry> links = new ArrayList<Entry>(entry.links);
+            for (Entry link : links) {
+                if (link.currentEditor != null) {
+                    return false;
+                }
+            }
+            for (Entry link : links) {
+                link.target = null;
+                removeLink(entry, link);
+                removeEntry(link);
+            }
+        }
+
+        for (int i = 0; i < valueCount; i++) {
+            if (entry.isPacked()) {
+                releasePackedValue(entry);
+            } else if (entry.target == null) {
+                File file = entry.getCleanFile(i);
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+            }
+            size -= entry.lengths[i];
+            categorySizes[entry.category] -= entry.lengths[i];
+            entry.lengths[i] = 0;
+        }
+
+        redundantOpCount++;
+        appendJournalLazily(OP_REMOVE, entry.key);
+        lruEntries.remove(entry.key);
+        entry.readable = false;
+        unlinkValue(entry);
+        return true;
+    }
+
+    /**
+     * Enables sharing one stored value between entries committed with the same
+     * content key, see {@link Editor#setContentKey}. Only takes effect when the
+     * cache has a single value per entry. Values that are already shared stay
+     * shared when it is disabled.
+     */
+    public synchronized void setContentDedup(boolean contentDedup) {
+        this.contentDedup = contentDedup;
+    }
+
+    public synchronized boolean isContentDedup() {
+        return contentDedup;
+    }
+
+    /**
+     * Links {@code entry} to the entry named after the editor's content key
+     * instead of storing the committed value again. If there is no such entry
+     * yet it is created from the dirty file. Returns false if the value has to
+     * be stored by {@code entry} itself.
+     */
+    private boolean linkValue(Entry entry, Editor editor, File dirty) throws IOException {
+        String contentKey = editor.contentKey;
+        if (!contentDedup || contentKey == null || valueCount != 1 || contentKey.equals(entry.key)) {
+            return false;
+        }
+
+        Entry content = lruEntries.get(contentKey);
+        if (content == null) {
+            content = new Entry(contentKey);
+            // like any edit, so a crash before the CLEAN record leaves a DIRTY entry that is cleaned up on open
+            appendJournalSynchronously(OP_DIRTY, content);
+            File clean = content.getCleanFile(0);
+            if (!dirty.renameTo(clean)) {
+                appendJournalSynchronously(OP_REMOVE, content);
+                return false;
+            }
+            content.lengths[0] = clean.length();
+            content.readable = true;
+            content.sequenceNumber = nextSequenceNumber++;
+            content.category = editor.category;
+            content.cost = editor.cost;
+            lruEntries.put(contentKey, content);
+            size += content.lengths[0];
+            categorySizes[content.category] += content.lengths[0];
+            appendJournalSynchronously(OP_CLEAN, content);
+        } else if (!content.readable || content.currentEditor != null || content.target != null) {
+            return false;
+        } else {
+            // the same bytes are already stored
+            deleteIfExists(dirty);
         }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
-
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
-        return editor;
+        // added first so relinking to the same value does not drop it
+        addLink(content, entry);
+        if (entry.target != null) {
+            unlinkValue(entry);
+        } else {
+            releasePackedValue(entry);
+            deleteIfExists(entry.getCleanFile(0));
+        }
+        entry.target = content;
+        return true;
     }
 
     /**
-     * Returns the directory where this cache stores its data.
+     * Drops the link of {@code entry} to a shared value, and the shared value
+     * itself once no entry links to it anymore.
      */
-    public File getDirectory() {
-        return directory;
+    private void unlinkValue(Entry entry) throws IOException {
+        Entry target = entry.target;
+        if (target == null) {
+            return;
+        }
+        entry.target = null;
+        removeLink(target, entry);
+        if (linkCount(target) <= 0 && target.readable && lruEntries.get(target.key) == target) {
+            removeEntry(target);
+        }
     }
 
     /**
-     * Returns the maximum number of bytes that this cache should use to store
-     * its data.
+     * Sets the maximum length of values that are appended to a segment file
+     * instead of being stored as their own file. Only takes effect when the
+     * cache has a single value per entry. 0 disables packing, values that are
+     * already packed stay readable. Ignored when the cache is shared with other
+     * processes.
      */
-    public long maxSize() {
-        return maxSize;
+    public synchronized void setPackedMaxLength(long packedMaxLength) {
+        if (multiProcess) {
+            return; // segments are appended to without the journal file lock
+        }
+        this.packedMaxLength = packedMaxLength;
+    }
+
+    public synchronized long getPackedMaxLength() {
+        return packedMaxLength;
     }
 
     /**
-     * Returns the number of bytes currently being used to store the values in
-     * this cache. This may be greater than the max size if a background
-     * deletion is pending.
+     * Appends a small committed value to the active segment and deletes its
+     * dirty file. Returns false if the value has to be stored as its own file.
      */
-    public synchronized long size() {
-        return size;
-    }
+    private boolean packValue(Entry entry, File dirty, long length) throws IOException {
+        if (packedMaxLength <= 0 || valueCount != 1 || length > packedMaxLength) {
+            return false;
+        }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException, EditorChangedException, FileNotExistException {
-        Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new EditorChangedException();
+        InputStream in = new FileInputStream(dirty);
+        Segment segment;
+        try {
+            segment = appendToSegment(in, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(in);
         }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new FileNotExistException("edit didn't create file " + i);
-                }
+        releasePackedValue(entry);
+        deleteIfExists(entry.getCleanFile(0));
+        deleteIfExists(dirty);
+        entry.segment = segment.id;
+        entry.offset = segment.length - length;
+        segment.liveLength += length;
+        return true;
+    }
+
+    /**
+     * Copies {@code length} bytes to the end of the active segment, starting a
+     * new segment when the active one is full. The value ends at the returned
+     * segment's length.
+     */
+    private Segment appendToSegment(InputStream in, long length) throws IOException {
+        Segment segment = activeSegment;
+        if (segment == null || (segment.length > 0 && segment.length + length > SEGMENT_MAX_LENGTH)) {
+            int id = 0;
+            for (int existingId : segments.keySet()) {
+                id = Math.max(id, existingId + 1);
             }
+            segment = new Segment(id);
+            segments.put(id, segment);
+            activeSegment = segment;
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(segment.getFile(), true);
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    throw new EOFException("value is shorter than " + length);
                 }
-            } else {
-                deleteIfExists(dirty);
+                out.write(buffer, 0, count);
+                remaining -= count;
             }
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            // whatever was written is dead space now
+            segment.length = segment.getFile().length();
+            throw e;
+        } finally {
+            closeQuietly(out);
         }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            journalWriter.flush();
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
-            }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
-            journalWriter.flush();
+        segment.length += length;
+        return segment;
+    }
+
+    /**
+     * Marks the packed value of {@code entry} as dead space.
+     */
+    private void releasePackedValue(Entry entry) {
+        if (!entry.isPacked()) {
+            return;
+        }
+        Segment segment = segments.get(entry.segment);
+        if (segment != null) {
+            segment.liveLength -= entry.lengths[0];
         }
+        entry.segment = -1;
+        entry.offset = 0;
+    }
 
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    private InputStream newPackedInputStream(Entry entry) throws FileNotFoundException {
+        FileInputStream in = new FileInputStream(segmentFile(entry.segment));
+        try {
+            in.getChannel().position(entry.offset);
+        } catch (IOException e) {
+            closeQuietly(in);
+            throw new FileNotFoundException(e.getMessage());
         }
+        return new BoundedInputStream(in, entry.lengths[0]);
     }
 
     /**
-     * We only rebuild the journal when it will halve the size of the journal
-     * and eliminate at least 2000 ops.
+     * Opens the current packed value of {@code key}. Packed values move when
+     * their segment is compacted, so the position is looked up at open time.
      */
-    private boolean journalRebuildRequired() {
-        final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+    private synchronized InputStream openPackedValue(String key) throws FileNotFoundException {
+        Entry entry = lruEntries.get(key);
+        if (entry == null || !entry.readable || !entry.isPacked()) {
+            throw new FileNotFoundException("packed value not found: " + key);
+        }
+        return newPackedInputStream(entry);
     }
 
     /**
-     * Drops the entry for {@code key} if it exists and can be removed. Entries
-     * actively being edited cannot be removed.
-     *
-     * @return true if an entry was removed.
+     * A segment is worth compacting once at least half of it is dead space.
      */
-    public synchronized boolean remove(String key) throws IOException, ClosedException {
-        checkNotClosed();
-        validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
+    private boolean segmentCompactionRequired() {
+        if (multiProcess) {
             return false;
         }
+        for (Segment segment : segments.values()) {
+            if (segment != activeSegment && segment.liveLength * 2 <= segment.length) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (file.exists() && !file.delete()) {
-                throw new IOException("failed to delete " + file);
+    /**
+     * Copies the live values of every segment that is mostly dead space to the
+     * active segment and deletes it. The new positions are flushed to the
+     * journal before a segment is deleted.
+     */
+    private void compactSegments() throws IOException {
+        if (multiProcess) {
+            return;
+        }
+
+        List<Segment> victims = new LinkedList<Segment>();
+        for (Segment segment : segments.values()) {
+            if (segment != activeSegment && segment.liveLength * 2 <= segment.length) {
+                victims.add(segment);
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
         }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+        for (Segment victim : victims) {
+            if (victim.liveLength > 0) {
+                RandomAccessFile source = new RandomAccessFile(victim.getFile(), "r");
+                try {
+                    for (Entry entry : lruEntries.values()) {
+                        if (entry.segment != victim.id) {
+                            continue;
+                        }
+
+                        byte[] value = new byte[(int) entry.lengths[0]];
+                        source.seek(entry.offset);
+                        source.readFully(value);
+
+                        Segment segment = appendToSegment(new ByteArrayInputStream(value), value.length);
+                        entry.segment = segment.id;
+                        entry.offset = segment.length - value.length;
+                        segment.liveLength += value.length;
+
+                        redundantOpCount++;
+                        appendJournalLazily(OP_CLEAN, entry.key, entry);
+                    }
+                } finally {
+                    closeQuietly(source);
+                }
+                flushPendingJournal();
+            }
 
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            segments.remove(victim.id);
+            deleteIfExists(victim.getFile());
         }
+    }
 
-        return true;
+    private File segmentFile(int id) {
+        return new File(directory, SEGMENT_FILE_PREFIX + id + SEGMENT_FILE_SUFFIX);
     }
 
     /**
@@ -726,9 +2357,14 @@ public final class DiskLruCache implements Closeable {
      * Force buffered operations to the filesystem.
      */
     public synchronized void flush() throws IOException, ClosedException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+        lockJournalFile();
+        try {
+            checkNotClosed();
+            trimToSize();
+            flushPendingJournal();
+        } finally {
+            unlockJournalFile();
+        }
     }
 
     /**
@@ -738,34 +2374,183 @@ public final class DiskLruCache implements Closeable {
         if (journalWriter == null) {
             return; // already closed
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                try {
-                    entry.currentEditor.abort();
-                } catch (EditorChangedException e) {
-                    e.printStackTrace();
-                } catch (FileNotExistException e) {
-                    e.printStackTrace();
+        lockJournalFile();
+        try {
+            for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
+                if (entry.currentEditor != null && !entry.currentEditor.foreign) {
+                    try {
+                        entry.currentEditor.abort();
+                    } catch (EditorChangedException e) {
+                        e.printStackTrace();
+                    } catch (FileNotExistException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
+            try {
+                trimToSize();
+            } catch (ClosedException e) {
+                e.printStackTrace();
+            }
+            synchronized (journalLock) {
+                flushPendingJournal();
+                journalWriter.close();
+                journalWriter = null;
+            }
+        } finally {
+            unlockJournalFile();
+            if (multiProcess) {
+                // also releases the presence lock
+                closeQuietly(lockFile);
+                lockFile = null;
+                presenceLock = null;
+            }
         }
-        try {
-            trimToSize();
-        } catch (ClosedException e) {
-            e.printStackTrace();
-        }
-        journalWriter.close();
-        journalWriter = null;
     }
 
+    /**
+     * Evicts entries of every category that is over its quota, then entries of
+     * any category until the cache is within its max size. Entries that can't
+     * be removed right now, such as a shared value whose link is being edited,
+     * are skipped so the next candidates get their turn.
+     */
     private void trimToSize() throws IOException, ClosedException {
+        Set<Entry> unevictable = new HashSet<Entry>();
+        for (int category = 0; category < CATEGORY_COUNT; category++) {
+            while (categoryOverQuota(category)) {
+                Entry victim = findEvictionVictim(category, unevictable);
+                if (victim == null) {
+                    break;
+                }
+                if (!evict(victim)) {
+                    unevictable.add(victim);
+                }
+            }
+        }
         while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            Entry victim = findEvictionVictim(-1, unevictable);
+            if (victim == null) {
+                break;
+            }
+            if (!evict(victim)) {
+                unevictable.add(victim);
+            }
+        }
+    }
+
+    /**
+     * Looks at the EVICTION_WINDOW least recently used entries and returns the
+     * one that frees the most bytes per millisecond it costs to regenerate. If
+     * no entry has a cost this is the least recently used entry, as before.
+     * Entries without a cost, such as those written before costs were
+     * recorded, are ranked at the median cost per byte of the entries in the
+     * window that have one, so they are neither always evicted first nor kept
+     * forever.
+     *
+     * @param category only look at entries of this category, -1 for any category
+     * @param skip     entries that already failed to be evicted
+     */
+    private Entry findEvictionVictim(int category, Set<Entry> skip) {
+        Entry[] candidates = new Entry[EVICTION_WINDOW];
+        long[] lengths = new long[EVICTION_WINDOW];
+        double[] knownCostPerBytes = new double[EVICTION_WINDOW];
+        int candidateCount = 0;
+        int knownCount = 0;
+        for (Entry entry : lruEntries.values()) {
+            // links hold no bytes, they go when the value they share is evicted
+            if (entry.currentEditor != null || entry.target != null || (category >= 0 && entry.category != category)
+                    || skip.contains(entry)) {
+                continue;
+            }
+
+            long length = 0;
+            for (long valueLength : entry.lengths) {
+                length += valueLength;
+            }
+            candidates[candidateCount] = entry;
+            lengths[candidateCount] = length;
+            if (entry.cost > 0) {
+                knownCostPerBytes[knownCount++] = (double) entry.cost / Math.max(length, 1);
+            }
+            if (++candidateCount >= EVICTION_WINDOW) {
+                break;
+            }
+        }
+
+        double unknownCostPerByte = 0;
+        if (knownCount > 0) {
+            Arrays.sort(knownCostPerBytes, 0, knownCount);
+            unknownCostPerByte = knownCostPerBytes[knownCount / 2];
+        }
+
+        Entry victim = null;
+        double victimCostPerByte = 0;
+        for (int index = 0; index < candidateCount; index++) {
+            Entry entry = candidates[index];
+            double costPerByte = entry.cost > 0 ? (double) entry.cost / Math.max(lengths[index], 1) : unknownCostPerByte;
+            // strictly less, so ties go to the least recently used
+            if (victim == null || costPerByte < victimCostPerByte) {
+                victim = entry;
+                victimCostPerByte = costPerByte;
+            }
+        }
+        return victim;
+    }
+
+    private boolean evict(Entry entry) throws IOException, ClosedException {
+        if (entry == null || !remove(entry.key)) {
+            return false;
+        }
+        categoryEvictionCounts[entry.category]++;
+        return true;
+    }
+
+    private boolean categoryOverQuota(int category) {
+        return categoryMaxSizes[category] > 0 && categorySizes[category] > categoryMaxSizes[category];
+    }
+
+    private static void checkCategory(int category) {
+        if (category < 0 || category >= CATEGORY_COUNT) {
+            throw new IllegalArgumentException("category out of range: " + category);
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes entries of {@code category} may use, 0
+     * removes the quota. Entries over the quota are evicted before any other.
+     */
+    public synchronized void setCategoryMaxSize(int category, long maxSize) {
+        checkCategory(category);
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        categoryMaxSizes[category] = maxSize;
+        if (categoryOverQuota(category) && journalWriter != null) {
+            executorService.submit(cleanupCallable);
         }
     }
 
+    public synchronized long getCategoryMaxSize(int category) {
+        checkCategory(category);
+        return categoryMaxSizes[category];
+    }
+
+    /**
+     * Returns the number of bytes used by entries of {@code category}.
+     */
+    public synchronized long getCategorySize(int category) {
+        checkCategory(category);
+        return categorySizes[category];
+    }
+
+    /**
+     * Returns the number of entries of {@code category} evicted since the cache was opened.
+     */
+    public synchronized long getCategoryEvictionCount(int category) {
+        checkCategory(category);
+        return categoryEvictionCounts[category];
+    }
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
@@ -773,7 +2558,7 @@ public final class DiskLruCache implements Closeable {
      */
     public void delete() throws IOException {
         close();
-        deleteContents(directory);
+        deleteCacheFiles(directory);
     }
 
     private void validateKey(String key) {
@@ -840,11 +2625,13 @@ public final class DiskLruCache implements Closeable {
         private final DiskLruCache diskLruCache;
         private final long sequenceNumber;
         private final File[] cleanFiles;
+        private final long[] lengths;
 
-        private SimpleSnapshot(String key, long sequenceNumber, File[] cleanFiles, DiskLruCache diskLruCache) {
+        private SimpleSnapshot(String key, long sequenceNumber, File[] cleanFiles, long[] lengths, DiskLruCache diskLruCache) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.cleanFiles = cleanFiles;
+            this.lengths = lengths;
             this.diskLruCache = diskLruCache;
         }
 
@@ -858,9 +2645,13 @@ public final class DiskLruCache implements Closeable {
         }
 
         /**
-         * Returns the unbuffered stream with the value for {@code index}.
+         * Returns the unbuffered stream with the value for {@code index}. The
+         * stream of a packed value ends at the end of the value.
          */
         public InputStream newInputStream(int index) throws FileNotFoundException {
+            if (cleanFiles[index] == null) {
+                return openPackedValue(key);
+            }
             return new FileInputStream(cleanFiles[index]);
         }
 
@@ -872,12 +2663,20 @@ public final class DiskLruCache implements Closeable {
         }
 
         /**
-         * Returns cache file for {@code index}.
+         * Returns cache file for {@code index}, or null if the value is packed
+         * into a segment file.
          */
         public File getFile(int index) {
             return cleanFiles[index];
         }
 
+        /**
+         * Returns the length of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
         public String getKey() {
             return key;
         }
@@ -892,10 +2691,54 @@ public final class DiskLruCache implements Closeable {
      */
     public final class Editor {
         private final Entry entry;
+
+        /**
+         * True if this only marks an edit another process is making.
+         */
+        private final boolean foreign;
         private boolean hasErrors;
+        private int category;
+        private long cost;
+        private String contentKey;
 
-        private Editor(Entry entry) {
+        private Editor(Entry entry, boolean foreign) {
             this.entry = entry;
+            this.foreign = foreign;
+            this.category = entry.category;
+            this.cost = entry.cost;
+        }
+
+        /**
+         * Sets the category the entry belongs to once this edit is committed.
+         * Defaults to the entry's current category, or 0 for a new entry.
+         */
+        public void setCategory(int category) {
+            checkCategory(category);
+            this.category = category;
+        }
+
+        /**
+         * Sets how many milliseconds it takes to regenerate the value, for
+         * example the download or the decode and process time. Eviction
+         * prefers entries that are cheap to regenerate for their size.
+         */
+        public void setCost(long cost) {
+            if (cost < 0) {
+                throw new IllegalArgumentException("cost < 0");
+            }
+            this.cost = cost;
+        }
+
+        /**
+         * Sets the key of the committed value's content, for example a digest
+         * of its bytes. With content dedup enabled, entries committed with the
+         * same content key share the value stored under that key.
+         */
+        public void setContentKey(String contentKey) {
+            if (contentKey != null) {
+                validateKey(contentKey);
+            }
+            this.contentKey = contentKey;
         }
 
         /**
@@ -910,7 +2753,11 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+                Entry value = entry.target != null ? entry.target : entry;
+                if (value.isPacked()) {
+                    return newPackedInputStream(value);
+                }
+                return new FileInputStream(value.getCleanFile(index));
             }
         }
 
@@ -939,6 +2786,21 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Returns a new file channel to write the value at {@code index}, for
+         * example with {@link FileChannel#transferFrom}. Unlike the output
+         * stream the channel throws IOExceptions, the caller has to abort
+         * this edit when writing fails.
+         */
+        public FileChannel newFileChannel(int index) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                return new FileOutputStream(entry.getDirtyFile(index)).getChannel();
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -1039,11 +2901,52 @@ public final class DiskLruCache implements Closeable {
          */
         private long sequenceNumber;
 
+        /**
+         * The segment holding the value, or -1 if the value is its own file.
+         */
+        private int segment = -1;
+
+        /**
+         * Offset of the value in its segment.
+         */
+        private long offset;
+
+        /**
+         * The category and the regeneration cost in milliseconds of the most
+         * recently committed edit.
+         */
+        private int category;
+        private long cost;
+
+        /**
+         * The entry holding the shared value this entry links to, or null if
+         * the entry has a value of its own. The entries linking to this one,
+         * so removing a shared value does not have to scan every entry.
+         */
+        private Entry target;
+        private List<Entry> links;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
         }
 
+        /**
+         * Copies the state that is written to the journal.
+         */
+        private Entry copy() {
+            Entry copy = new Entry(key);
+            System.arraycopy(lengths, 0, copy.lengths, 0, valueCount);
+            copy.readable = readable;
+            copy.currentEditor = currentEditor;
+            copy.segment = segment;
+            copy.offset = offset;
+            copy.category = category;
+            copy.cost = cost;
+            copy.target = target;
+            return copy;
+        }
+
         public String getLengths() throws IOException {
             StringBuilder result = new StringBuilder();
             for (long size : lengths) {
@@ -1073,6 +2976,10 @@ public final class DiskLruCache implements Closeable {
             throw new IOException("unexpected journal line: " + Arrays.toString(strings));
         }
 
+        public boolean isPacked() {
+            return segment >= 0;
+        }
+
         public File getCleanFile(int i) {
             return new File(directory, key + "." + i);
         }
@@ -1082,6 +2989,81 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private final class Segment {
+        private final int id;
+
+        /**
+         * Length of the segment file, live and dead values.
+         */
+        private long length;
+
+        /**
+         * Total length of the values entries still point at.
+         */
+        private long liveLength;
+
+        private Segment(int id) {
+            this.id = id;
+        }
+
+        private File getFile() {
+            return segmentFile(id);
+        }
+    }
+
+    /**
+     * Reads at most {@code remaining} bytes of the wrapped stream.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long remaining) {
+            super(in);
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int result = super.read();
+            if (result != -1) {
+                remaining--;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int result = super.read(buffer, offset, (int) Math.min(count, remaining));
+            if (result > 0) {
+                remaining -= result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
     public static class EditorChangedException extends Exception {
 
     }
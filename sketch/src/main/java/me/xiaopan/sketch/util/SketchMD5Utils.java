@@ -83,6 +83,29 @@ public class SketchMD5Utils {
         return result;
     }
 
+    /**
+     * 从池中取一个MD5摘要器，用于边读边算摘要，用完后要调用{@link #recycleDigest(MessageDigest)}放回去
+     */
+    public static MessageDigest obtainDigest() {
+        return digestObjectPool.get();
+    }
+
+    /**
+     * 把摘要器重置后放回池中
+     */
+    public static void recycleDigest(MessageDigest digest) {
+        digest.reset();
+        digestObjectPool.put(digest);
+    }
+
+    /**
+     * 结束计算并把摘要转成32位小写16进制字符串，摘要器会被重置
+     */
+    public static String digestToHex(MessageDigest digest) {
+        byte[] bytes = digest.digest();
+        return bufferToHex(bytes, 0, bytes.length);
+    }
+
     private static String bufferToHex(byte bytes[], int m, int n) {
         StringBuffer stringbuffer = new StringBuffer(2 * n);
         int k = m + n;
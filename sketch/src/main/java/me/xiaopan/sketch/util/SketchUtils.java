@@ -522,6 +522,46 @@ public class SketchUtils {
         return false;
     }
 
+    /**
+     * 清空缓存目录，但保留DiskLruCache的锁文件，其它进程可能正持有它的锁，删掉后两个进程就会锁在不同的文件上
+     */
+    private static void cleanCacheDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (DiskLruCache.JOURNAL_FILE_LOCK.equals(file.getName())) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                cleanCacheDir(file);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * 目录或者其子目录（分片的磁盘缓存）中是否存在DiskLruCache的日志文件
+     */
+    private static boolean existJournalFile(File diskCacheDir) {
+        if (DiskLruCache.existJournal(diskCacheDir)) {
+            return true;
+        }
+
+        File[] childDirs = diskCacheDir.listFiles();
+        if (childDirs != null) {
+            for (File childDir : childDirs) {
+                if (childDir.isDirectory() && DiskLruCache.existJournal(childDir)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * 创建缓存目录，会优先在sdcard上创建
      *
@@ -560,11 +600,8 @@ public class SketchUtils {
 
                 if (diskCacheDir.exists()) {
                     // 目录已存在的话就尝试清除旧的缓存文件
-                    if (cleanOldCacheFiles) {
-                        File journalFile = new File(diskCacheDir, DiskLruCache.JOURNAL_FILE);
-                        if (!journalFile.exists()) {
-                            cleanDir(diskCacheDir);
-                        }
+                    if (cleanOldCacheFiles && !existJournalFile(diskCacheDir)) {
+                        cleanCacheDir(diskCacheDir);
                     }
                 } else {
                     // 目录不存在就创建，创建结果返回false后检查还是不存在就说明创建失败
@@ -579,7 +616,7 @@ public class SketchUtils {
                 if (availableBytes < minSpaceSize) {
                     // 空间不够用的时候直接清空，然后再次计算可用空间
                     if (cleanOnNoSpace) {
-                        cleanDir(diskCacheDir);
+                        cleanCacheDir(diskCacheDir);
                         availableBytes = getAvailableBytes(diskCacheDir);
                     }
 
@@ -622,7 +659,8 @@ public class SketchUtils {
      */
     public static DisplayRequest findDisplayRequest(ImageViewInterface imageViewInterface) {
         if (imageViewInterface != null) {
-            final Drawable drawable = imageViewInterface.getDrawable();
+            // 渐进式显示时预览图可能正在过渡中，因此要取最后一层
+            final Drawable drawable = getLastDrawable(imageViewInterface.getDrawable());
             if (drawable != null && drawable instanceof SketchLoadingDrawable) {
                 return ((SketchLoadingDrawable) drawable).getRequest();
             }
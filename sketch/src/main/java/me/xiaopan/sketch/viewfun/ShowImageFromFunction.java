@@ -44,6 +44,7 @@ public class ShowImageFromFunction extends ViewFunction {
     private static final int FROM_FLAG_COLOR_LOCAL = 0x880000FF;
     private static final int FROM_FLAG_COLOR_DISK_CACHE = 0x88FFFF00;
     private static final int FROM_FLAG_COLOR_NETWORK = 0x88FF0000;
+    private static final int FROM_FLAG_COLOR_EXIF_THUMBNAIL = 0x88FF8800;
 
     private View view;
 
@@ -95,6 +96,9 @@ public class ShowImageFromFunction extends ViewFunction {
             case MEMORY:
                 imageFromPaint.setColor(FROM_FLAG_COLOR_MEMORY);
                 break;
+            case EXIF_THUMBNAIL:
+                imageFromPaint.setColor(FROM_FLAG_COLOR_EXIF_THUMBNAIL);
+                break;
             default:
                 return;
         }
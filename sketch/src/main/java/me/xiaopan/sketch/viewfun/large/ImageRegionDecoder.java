@@ -26,19 +26,18 @@ import android.graphics.Rect;
 import android.os.Build;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 import me.xiaopan.sketch.Configuration;
 import me.xiaopan.sketch.Sketch;
 import me.xiaopan.sketch.decode.DataSource;
 import me.xiaopan.sketch.decode.DataSourceFactory;
 import me.xiaopan.sketch.decode.DecodeException;
-import me.xiaopan.sketch.decode.ImageDecodeUtils;
+import me.xiaopan.sketch.decode.FileDescriptorDataSource;
 import me.xiaopan.sketch.decode.ImageType;
 import me.xiaopan.sketch.decode.ImageOrientationCorrector;
+import me.xiaopan.sketch.decode.RegionDecoderCache;
+import me.xiaopan.sketch.drawable.ImageAttrs;
 import me.xiaopan.sketch.request.UriInfo;
-import me.xiaopan.sketch.util.ExifInterface;
-import me.xiaopan.sketch.util.SketchUtils;
 
 /**
  * 图片碎片解码器，支持纠正图片方向
@@ -49,15 +48,17 @@ public class ImageRegionDecoder {
     private Point imageSize;
     private String imageUri;
     private ImageType imageType;
+    private RegionDecoderCache.Ref regionDecoderRef;
     private BitmapRegionDecoder regionDecoder;
 
     ImageRegionDecoder(String imageUri, Point imageSize, ImageType imageType,
-                       int exifOrientation, BitmapRegionDecoder regionDecoder) {
+                       int exifOrientation, RegionDecoderCache.Ref regionDecoderRef) {
         this.imageUri = imageUri;
         this.imageSize = imageSize;
         this.imageType = imageType;
         this.exifOrientation = exifOrientation;
-        this.regionDecoder = regionDecoder;
+        this.regionDecoderRef = regionDecoderRef;
+        this.regionDecoder = regionDecoderRef.getDecoder();
     }
 
     public static ImageRegionDecoder build(Context context, final String imageUri,
@@ -69,33 +70,39 @@ public class ImageRegionDecoder {
 
         DataSource dataSource = DataSourceFactory.makeDataSource(context, uriInfo, null);
 
-        // 读取图片尺寸和类型
-        BitmapFactory.Options boundOptions = new BitmapFactory.Options();
-        boundOptions.inJustDecodeBounds = true;
-        ImageDecodeUtils.decodeBitmap(dataSource, boundOptions);
-        Point imageSize = new Point(boundOptions.outWidth, boundOptions.outHeight);
-
-        // 读取图片方向并根据方向改变尺寸
-        Configuration configuration = Sketch.with(context).getConfiguration();
-        ImageOrientationCorrector orientationCorrector = configuration.getImageOrientationCorrector();
-        int exifOrientation = ExifInterface.ORIENTATION_UNDEFINED;
-        if (!correctImageOrientationDisabled) {
-            exifOrientation = orientationCorrector.readExifOrientation(boundOptions.outMimeType, dataSource);
+        // 文件只打开一次，读取尺寸、方向以及创建BitmapRegionDecoder都共用同一个文件描述符
+        FileDescriptorDataSource fileDescriptorDataSource = null;
+        if (dataSource instanceof FileDescriptorDataSource) {
+            fileDescriptorDataSource = (FileDescriptorDataSource) dataSource;
+            fileDescriptorDataSource.open();
         }
-        orientationCorrector.rotateSize(imageSize, exifOrientation);
-
-        InputStream inputStream = null;
-        BitmapRegionDecoder regionDecoder;
         try {
-            inputStream = dataSource.getInputStream();
-            regionDecoder = BitmapRegionDecoder.newInstance(inputStream, false);
+            return build(imageUri, dataSource, Sketch.with(context).getConfiguration(), correctImageOrientationDisabled);
         } finally {
-            SketchUtils.close(inputStream);
+            if (fileDescriptorDataSource != null) {
+                fileDescriptorDataSource.close();
+            }
         }
+    }
 
-        ImageType imageType = ImageType.valueOfMimeType(boundOptions.outMimeType);
+    private static ImageRegionDecoder build(String imageUri, DataSource dataSource, Configuration configuration,
+                                            boolean correctImageOrientationDisabled) throws IOException {
+        // 读取图片尺寸、类型和方向，解码过的图片直接从索引中读取
+        ImageOrientationCorrector orientationCorrector = configuration.getImageOrientationCorrector();
+        ImageAttrs imageAttrs = configuration.getImageAttrsIndex().readImageAttrs(dataSource, orientationCorrector,
+                correctImageOrientationDisabled);
+        Point imageSize = new Point(imageAttrs.getWidth(), imageAttrs.getHeight());
 
-        return new ImageRegionDecoder(imageUri, imageSize, imageType, exifOrientation, regionDecoder);
+        // 根据方向改变尺寸
+        int exifOrientation = imageAttrs.getExifOrientation();
+        orientationCorrector.rotateSize(imageSize, exifOrientation);
+
+        // 缩略图模式刚读过这个文件的话可以直接用它的BitmapRegionDecoder
+        RegionDecoderCache.Ref regionDecoderRef = configuration.getRegionDecoderCache().acquire(dataSource);
+
+        ImageType imageType = ImageType.valueOfMimeType(imageAttrs.getMimeType());
+
+        return new ImageRegionDecoder(imageUri, imageSize, imageType, exifOrientation, regionDecoderRef);
     }
 
     @SuppressWarnings("unused")
@@ -123,8 +130,9 @@ public class ImageRegionDecoder {
 
     @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
     public void recycle() {
-        if (isReady()) {
-            regionDecoder.recycle();
+        if (regionDecoderRef != null) {
+            regionDecoderRef.release();
+            regionDecoderRef = null;
             regionDecoder = null;
         }
     }